@@ -0,0 +1,109 @@
+package com.rei.trailregister.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rei.trailregister.TrailRegister;
+import com.rei.trailregister.client.BatchingTrailRegisterClient;
+import com.rei.trailregister.client.UsageCounter;
+
+import spark.Spark;
+
+/**
+ * cost of {@code recordUsage} on the calling thread, with batches sent in the background to an in process server. The
+ * {@code computeMap} ones record into nested maps updated with {@code compute} under an {@code app|env} key, the way
+ * the client used to, for comparison. Run with {@code -prof gc} to see allocation per call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(4)
+public class BatchingClientBenchmark {
+    private static final String[] KEYS = new String[1000];
+
+    static {
+        for (int i = 0; i < KEYS.length; i++) {
+            KEYS[i] = "key-" + i;
+        }
+    }
+
+    private Path dir;
+    private BatchingTrailRegisterClient client;
+    private UsageCounter held;
+    private ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, Integer>>> computeMap = new ConcurrentHashMap<>();
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Repositories.tempDir();
+        int port = Repositories.findRandomOpenPort();
+        Spark.port(port);
+        new TrailRegister(dir, Collections.emptyList()).run();
+        Spark.awaitInitialization();
+        client = new BatchingTrailRegisterClient("http://localhost:" + port, 1, TimeUnit.SECONDS);
+        held = client.counter("bench", "prod", "client", "held");
+    }
+
+    @TearDown
+    public void teardown() {
+        Spark.stop();
+        Repositories.delete(dir);
+    }
+
+    @Benchmark
+    public void recordSameKey() {
+        client.recordUsage("bench", "prod", "client", "hot");
+    }
+
+    @Benchmark
+    public void recordManyKeys() {
+        client.recordUsage("bench", "prod", "client", KEYS[ThreadLocalRandom.current().nextInt(KEYS.length)]);
+    }
+
+    @Benchmark
+    public void recordHeldCounter() {
+        held.increment();
+    }
+
+    @Benchmark
+    public void computeMapSameKey() {
+        computeMapRecord("bench", "prod", "client", "hot");
+    }
+
+    @Benchmark
+    public void computeMapManyKeys() {
+        computeMapRecord("bench", "prod", "client", KEYS[ThreadLocalRandom.current().nextInt(KEYS.length)]);
+    }
+
+    private void computeMapRecord(String app, String env, String category, String key) {
+        computeMap.compute(app + "|" + env, (k, categories) -> {
+            categories = categories != null ? categories : new ConcurrentHashMap<>();
+            categories.compute(category, (c, keys) -> {
+                keys = keys != null ? keys : new ConcurrentHashMap<>();
+                keys.compute(key, (kk, count) -> count == null ? 1 : count + 1);
+                return keys;
+            });
+            return categories;
+        });
+    }
+}
@@ -0,0 +1,75 @@
+package com.rei.trailregister.benchmarks;
+
+import static java.util.stream.Collectors.toMap;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rei.trailregister.UsageKey;
+import com.rei.trailregister.UsageRepository;
+
+/**
+ * reading a whole category of 10k keys, both with a per key fan out and through {@code getAllUsages}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+public class CategoryBenchmark {
+    private static final String APP = "bench";
+    private static final String ENV = "prod";
+    private static final String CATEGORY = "category";
+
+    @Param({ Repositories.FILE, Repositories.DATABASE })
+    public String backend;
+
+    @Param({ "10000" })
+    public int keys;
+
+    @Param({ "30" })
+    public int days;
+
+    private Path dir;
+    private UsageRepository repo;
+
+    @Setup
+    public void setup() {
+        dir = Repositories.tempDir();
+        repo = Repositories.create(backend, dir);
+        DatasetGenerator generator = new DatasetGenerator();
+        generator.populate(repo, generator.keys(APP, ENV, CATEGORY, keys), 7, 20);
+    }
+
+    @TearDown
+    public void teardown() {
+        repo.shutdown();
+        Repositories.delete(dir);
+    }
+
+    @Benchmark
+    public Map<String, Long> perKeyFanOut() {
+        return repo.getKeys(APP, ENV, CATEGORY).parallelStream()
+                   .collect(toMap(k -> k, k -> repo.getUsages(new UsageKey(APP, ENV, CATEGORY, k), days)));
+    }
+
+    @Benchmark
+    public Map<String, Long> getAllUsages() {
+        return repo.getAllUsages(APP, ENV, CATEGORY, days);
+    }
+}
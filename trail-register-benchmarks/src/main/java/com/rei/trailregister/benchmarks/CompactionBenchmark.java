@@ -0,0 +1,59 @@
+package com.rei.trailregister.benchmarks;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rei.trailregister.FileUsageRepository;
+
+/**
+ * one full compaction pass over a freshly generated tree of uncompacted date files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+public class CompactionBenchmark {
+
+    @Param({ "200" })
+    public int keys;
+
+    @Param({ "365" })
+    public int days;
+
+    private Path dir;
+    private FileUsageRepository repo;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        dir = Repositories.tempDir();
+        repo = new FileUsageRepository(dir);
+        DatasetGenerator generator = new DatasetGenerator();
+        generator.populate(repo, generator.keys("bench", "prod", "compaction", keys), days, 20);
+    }
+
+    @TearDown(Level.Iteration)
+    public void teardown() {
+        Repositories.delete(dir);
+    }
+
+    @Benchmark
+    public void runCompaction() {
+        repo.runCompaction();
+    }
+}
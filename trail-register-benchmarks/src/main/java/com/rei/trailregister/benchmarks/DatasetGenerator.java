@@ -0,0 +1,65 @@
+package com.rei.trailregister.benchmarks;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.rei.trailregister.UsageKey;
+import com.rei.trailregister.UsageRepository;
+
+/**
+ * Generates repeatable synthetic usage data, the same seed always produces the same keys and counts.
+ */
+public class DatasetGenerator {
+    public static final long DEFAULT_SEED = 20151007L;
+
+    private final Random random;
+
+    public DatasetGenerator(long seed) {
+        random = new Random(seed);
+    }
+
+    public DatasetGenerator() {
+        this(DEFAULT_SEED);
+    }
+
+    public List<UsageKey> keys(String app, String env, String category, int count) {
+        List<UsageKey> keys = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            keys.add(new UsageKey(app, env, category, String.format("key-%06d", i)));
+        }
+        return keys;
+    }
+
+    /**
+     * records a random count between 1 and {@code maxPerDay} for each key on each of the last {@code days} days
+     */
+    public void populate(UsageRepository repo, List<UsageKey> keys, int days, int maxPerDay) {
+        LocalDate today = LocalDate.now();
+        for (int day = 0; day < days; day++) {
+            Map<UsageKey, Integer> usages = new HashMap<>();
+            for (UsageKey key : keys) {
+                usages.put(key, 1 + random.nextInt(maxPerDay));
+            }
+            repo.recordUsages(usages, today.minusDays(day));
+        }
+    }
+
+    /**
+     * @return a map from key to count in the shape of a {@code POST /:app/:env/:cat} body
+     */
+    public Map<String, Integer> categoryBody(int keys, int maxPerKey) {
+        Map<String, Integer> body = new HashMap<>();
+        for (int i = 0; i < keys; i++) {
+            body.put(String.format("key-%06d", random.nextInt(keys * 10)), 1 + random.nextInt(maxPerKey));
+        }
+        return body;
+    }
+
+    public int nextInt(int bound) {
+        return random.nextInt(bound);
+    }
+}
@@ -0,0 +1,107 @@
+package com.rei.trailregister.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+import com.rei.trailregister.TrailRegister;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+
+import spark.Spark;
+
+/**
+ * end to end POST and GET round trips against an in process server backed by the file repository.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(4)
+public class HttpBenchmark {
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    private Path dir;
+    private String baseUrl;
+    private OkHttpClient client = new OkHttpClient();
+    private String categoryBody;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Repositories.tempDir();
+        int port = Repositories.findRandomOpenPort();
+        baseUrl = "http://localhost:" + port;
+        Spark.port(port);
+        new TrailRegister(dir, Collections.emptyList()).run();
+        Spark.awaitInitialization();
+
+        DatasetGenerator generator = new DatasetGenerator();
+        categoryBody = new Gson().toJson(generator.categoryBody(100, 5));
+        execute(new Request.Builder().url(baseUrl + "/bench/prod/http").post(RequestBody.create(JSON, categoryBody)));
+    }
+
+    @TearDown
+    public void teardown() {
+        Spark.stop();
+        Repositories.delete(dir);
+    }
+
+    @Benchmark
+    public int postSingleUsage() throws IOException {
+        String key = "key-" + ThreadLocalRandom.current().nextInt(1000);
+        return execute(new Request.Builder().url(baseUrl + "/bench/prod/http/" + key).post(RequestBody.create(JSON, "")));
+    }
+
+    @Benchmark
+    public int postCategory() throws IOException {
+        return execute(new Request.Builder().url(baseUrl + "/bench/prod/http").post(RequestBody.create(JSON, categoryBody)));
+    }
+
+    @Benchmark
+    public int getKey() throws IOException {
+        String key = "key-" + ThreadLocalRandom.current().nextInt(1000);
+        return execute(new Request.Builder().url(baseUrl + "/bench/prod/http/" + key + "?days=30").get());
+    }
+
+    @Benchmark
+    public int getCategory() throws IOException {
+        return execute(new Request.Builder().url(baseUrl + "/bench/prod/http?days=30").get());
+    }
+
+    @Benchmark
+    public int getCategoryTop() throws IOException {
+        return execute(new Request.Builder().url(baseUrl + "/bench/prod/http?days=30&top=10").get());
+    }
+
+    @Benchmark
+    public int getCategoryPage() throws IOException {
+        return execute(new Request.Builder().url(baseUrl + "/bench/prod/http?days=30&limit=10").get());
+    }
+
+    private int execute(Request.Builder request) throws IOException {
+        Response response = client.newCall(request.build()).execute();
+        response.body().close();
+        return response.code();
+    }
+}
@@ -0,0 +1,79 @@
+package com.rei.trailregister.benchmarks;
+
+import static java.time.format.DateTimeFormatter.BASIC_ISO_DATE;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rei.trailregister.cluster.DailyCounts;
+
+/**
+ * merging by date results from the local node and each peer, summing string keyed maps versus date indexed arrays.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class PeerMergeBenchmark {
+
+    @Param({ "3", "5", "10" })
+    public int peers;
+
+    @Param({ "365" })
+    public int days;
+
+    private LocalDate today;
+    private List<Map<String, Long>> results;
+
+    @Setup
+    public void setup() {
+        today = LocalDate.now();
+        Random random = new Random(DatasetGenerator.DEFAULT_SEED);
+        results = new ArrayList<>();
+        // the local result plus one per peer
+        for (int node = 0; node <= peers; node++) {
+            Map<String, Long> byDate = new TreeMap<>();
+            for (int day = 0; day < days; day++) {
+                byDate.put(BASIC_ISO_DATE.format(today.minusDays(day)), (long) random.nextInt(1000));
+            }
+            results.add(byDate);
+        }
+    }
+
+    @Benchmark
+    public Map<String, Long> mergeMaps() {
+        Map<String, Long> merged = new TreeMap<>(results.get(0));
+        for (int i = 1; i < results.size(); i++) {
+            results.get(i).forEach((date, num) -> merged.merge(date, num, Long::sum));
+        }
+        return merged;
+    }
+
+    @Benchmark
+    public Map<String, Long> sumDailyCounts() {
+        DailyCounts merged = DailyCounts.of(results.get(0), today, days);
+        for (int i = 1; i < results.size(); i++) {
+            merged.add(DailyCounts.of(results.get(i), today, days));
+        }
+        return merged.toMap();
+    }
+}
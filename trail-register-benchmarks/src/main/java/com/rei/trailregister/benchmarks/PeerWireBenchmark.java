@@ -0,0 +1,95 @@
+package com.rei.trailregister.benchmarks;
+
+import static java.time.format.DateTimeFormatter.BASIC_ISO_DATE;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.rei.trailregister.cluster.DailyCounts;
+import com.rei.trailregister.cluster.PeerCodec;
+
+/**
+ * one peer's answer to a by date read for a whole category, encoded on the peer and read back into day arrays on the
+ * node that asked, as json versus the binary peer encoding. Sizes of both are printed at setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class PeerWireBenchmark {
+
+    @Param({ "10", "100" })
+    public int keys;
+
+    @Param({ "30", "365" })
+    public int days;
+
+    private final Gson json = new Gson();
+    private LocalDate today;
+    private Map<String, Map<String, Long>> byDate;
+    private byte[] jsonBytes;
+    private byte[] binaryBytes;
+
+    @Setup
+    public void setup() {
+        today = LocalDate.now();
+        Random random = new Random(DatasetGenerator.DEFAULT_SEED);
+        byDate = new HashMap<>();
+        for (int k = 0; k < keys; k++) {
+            Map<String, Long> counts = new TreeMap<>();
+            for (int day = 0; day < days; day++) {
+                counts.put(BASIC_ISO_DATE.format(today.minusDays(day)), (long) random.nextInt(1000));
+            }
+            byDate.put("key" + k, counts);
+        }
+        jsonBytes = json.toJson(byDate).getBytes(StandardCharsets.UTF_8);
+        binaryBytes = PeerCodec.encodeByDate(byDate);
+        System.out.printf("%n%d keys x %d days: json %d bytes, binary %d bytes%n", keys, days, jsonBytes.length,
+                          binaryBytes.length);
+    }
+
+    @Benchmark
+    public byte[] encodeJson() {
+        return json.toJson(byDate).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return PeerCodec.encodeByDate(byDate);
+    }
+
+    @Benchmark
+    public Map<String, DailyCounts> decodeJson() {
+        Map<String, Map<String, Long>> parsed = json.fromJson(new String(jsonBytes, StandardCharsets.UTF_8),
+                                                              new TypeToken<Map<String, Map<String, Long>>>(){}.getType());
+        Map<String, DailyCounts> result = new HashMap<>();
+        parsed.forEach((key, counts) -> result.put(key, DailyCounts.of(counts, today, days)));
+        return result;
+    }
+
+    @Benchmark
+    public Map<String, DailyCounts> decodeBinary() {
+        return PeerCodec.decodeByDate(binaryBytes, today, days);
+    }
+}
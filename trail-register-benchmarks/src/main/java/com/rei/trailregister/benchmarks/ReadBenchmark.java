@@ -0,0 +1,76 @@
+package com.rei.trailregister.benchmarks;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rei.trailregister.UsageKey;
+import com.rei.trailregister.UsageRepository;
+
+/**
+ * single key reads over a 30 and a 365 day window, half the data compacted in the file repository.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class ReadBenchmark {
+
+    @Param({ Repositories.FILE, Repositories.DATABASE })
+    public String backend;
+
+    @Param({ "30", "365" })
+    public int days;
+
+    private Path dir;
+    private UsageRepository repo;
+    private List<UsageKey> keys;
+
+    @Setup
+    public void setup() {
+        dir = Repositories.tempDir();
+        repo = Repositories.create(backend, dir);
+        DatasetGenerator generator = new DatasetGenerator();
+        keys = generator.keys("bench", "prod", "read", 100);
+        generator.populate(repo, keys, 365, 20);
+        repo.runCompaction();
+        generator.populate(repo, keys, 100, 20);
+    }
+
+    @TearDown
+    public void teardown() {
+        repo.shutdown();
+        Repositories.delete(dir);
+    }
+
+    @Benchmark
+    public long getUsages() {
+        return repo.getUsages(randomKey(), days);
+    }
+
+    @Benchmark
+    public Map<String, Long> getUsagesByDate() {
+        return repo.getUsagesByDate(randomKey(), days);
+    }
+
+    private UsageKey randomKey() {
+        return keys.get(ThreadLocalRandom.current().nextInt(keys.size()));
+    }
+}
@@ -0,0 +1,68 @@
+package com.rei.trailregister.benchmarks;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rei.trailregister.UsageKey;
+import com.rei.trailregister.UsageRepository;
+
+/**
+ * write throughput with every thread hitting the same key, and with writes spread over many keys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(4)
+public class RecordBenchmark {
+
+    @Param({ Repositories.FILE, Repositories.DATABASE })
+    public String backend;
+
+    private Path dir;
+    private UsageRepository repo;
+    private UsageKey hotKey;
+    private List<UsageKey> keys;
+
+    @Setup
+    public void setup() {
+        dir = Repositories.tempDir();
+        repo = Repositories.create(backend, dir);
+        keys = new DatasetGenerator().keys("bench", "prod", "record", 10000);
+        hotKey = keys.get(0);
+    }
+
+    @TearDown
+    public void teardown() {
+        repo.shutdown();
+        Repositories.delete(dir);
+    }
+
+    @Benchmark
+    public void recordSameKey() {
+        repo.recordUsages(hotKey);
+    }
+
+    @Benchmark
+    public void recordManyKeys() {
+        repo.recordUsages(keys.get(ThreadLocalRandom.current().nextInt(keys.size())));
+    }
+}
@@ -0,0 +1,72 @@
+package com.rei.trailregister.benchmarks;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import com.rei.trailregister.DatabaseUsageRepository;
+import com.rei.trailregister.FileUsageRepository;
+import com.rei.trailregister.UsageRepository;
+
+/**
+ * creates the repositories under test and cleans up after them.
+ */
+public class Repositories {
+    public static final String FILE = "file";
+    public static final String DATABASE = "database";
+
+    public static UsageRepository create(String backend, Path dir) {
+        switch (backend) {
+            case FILE:
+                return new FileUsageRepository(dir);
+            case DATABASE:
+                return createDatabase();
+            default:
+                throw new IllegalArgumentException("unknown backend " + backend);
+        }
+    }
+
+    public static UsageRepository createDatabase() {
+        String url = "jdbc:h2:mem:bench" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1";
+        try (Connection c = DriverManager.getConnection(url, "sa", "sa"); Statement s = c.createStatement()) {
+            s.execute("create table usages (app varchar(20), env varchar(20), category varchar(30), "
+                      + "\"key\" varchar(300), date int, num int, primary key (app, env, category, \"key\", date))");
+        } catch (SQLException e) {
+            throw new IllegalStateException("unable to create schema", e);
+        }
+        return new DatabaseUsageRepository(url, "sa", "sa", org.h2.Driver::new);
+    }
+
+    public static Path tempDir() {
+        try {
+            return Files.createTempDirectory("trail-register-bench");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static void delete(Path dir) {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static int findRandomOpenPort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -1,10 +1,12 @@
 package com.rei.trailregister.client;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,6 +18,8 @@ import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.Request.Builder;
 import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
 
 abstract class AbstractTrailRegisterClient implements TrailRegisterClient {
 
@@ -23,16 +27,38 @@ abstract class AbstractTrailRegisterClient implements TrailRegisterClient {
     
     public static final int DEFAULT_DAYS = 30;
     public static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    static final String RECORDS_WRITTEN_HEADER = "X-Records-Written";
     private Gson json = new Gson();
+    private static final long CONNECT_TIMEOUT_MILLIS = 300;
     private OkHttpClient client = new OkHttpClient();
+    // the same client unless reads were given their own timeout
+    private OkHttpClient readClient = client;
     protected String baseUrl;
 
     AbstractTrailRegisterClient(String baseUrl) {
         this.baseUrl = baseUrl;
-        client.setConnectTimeout(300, TimeUnit.MILLISECONDS);
+        client.setConnectTimeout(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
         client.setReadTimeout(10, TimeUnit.SECONDS);
     }
 
+    /**
+     * reads give up after {@code millis} without an answer. Writes keep the longer default, one that's slow to apply
+     * shouldn't fail and be sent again after the server applied it.
+     */
+    protected void setReadTimeout(long millis) {
+        readClient = client.clone();
+        readClient.setConnectTimeout(Math.min(millis, CONNECT_TIMEOUT_MILLIS), TimeUnit.MILLISECONDS);
+        readClient.setReadTimeout(millis, TimeUnit.MILLISECONDS);
+        readClient.setWriteTimeout(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * aborts the requests in flight that {@link #modifyRequest} tagged with {@code tag}
+     */
+    protected void cancel(Object tag) {
+        client.cancel(tag);
+    }
+
     @Override
     public long getUsages(String app, String env, String category, String key) {
         return getUsages(app, env, category, key, DEFAULT_DAYS);
@@ -98,20 +124,118 @@ abstract class AbstractTrailRegisterClient implements TrailRegisterClient {
                 .post(RequestBody.create(JSON, body))
                 .build();
     
-        return client.newCall(request).execute().code();
+        Response response = client.newCall(request).execute();
+        // nothing to read, but an unclosed body keeps its connection out of the pool
+        response.body().close();
+        return response.code();
+    }
+
+    /**
+     * posts the body as json and reads the json response, for queries too large to fit in a url
+     */
+    protected <T> T post(String path, Object body, TypeToken<T> type) {
+        try {
+            Builder request = new Request.Builder().url(baseUrl + path).post(RequestBody.create(JSON, json.toJson(body)));
+            modifyRequest(request);
+            return json.fromJson(readClient.newCall(request.build()).execute().body().string(), type.getType());
+        } catch (IOException e) {
+            throw new RuntimeException("unable to get usage data!", e);
+        }
+    }
+
+    /**
+     * posts the body as json, asking for the response in {@code accept}. The reader gets the content type the server
+     * actually answered with, servers that don't support the one asked for answer with json.
+     *
+     * @throws IllegalStateException if the server didn't answer with a success
+     */
+    protected <T> T post(String path, Object body, String accept, BiFunction<MediaType, byte[], T> reader) {
+        try {
+            Builder request = new Request.Builder().url(baseUrl + path)
+                                                   .header("Accept", accept)
+                                                   .post(RequestBody.create(JSON, json.toJson(body)));
+            modifyRequest(request);
+            Response response = readClient.newCall(request.build()).execute();
+            ResponseBody responseBody = response.body();
+            if (!response.isSuccessful()) {
+                responseBody.close();
+                throw new IllegalStateException("unable to get usage data! " + path + " returned " + response.code());
+            }
+            return reader.apply(responseBody.contentType(), responseBody.bytes());
+        } catch (IOException e) {
+            throw new RuntimeException("unable to get usage data!", e);
+        }
+    }
+
+    /**
+     * posts the body as json, failing unless the server accepted it
+     */
+    protected void send(String path, Object body) {
+        send(path, RequestBody.create(JSON, json.toJson(body)));
+    }
+
+    /**
+     * posts raw bytes of the given content type, failing unless the server accepted them
+     */
+    protected void send(String path, byte[] body, String contentType) {
+        send(path, RequestBody.create(MediaType.parse(contentType), body));
+    }
+
+    /**
+     * posts newline delimited records to {@code path}
+     *
+     * @return how many records were written before one the server rejected, or -1 when it accepted all of them
+     * @throws RuntimeException if the server couldn't be reached or failed
+     */
+    protected long ingest(String path, byte[] records, String contentType) {
+        try {
+            Builder request = new Request.Builder().url(baseUrl + path)
+                                                   .post(RequestBody.create(MediaType.parse(contentType), records));
+            modifyRequest(request);
+            Response response = client.newCall(request.build()).execute();
+            response.body().close();
+            String written = response.header(RECORDS_WRITTEN_HEADER);
+            if (response.code() == 400 && written != null) {
+                return Long.parseLong(written);
+            }
+            if (!response.isSuccessful()) {
+                throw new IllegalStateException("unable to send usage data! " + path + " returned " + response.code());
+            }
+            return -1;
+        } catch (IOException e) {
+            throw new RuntimeException("unable to send usage data!", e);
+        }
+    }
+
+    private void send(String path, RequestBody body) {
+        try {
+            Builder request = new Request.Builder().url(baseUrl + path).post(body);
+            modifyRequest(request);
+            Response response = client.newCall(request.build()).execute();
+            response.body().close();
+            if (!response.isSuccessful()) {
+                throw new IllegalStateException("unable to send usage data! " + path + " returned " + response.code());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("unable to send usage data!", e);
+        }
+    }
+
+    protected <T> T fromJson(byte[] body, TypeToken<T> type) {
+        return json.fromJson(new String(body, StandardCharsets.UTF_8), type.getType());
     }
 
     protected <T> T get(String path, TypeToken<T> type) {
         try {
     	    Builder request = new Request.Builder().url(baseUrl + path).get();
     	    modifyRequest(request);
-    	    return json.fromJson(client.newCall(request.build()).execute().body().string(), type.getType());
+    	    return json.fromJson(readClient.newCall(request.build()).execute().body().string(), type.getType());
         } catch (IOException e) {
             throw new RuntimeException("unable to get usage data!", e);
         }
     }
 
-    static String path(String... segments) {
+    protected static String path(String... segments) {
         return "/" + String.join("/", Arrays.asList(segments));
     }
     
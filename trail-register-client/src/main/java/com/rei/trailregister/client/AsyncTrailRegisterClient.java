@@ -0,0 +1,39 @@
+package com.rei.trailregister.client;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The operations of {@link TrailRegisterClient} without blocking the caller, each completes when the server answers.
+ */
+public interface AsyncTrailRegisterClient extends AutoCloseable {
+    CompletableFuture<Void> recordUsage(String app, String env, String category, String key);
+
+    /**
+     * records many usages for an application and environment in one request
+     *
+     * @param usages counts by key, by category
+     */
+    CompletableFuture<Void> recordUsages(String app, String env, Map<String, Map<String, Integer>> usages);
+
+    CompletableFuture<Long> getUsages(String app, String env, String category, String key);
+    CompletableFuture<Map<String, Long>> getUsagesByDate(String app, String env, String category, String key);
+    CompletableFuture<Map<String, Long>> getAllUsages(String app, String env, String category);
+
+    CompletableFuture<Long> getUsages(String app, String env, String category, String key, int days);
+    CompletableFuture<Map<String, Long>> getUsagesByDate(String app, String env, String category, String key, int days);
+    CompletableFuture<Map<String, Long>> getAllUsages(String app, String env, String category, int days);
+
+    CompletableFuture<String> ping();
+    CompletableFuture<List<String>> getApps();
+    CompletableFuture<List<String>> getEnvironments(String app);
+    CompletableFuture<List<String>> getCategories(String app, String env);
+    CompletableFuture<List<String>> getKeys(String app, String env, String category);
+
+    /**
+     * stops the client's threads and closes idle connections, requests in flight still complete
+     */
+    @Override
+    void close();
+}
@@ -1,48 +1,515 @@
 package com.rei.trailregister.client;
 
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.gson.Gson;
+
+/**
+ * Counts usages in memory and sends them to the server in one request per app and environment at a fixed interval.
+ * Recording a usage that's been seen before only looks the counter up and adds to it, nothing is allocated. Sending
+ * takes what each counter gained since the last accepted send, so usages recorded while a batch is in flight, or held
+ * by a batch that failed, go in the next one.
+ * <p>
+ * At most {@code maxKeys} keys are held, counters that sat idle through a send are evicted to make room. Once full, a
+ * usage of a new key is handled by the {@link OverflowPolicy}, spilled usages go to a newline delimited file that's
+ * sent to {@code POST /_ingest} once batches are going through again, and is picked up again after a restart. The
+ * file is sent {@value #REPLAY_CHUNK_LINES} lines at a time and how far the server got is kept next to it, so a
+ * failed replay carries on where it stopped rather than sending everything again. Records the server rejects are
+ * logged and skipped.
+ * <p>
+ * App and environment batches are sent in parallel, and after a failed send the next one waits twice as long, up to
+ * {@link #MAX_BACKOFF_MILLIS}. {@link #close()} sends what's left.
+ */
+public class BatchingTrailRegisterClient extends AbstractTrailRegisterClient implements Closeable {
+	public static final int DEFAULT_MAX_KEYS = 100_000;
+	public static final long MAX_BACKOFF_MILLIS = 60_000;
+	public static final long MAX_BLOCK_MILLIS = 1000;
+	static final String INGEST_PATH = "/_ingest";
+	static final int REPLAY_CHUNK_LINES = 1000;
+	private static final int SEND_THREADS = 4;
 
-public class BatchingTrailRegisterClient extends AbstractTrailRegisterClient {
-	// yes, holy crap, 3 levels...
-	private ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, Integer>>> data = new ConcurrentHashMap<>();
+	// app, env, category, key - looked up level by level so recording doesn't build a composite key
+	private ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, UsageCounter>>>> counters =
+	        new ConcurrentHashMap<>();
+	// evicted counters get one more drain, for increments from threads that looked them up just before
+	private Queue<Runnable> retired = new ConcurrentLinkedQueue<>();
+	private Semaphore slots;
+	private OverflowPolicy overflow;
+	private Path spillFile;
+	private Path replayFile;
+	// bytes of the replay file the server has taken
+	private Path replayOffsetFile;
+	private Writer spill;
+	private Gson json = new Gson();
+
+	private LongAdder sent = new LongAdder();
+	private LongAdder dropped = new LongAdder();
+	private LongAdder spilled = new LongAdder();
+	private long intervalMillis;
+	private int failures;
+	private long retryAt;
+	private int replayFailures;
+	private long replayAt;
 
 	private ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-	
+	private ExecutorService senders = Executors.newFixedThreadPool(SEND_THREADS, r -> {
+	    Thread t = new Thread(r, "trail-register-sender");
+	    t.setDaemon(true);
+	    return t;
+	});
+
 	public BatchingTrailRegisterClient(String baseUrl, long interval, TimeUnit unit) {
+		this(baseUrl, interval, unit, DEFAULT_MAX_KEYS, OverflowPolicy.DROP, null);
+	}
+
+	/**
+	 * @param spillFile where usages are spilled, only needed for {@link OverflowPolicy#SPILL}
+	 */
+	public BatchingTrailRegisterClient(String baseUrl, long interval, TimeUnit unit, int maxKeys, OverflowPolicy overflow,
+	                                   Path spillFile) {
 		super(baseUrl);
+		if (overflow == OverflowPolicy.SPILL && spillFile == null) {
+		    throw new IllegalArgumentException("spilling needs a spill file");
+		}
+		this.slots = new Semaphore(maxKeys);
+		this.overflow = overflow;
+		this.spillFile = spillFile;
+		this.replayFile = spillFile == null ? null : Paths.get(spillFile + ".replay");
+		this.replayOffsetFile = spillFile == null ? null : Paths.get(spillFile + ".replay.offset");
+		this.intervalMillis = unit.toMillis(interval);
 		executor.scheduleWithFixedDelay(this::sendBatch, interval, interval, unit);
 	}
-	
+
 	@Override
 	public void recordUsage(String app, String env, String category, String key) {
-	    String appEnvKey = app + "|" + env;
-	    
-		data.compute(appEnvKey, (k, v) -> v == null ? new ConcurrentHashMap<>() : v)
-		    .compute(category, (k, v) -> v == null ? new ConcurrentHashMap<>() : v)
-			.compute(key, (k, v) -> v == null ? 1 : v + 1);
+	    record(app, env, category, key, 1, true);
+	}
+
+	/**
+	 * @return the counter for a key, the same one every time, for callers that record it often. Held counters don't
+	 *         count towards the key limit.
+	 */
+	public UsageCounter counter(String app, String env, String category, String key) {
+	    while (true) {
+	        UsageCounter counter = keys(app, env, category).computeIfAbsent(key, k -> new UsageCounter());
+	        if (counter.pin()) {
+	            return counter;
+	        }
+	        // evicted since it was looked up
+	        keys(app, env, category).remove(key, counter);
+	    }
+	}
+
+	/**
+	 * @return usages recorded but not sent yet, not counting spilled ones
+	 */
+	public long getPending() {
+	    long pending = 0;
+	    for (Map<String, ConcurrentMap<String, ConcurrentMap<String, UsageCounter>>> envs : counters.values()) {
+	        for (Map<String, ConcurrentMap<String, UsageCounter>> categories : envs.values()) {
+	            for (Map<String, UsageCounter> keys : categories.values()) {
+	                for (UsageCounter counter : keys.values()) {
+	                    pending += counter.getPending();
+	                }
+	            }
+	        }
+	    }
+	    return pending;
+	}
+
+	/**
+	 * @return usages the server has accepted in batches
+	 */
+	public long getSent() {
+	    return sent.sum();
+	}
+
+	/**
+	 * @return usages of new keys dropped because the client was full, or because they couldn't be spilled
+	 */
+	public long getDropped() {
+	    return dropped.sum();
+	}
+
+	/**
+	 * @return usages written to the spill file because the client was full
+	 */
+	public long getSpilled() {
+	    return spilled.sum();
+	}
+
+	/**
+	 * stops sending at intervals, sends what's been counted since the last batch and closes the spill file. With
+	 * {@link OverflowPolicy#SPILL} usages the server doesn't take are spilled, to be sent by the next client using the
+	 * file, otherwise they're lost.
+	 */
+	@Override
+	public void close() {
+	    executor.shutdown();
+	    try {
+	        executor.awaitTermination(10, TimeUnit.SECONDS);
+	    } catch (InterruptedException e) {
+	        Thread.currentThread().interrupt();
+	    }
+	    drainRetired();
+	    if (!sendCounters() && spillFile != null) {
+	        spillUnsent();
+	    }
+	    synchronized (this) {
+	        closeSpill();
+	    }
+	    senders.shutdown();
+	}
+
+	private void record(String app, String env, String category, String key, int num, boolean mayBlock) {
+	    UsageCounter counter = find(app, env, category, key);
+	    if (counter == null) {
+	        counter = create(app, env, category, key, num, mayBlock);
+	    }
+	    if (counter != null) {
+	        counter.add(num);
+	    }
+	}
+
+	private UsageCounter find(String app, String env, String category, String key) {
+	    ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, UsageCounter>>> envs = counters.get(app);
+	    ConcurrentMap<String, ConcurrentMap<String, UsageCounter>> categories = envs == null ? null : envs.get(env);
+	    ConcurrentMap<String, UsageCounter> keys = categories == null ? null : categories.get(category);
+	    return keys == null ? null : keys.get(key);
+	}
+
+	private ConcurrentMap<String, UsageCounter> keys(String app, String env, String category) {
+	    return counters.computeIfAbsent(app, a -> new ConcurrentHashMap<>())
+	                   .computeIfAbsent(env, e -> new ConcurrentHashMap<>())
+	                   .computeIfAbsent(category, c -> new ConcurrentHashMap<>());
+	}
+
+	/**
+	 * @return a new counter holding one of the slots, or null if there's no room and the usage was dropped or spilled
+	 */
+	private UsageCounter create(String app, String env, String category, String key, int num, boolean mayBlock) {
+	    if (!acquireSlot(mayBlock)) {
+	        if (overflow == OverflowPolicy.SPILL) {
+	            spill(app, env, category, key, num);
+	        } else {
+	            dropped.add(num);
+	        }
+	        return null;
+	    }
+	    UsageCounter created = new UsageCounter();
+	    UsageCounter existing = keys(app, env, category).putIfAbsent(key, created);
+	    if (existing != null) {
+	        slots.release();
+	        return existing;
+	    }
+	    return created;
+	}
+
+	private boolean acquireSlot(boolean mayBlock) {
+	    if (overflow != OverflowPolicy.BLOCK || !mayBlock) {
+	        return slots.tryAcquire();
+	    }
+	    try {
+	        // room is only freed by a send going through, so while the server is down waiting longer wouldn't help
+	        return slots.tryAcquire(MAX_BLOCK_MILLIS, TimeUnit.MILLISECONDS);
+	    } catch (InterruptedException e) {
+	        Thread.currentThread().interrupt();
+	        return false;
+	    }
+	}
+
+	private void spill(String app, String env, String category, String key, long num) {
+	    Map<String, Object> record = new LinkedHashMap<>();
+	    record.put("app", app);
+	    record.put("env", env);
+	    record.put("category", category);
+	    record.put("key", key);
+	    record.put("date", DateTimeFormatter.BASIC_ISO_DATE.format(LocalDate.now()));
+	    record.put("num", num);
+	    String line = json.toJson(record) + "\n";
+	    synchronized (this) {
+	        try {
+	            if (spill == null) {
+	                // a line cut short by a crash would run into the first one written now
+	                dropIncompleteLine(spillFile);
+	                spill = Files.newBufferedWriter(spillFile, StandardCharsets.UTF_8, CREATE, APPEND);
+	            }
+	            // a whole line at a time, so the file holds every usage spilled if the process dies
+	            spill.write(line);
+	            spill.flush();
+	        } catch (IOException e) {
+	            // not the recording thread's problem, it's counted as dropped and the file reopened next time
+	            logger.warn("unable to spill usage data to " + spillFile + ", dropping it", e);
+	            closeSpill();
+	            dropped.add(num);
+	            return;
+	        }
+	    }
+	    spilled.add(num);
 	}
 
 	private void sendBatch() {
-	    data.forEach((appEnv, appEnvData) -> {
-	        if (appEnvData.isEmpty()) { return; }
-	        
+	    if (System.currentTimeMillis() < retryAt) {
+	        return;
+	    }
+	    drainRetired();
+	    if (!sendCounters()) {
+	        failures++;
+	        retryAt = System.currentTimeMillis() + backoff(failures);
+	        return;
+	    }
+	    failures = 0;
+	    // failed replays back off on their own, so a file the server can't take doesn't hold up batches
+	    if (spillFile != null && System.currentTimeMillis() >= replayAt) {
+	        if (replaySpilled()) {
+	            replayFailures = 0;
+	        } else {
+	            replayFailures++;
+	            replayAt = System.currentTimeMillis() + backoff(replayFailures);
+	        }
+	    }
+	}
+
+	private long backoff(int failures) {
+	    return Math.min(intervalMillis << Math.min(failures - 1, 30), MAX_BACKOFF_MILLIS);
+	}
+
+	private void drainRetired() {
+	    for (Runnable counter = retired.poll(); counter != null; counter = retired.poll()) {
+	        counter.run();
+	    }
+	}
+
+	/**
+	 * @return whether every app and environment's batch was accepted
+	 */
+	private boolean sendCounters() {
+	    List<Future<Boolean>> sends = new ArrayList<>();
+	    counters.forEach((app, envs) -> envs.forEach((env, categories) -> {
+	        sends.add(senders.submit(() -> send(app, env, categories)));
+	    }));
+	    boolean ok = true;
+	    for (Future<Boolean> send : sends) {
+	        try {
+	            ok &= send.get();
+	        } catch (InterruptedException e) {
+	            Thread.currentThread().interrupt();
+	            return false;
+	        } catch (ExecutionException e) {
+	            logger.warn("failed to send usage data", e.getCause());
+	            ok = false;
+	        }
+	    }
+	    return ok;
+	}
+
+	private void spillUnsent() {
+	    counters.forEach((app, envs) -> envs.forEach((env, categories) -> categories.forEach((category, keys) -> {
+	        keys.forEach((key, counter) -> {
+	            long left = counter.unsent(Integer.MAX_VALUE);
+	            if (left > 0) {
+	                counter.sent(left);
+	                spill(app, env, category, key, left);
+	            }
+	        });
+	    })));
+	}
+
+	/**
+	 * sends one app and environment's batch, then evicts the counters that had nothing to send
+	 */
+	private boolean send(String app, String env, Map<String, ConcurrentMap<String, UsageCounter>> categories) {
+	    Map<String, Map<String, Integer>> batch = new HashMap<>();
+	    Map<UsageCounter, Long> batched = new HashMap<>();
+	    categories.forEach((category, keys) -> keys.forEach((key, counter) -> {
+	        long delta = counter.unsent(Integer.MAX_VALUE);
+	        if (delta > 0) {
+	            batch.computeIfAbsent(category, c -> new HashMap<>()).put(key, (int) delta);
+	            batched.put(counter, delta);
+	        }
+	    }));
+
+	    if (!batch.isEmpty()) {
+	        boolean accepted = false;
 	        try {
-		        String app = appEnv.substring(0, appEnv.indexOf("|"));
-		        String env = appEnv.substring(appEnv.indexOf("|")+1, appEnv.length());
-		        
-		        int response = post(app, env, appEnvData);
-		        if (response == 201) {
-		            appEnvData.clear();
-		        }
+	            accepted = post(app, env, batch) == 201;
 	        } catch (IOException e) {
-	            // don't replace if we failed, try again
+	            // put it back and try again next time
 	            logger.warn("failed to send usage data", e);
 	        }
-	    });
+	        if (!accepted) {
+	            // left unsent to go in the next batch
+	            return false;
+	        }
+	        batched.forEach((counter, delta) -> {
+	            counter.sent(delta);
+	            sent.add(delta);
+	        });
+	    }
+
+	    categories.forEach((category, keys) -> keys.forEach((key, counter) -> {
+	        if (!batched.containsKey(counter) && counter.retire() && keys.remove(key, counter)) {
+	            slots.release();
+	            retired.add(() -> {
+	                long left = counter.unsent(Integer.MAX_VALUE);
+	                if (left > 0) {
+	                    counter.sent(left);
+	                    // the sending thread can't wait for room it would free itself
+	                    record(app, env, category, key, (int) left, false);
+	                }
+	            });
+	        }
+	    }));
+	    return true;
+	}
+
+	/**
+	 * sends spilled usages to the server a chunk at a time, a file that's being replayed is set aside so spilling
+	 * carries on into a new one
+	 */
+	private boolean replaySpilled() {
+	    try {
+	        synchronized (this) {
+	            closeSpill();
+	            if (!Files.exists(replayFile) && Files.exists(spillFile)) {
+	                Files.move(spillFile, replayFile);
+	            }
+	        }
+	        if (!Files.exists(replayFile)) {
+	            return true;
+	        }
+	        dropIncompleteLine(replayFile);
+	        long offset = readReplayOffset();
+	        while (offset < Files.size(replayFile)) {
+	            offset = replayChunk(offset);
+	            writeReplayOffset(offset);
+	        }
+	        Files.delete(replayFile);
+	        Files.deleteIfExists(replayOffsetFile);
+	        return true;
+	    } catch (IOException | RuntimeException e) {
+	        logger.warn("failed to replay spilled usage data from " + replayFile, e);
+	        return false;
+	    }
+	}
+
+	/**
+	 * sends up to {@value #REPLAY_CHUNK_LINES} lines from the offset, skipping a line the server rejects
+	 *
+	 * @return the offset to carry on from
+	 */
+	private long replayChunk(long offset) throws IOException {
+	    ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+	    long[] lineEnds = new long[REPLAY_CHUNK_LINES];
+	    int lines = 0;
+	    try (InputStream in = new BufferedInputStream(Files.newInputStream(replayFile))) {
+	        if (in.skip(offset) != offset) {
+	            throw new IOException(replayFile + " is shorter than the " + offset + " bytes already replayed");
+	        }
+	        int b;
+	        while (lines < REPLAY_CHUNK_LINES && (b = in.read()) != -1) {
+	            chunk.write(b);
+	            if (b == '\n') {
+	                lineEnds[lines++] = offset + chunk.size();
+	            }
+	        }
+	    }
+	    long written = ingest(INGEST_PATH, chunk.toByteArray(), "application/x-ndjson");
+	    if (written < 0) {
+	        return lineEnds[lines - 1];
+	    }
+	    // everything before the rejected line was written, it will never be accepted so it's skipped
+	    int rejected = (int) written;
+	    long start = rejected == 0 ? offset : lineEnds[rejected - 1];
+	    String line = new String(chunk.toByteArray(), (int) (start - offset), (int) (lineEnds[rejected] - start),
+	                             StandardCharsets.UTF_8);
+	    logger.warn("skipping spilled usage the server rejected: {}", line.trim());
+	    return lineEnds[rejected];
+	}
+
+	private long readReplayOffset() throws IOException {
+	    if (!Files.exists(replayOffsetFile)) {
+	        return 0;
+	    }
+	    return Long.parseLong(new String(Files.readAllBytes(replayOffsetFile), StandardCharsets.UTF_8).trim());
+	}
+
+	private void writeReplayOffset(long offset) throws IOException {
+	    Path tmp = Paths.get(replayOffsetFile + ".tmp");
+	    Files.write(tmp, Long.toString(offset).getBytes(StandardCharsets.UTF_8));
+	    Files.move(tmp, replayOffsetFile, REPLACE_EXISTING, ATOMIC_MOVE);
+	}
+
+	private void closeSpill() {
+	    if (spill != null) {
+	        try {
+	            spill.close();
+	        } catch (IOException e) {
+	            logger.warn("failed to close spill file " + spillFile, e);
+	        }
+	        spill = null;
+	    }
+	}
+
+	/**
+	 * truncates the file after its last newline, a record that was cut short can't be read
+	 */
+	private static void dropIncompleteLine(Path file) throws IOException {
+	    if (!Files.exists(file)) {
+	        return;
+	    }
+	    try (FileChannel channel = FileChannel.open(file, READ, WRITE)) {
+	        long end = channel.size();
+	        ByteBuffer b = ByteBuffer.allocate(1);
+	        while (end > 0) {
+	            b.clear();
+	            channel.read(b, end - 1);
+	            if (b.get(0) == '\n') {
+	                break;
+	            }
+	            end--;
+	        }
+	        if (end < channel.size()) {
+	            logger.warn("dropping {} bytes of a spilled usage cut short at the end of {}", channel.size() - end, file);
+	            channel.truncate(end);
+	        }
+	    }
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,210 @@
+package com.rei.trailregister.client;
+
+import static com.rei.trailregister.client.AbstractTrailRegisterClient.DEFAULT_DAYS;
+import static com.rei.trailregister.client.AbstractTrailRegisterClient.JSON;
+import static com.rei.trailregister.client.AbstractTrailRegisterClient.path;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.squareup.okhttp.Callback;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Dispatcher;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+
+/**
+ * Sends each call as soon as it's made on a pool of kept alive connections and completes its future from OkHttp's
+ * dispatcher threads. At most {@code maxInFlight} requests are outstanding, calls beyond that fail right away with a
+ * {@link RejectedExecutionException} rather than queueing without bound behind a slow server.
+ */
+public class DirectAsyncTrailRegisterClient implements AsyncTrailRegisterClient {
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+    private static final long KEEP_ALIVE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final Gson json = new Gson();
+    private final OkHttpClient client = new OkHttpClient();
+    private final ExecutorService dispatcherExecutor;
+    private final Semaphore inFlight;
+    private final String baseUrl;
+    private volatile boolean closed;
+
+    public DirectAsyncTrailRegisterClient(String baseUrl) {
+        this(baseUrl, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public DirectAsyncTrailRegisterClient(String baseUrl, int maxInFlight) {
+        this.baseUrl = baseUrl;
+        this.inFlight = new Semaphore(maxInFlight);
+        AtomicInteger threads = new AtomicInteger();
+        dispatcherExecutor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "trail-register-client-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        Dispatcher dispatcher = new Dispatcher(dispatcherExecutor);
+        // every request goes to the same host, so the per host limit (5 by default) would be the real limit
+        dispatcher.setMaxRequests(maxInFlight);
+        dispatcher.setMaxRequestsPerHost(maxInFlight);
+        client.setDispatcher(dispatcher);
+        client.setConnectionPool(new ConnectionPool(maxInFlight, KEEP_ALIVE_MILLIS));
+        client.setConnectTimeout(300, TimeUnit.MILLISECONDS);
+        client.setReadTimeout(10, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public CompletableFuture<Void> recordUsage(String app, String env, String category, String key) {
+        Request request = new Request.Builder().url(baseUrl + path(app, env, category, key))
+                                               .post(RequestBody.create(JSON, ""))
+                                               .build();
+        return send(request, response -> null);
+    }
+
+    @Override
+    public CompletableFuture<Void> recordUsages(String app, String env, Map<String, Map<String, Integer>> usages) {
+        Request request = new Request.Builder().url(baseUrl + path(app, env))
+                                               .post(RequestBody.create(JSON, json.toJson(usages)))
+                                               .build();
+        return send(request, response -> null);
+    }
+
+    @Override
+    public CompletableFuture<Long> getUsages(String app, String env, String category, String key) {
+        return getUsages(app, env, category, key, DEFAULT_DAYS);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Long>> getUsagesByDate(String app, String env, String category, String key) {
+        return getUsagesByDate(app, env, category, key, DEFAULT_DAYS);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Long>> getAllUsages(String app, String env, String category) {
+        return getAllUsages(app, env, category, DEFAULT_DAYS);
+    }
+
+    @Override
+    public CompletableFuture<Long> getUsages(String app, String env, String category, String key, int days) {
+        return get(path(app, env, category, key) + "?days=" + days, new TypeToken<Long>(){});
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Long>> getUsagesByDate(String app, String env, String category, String key,
+                                                               int days) {
+        return get(path(app, env, category, key) + "?by_date=true&days=" + days, new TypeToken<Map<String, Long>>(){});
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Long>> getAllUsages(String app, String env, String category, int days) {
+        return get(path(app, env, category) + "?days=" + days, new TypeToken<Map<String, Long>>(){});
+    }
+
+    @Override
+    public CompletableFuture<String> ping() {
+        return get("/_ping", new TypeToken<String>(){});
+    }
+
+    @Override
+    public CompletableFuture<List<String>> getApps() {
+        return get("/", new TypeToken<List<String>>(){});
+    }
+
+    @Override
+    public CompletableFuture<List<String>> getEnvironments(String app) {
+        return get(path(app), new TypeToken<List<String>>(){});
+    }
+
+    @Override
+    public CompletableFuture<List<String>> getCategories(String app, String env) {
+        return get(path(app, env), new TypeToken<List<String>>(){});
+    }
+
+    @Override
+    public CompletableFuture<List<String>> getKeys(String app, String env, String category) {
+        return get(path(app, env, category) + "?keys=true", new TypeToken<List<String>>(){});
+    }
+
+    /**
+     * @return requests sent that haven't been answered yet
+     */
+    public int getInFlight() {
+        return client.getDispatcher().getRunningCallCount();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        dispatcherExecutor.shutdown();
+        client.getConnectionPool().evictAll();
+    }
+
+    private <T> CompletableFuture<T> get(String path, TypeToken<T> type) {
+        Request request = new Request.Builder().url(baseUrl + path).get().build();
+        return send(request, response -> json.fromJson(response.body().charStream(), type.getType()));
+    }
+
+    private <T> CompletableFuture<T> send(Request request, ResponseReader<T> reader) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        // checked first as well, a call the dispatcher's executor turns away stays counted as running by the dispatcher
+        if (closed) {
+            result.completeExceptionally(new RejectedExecutionException("client for " + baseUrl + " is closed"));
+            return result;
+        }
+        if (!inFlight.tryAcquire()) {
+            result.completeExceptionally(new RejectedExecutionException("too many requests in flight to " + baseUrl));
+            return result;
+        }
+        try {
+            client.newCall(request).enqueue(new Callback() {
+                @Override
+                public void onFailure(Request failed, IOException e) {
+                    inFlight.release();
+                    result.completeExceptionally(e);
+                }
+
+                @Override
+                public void onResponse(Response response) {
+                    inFlight.release();
+                    // the body is always closed so its connection goes back to the pool
+                    try {
+                        if (!response.isSuccessful()) {
+                            throw new IllegalStateException(request.method() + " " + request.urlString() + " returned "
+                                                            + response.code());
+                        }
+                        result.complete(reader.read(response));
+                    } catch (IOException | RuntimeException e) {
+                        result.completeExceptionally(e);
+                    } finally {
+                        try {
+                            response.body().close();
+                        } catch (IOException e) {
+                            // nothing left to read, nothing to do
+                        }
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // the dispatcher's executor turns calls away once the client is closed, even one that raced close()
+            inFlight.release();
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    @FunctionalInterface
+    private interface ResponseReader<T> {
+        T read(Response response) throws IOException;
+    }
+}
@@ -0,0 +1,19 @@
+package com.rei.trailregister.client;
+
+/**
+ * what a {@link BatchingTrailRegisterClient} does with a usage of a new key once it's holding as many keys as it may
+ */
+public enum OverflowPolicy {
+    /** the usage is counted as dropped and forgotten */
+    DROP,
+    /**
+     * the recording thread waits until a batch is sent and room is freed, for up to
+     * {@link BatchingTrailRegisterClient#MAX_BLOCK_MILLIS}, then the usage is dropped
+     */
+    BLOCK,
+    /**
+     * the usage is appended to a local file, which is sent once the server takes batches again. It's dropped if the
+     * file can't be written.
+     */
+    SPILL
+}
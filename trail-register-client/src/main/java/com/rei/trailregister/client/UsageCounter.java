@@ -0,0 +1,69 @@
+package com.rei.trailregister.client;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A handle on one key's count in a {@link BatchingTrailRegisterClient}. Callers recording the same key over and over can
+ * hold on to it and skip the lookup, incrementing is a single uncontended add. Held counters are never evicted.
+ */
+public final class UsageCounter {
+    private final LongAdder count = new LongAdder();
+    // how much of count the server has, only written by the thread sending this counter's batch
+    private volatile long sent;
+    private boolean pinned;
+    private boolean retired;
+
+    UsageCounter() {}
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(int num) {
+        count.add(num);
+    }
+
+    /**
+     * @return usages recorded but not sent yet
+     */
+    public long getPending() {
+        return count.sum() - sent;
+    }
+
+    /**
+     * @return what's been recorded since the last send, at most {@code max}. Increments made while it's being sent
+     *         aren't lost, they show up next time.
+     */
+    long unsent(long max) {
+        return Math.min(count.sum() - sent, max);
+    }
+
+    /**
+     * marks an amount from {@link #unsent(long)} as accepted by the server
+     */
+    void sent(long delta) {
+        sent += delta;
+    }
+
+    /**
+     * keeps the counter from being evicted, fails if it already has been
+     */
+    synchronized boolean pin() {
+        if (retired) {
+            return false;
+        }
+        pinned = true;
+        return true;
+    }
+
+    /**
+     * marks an idle counter as evicted, fails if it's held or has anything pending
+     */
+    synchronized boolean retire() {
+        if (pinned || getPending() != 0) {
+            return false;
+        }
+        retired = true;
+        return true;
+    }
+}
@@ -0,0 +1,252 @@
+package com.rei.trailregister;
+
+import static java.util.stream.Collectors.toList;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Caches the results of usage queries for a short time so dashboards polling the same urls don't re-read storage (and
+ * every peer) on each poll. Each category has a generation that local writes bump, cached results from an older
+ * generation are treated as misses. Writes made on other nodes are picked up once the entry expires. Partial results
+ * are never cached.
+ * <p>
+ * A category's generation is forgotten once it hasn't been used for as long as an entry lives, so categories that
+ * stop being read or written don't hold memory. Generations come from one sequence, so one that's created again never
+ * matches an entry cached under the one it replaced.
+ */
+public class CachingUsageRepository implements UsageRepository {
+    private final UsageRepository delegate;
+    private final Cache<Query, Cached> cache;
+    private final Cache<List<String>, AtomicLong> generations;
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public CachingUsageRepository(UsageRepository delegate, long maxEntries, long ttl, TimeUnit unit) {
+        this.delegate = delegate;
+        this.cache = CacheBuilder.newBuilder()
+                                 .maximumSize(maxEntries)
+                                 .expireAfterWrite(ttl, unit)
+                                 .recordStats()
+                                 .build();
+        this.generations = CacheBuilder.newBuilder().expireAfterAccess(ttl, unit).build();
+    }
+
+    @Override
+    public void recordUsages(UsageKey key, int num, LocalDate date) {
+        delegate.recordUsages(key, num, date);
+        // bumped after the write so a query that loaded the old value can't be cached under the new generation
+        bump(key.getApp(), key.getEnv(), key.getCategory());
+    }
+
+    @Override
+    public void recordUsages(Map<UsageKey, Integer> usages, LocalDate date) {
+        delegate.recordUsages(usages, date);
+        usages.keySet().stream()
+              .map(k -> Arrays.asList(k.getApp(), k.getEnv(), k.getCategory()))
+              .distinct()
+              .forEach(c -> bump(c.get(0), c.get(1), c.get(2)));
+    }
+
+    @Override
+    public List<String> getApps() {
+        return delegate.getApps();
+    }
+
+    @Override
+    public List<String> getEnvironments(String app) {
+        return delegate.getEnvironments(app);
+    }
+
+    @Override
+    public List<String> getCategories(String app, String env) {
+        return delegate.getCategories(app, env);
+    }
+
+    @Override
+    public List<String> getKeys(String app, String env, String category) {
+        return delegate.getKeys(app, env, category);
+    }
+
+    @Override
+    public List<String> getKeys(String app, String env, String category, String after, int limit) {
+        return delegate.getKeys(app, env, category, after, limit);
+    }
+
+    @Override
+    public Map<String, Long> getUsagesByDate(UsageKey key, int days) {
+        return get(new Query(QueryType.BY_DATE, key.getApp(), key.getEnv(), key.getCategory(), key.getKey(), days),
+                   () -> Collections.unmodifiableMap(delegate.getUsagesByDate(key, days)));
+    }
+
+    @Override
+    public long getUsages(UsageKey key, int days) {
+        return get(new Query(QueryType.TOTAL, key.getApp(), key.getEnv(), key.getCategory(), key.getKey(), days),
+                   () -> delegate.getUsages(key, days));
+    }
+
+    @Override
+    public Map<String, Long> getAllUsages(String app, String env, String category, int days) {
+        return get(new Query(QueryType.CATEGORY, app, env, category, null, days),
+                   () -> Collections.unmodifiableMap(delegate.getAllUsages(app, env, category, days)));
+    }
+
+    @Override
+    public Map<String, Long> getUsages(String app, String env, String category, Collection<String> keys, int days) {
+        // the keys stand in for the key, in order so the same keys asked for differently share an entry
+        return get(new Query(QueryType.KEYS, app, env, category, sorted(keys), days),
+                   () -> Collections.unmodifiableMap(delegate.getUsages(app, env, category, keys, days)));
+    }
+
+    @Override
+    public Map<String, Map<String, Long>> getUsagesByDate(String app, String env, String category, Collection<String> keys,
+                                                          int days) {
+        return get(new Query(QueryType.KEYS_BY_DATE, app, env, category, sorted(keys), days),
+                   () -> Collections.unmodifiableMap(delegate.getUsagesByDate(app, env, category, keys, days)));
+    }
+
+    @Override
+    public Map<String, Map<String, Long>> getAllUsagesByDate(String app, String env, String category, int days) {
+        return get(new Query(QueryType.CATEGORY_BY_DATE, app, env, category, null, days),
+                   () -> Collections.unmodifiableMap(delegate.getAllUsagesByDate(app, env, category, days)));
+    }
+
+    @Override
+    public Map<String, Long> getRankedUsages(String app, String env, String category, int days, Ranking ranking) {
+        // the ranking stands in for the key
+        return get(new Query(QueryType.RANKED, app, env, category, ranking.toParams(), days),
+                   () -> Collections.unmodifiableMap(delegate.getRankedUsages(app, env, category, days, ranking)));
+    }
+
+    @Override
+    public void runCompaction() {
+        delegate.runCompaction();
+    }
+
+    @Override
+    public Map<String, Object> getCompactionStatus() {
+        return delegate.getCompactionStatus();
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return cache.stats().evictionCount();
+    }
+
+    public long getSize() {
+        return cache.size();
+    }
+
+    /**
+     * @return categories whose generation is still kept
+     */
+    long getCategoriesTracked() {
+        generations.cleanUp();
+        return generations.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T get(Query query, Supplier<T> loader) {
+        long generation = generation(query.app, query.env, query.category).get();
+        Cached cached = cache.getIfPresent(query);
+        if (cached != null && cached.generation == generation) {
+            hits.increment();
+            return (T) cached.value;
+        }
+        misses.increment();
+        T value = loader.get();
+        // results missing some peers are not cached so the next poll tries them again
+        if (!PartialResults.isPartial()) {
+            cache.put(query, new Cached(generation, value));
+        }
+        return value;
+    }
+
+    private AtomicLong generation(String app, String env, String category) {
+        try {
+            return generations.get(Arrays.asList(app, env, category), () -> new AtomicLong(sequence.incrementAndGet()));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause()); // creating an AtomicLong doesn't throw
+        }
+    }
+
+    private void bump(String app, String env, String category) {
+        generation(app, env, category).set(sequence.incrementAndGet());
+    }
+
+    private static List<String> sorted(Collection<String> keys) {
+        return keys.stream().distinct().sorted().collect(toList());
+    }
+
+    private enum QueryType { TOTAL, BY_DATE, CATEGORY, RANKED, KEYS, KEYS_BY_DATE, CATEGORY_BY_DATE }
+
+    private static class Query {
+        private final QueryType type;
+        private final String app;
+        private final String env;
+        private final String category;
+        private final Object key;
+        private final int days;
+
+        Query(QueryType type, String app, String env, String category, Object key, int days) {
+            this.type = type;
+            this.app = app;
+            this.env = env;
+            this.category = category;
+            this.key = key;
+            this.days = days;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) { return true; }
+            if (!(obj instanceof Query)) { return false; }
+            Query other = (Query) obj;
+            return type == other.type && days == other.days && Objects.equals(app, other.app)
+                    && Objects.equals(env, other.env) && Objects.equals(category, other.category)
+                    && Objects.equals(key, other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, app, env, category, key, days);
+        }
+    }
+
+    private static class Cached {
+        private final long generation;
+        private final Object value;
+
+        Cached(long generation, Object value) {
+            this.generation = generation;
+            this.value = value;
+        }
+    }
+}
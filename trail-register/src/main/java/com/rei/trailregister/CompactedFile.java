@@ -0,0 +1,172 @@
+package com.rei.trailregister;
+
+import static java.time.format.DateTimeFormatter.BASIC_ISO_DATE;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The compacted counts of a single key, stored as a header followed by (int epoch day, long count) entries sorted by
+ * day. Files are memory mapped and ranges are found with a binary search, so reading a window costs the same no matter
+ * how much history the key has. Files written by older versions as "yyyyMMdd count" lines are still readable and get
+ * rewritten in the binary format the next time compaction runs, however few new date files the key has.
+ */
+class CompactedFile {
+    static final int MAGIC = 0x54524344; // "TRCD"
+    static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12; // magic, version, entry count
+    private static final int ENTRY_SIZE = 12;
+
+    static final CompactedFile EMPTY = new CompactedFile(ByteBuffer.allocate(0), 0);
+
+    private final ByteBuffer buffer;
+    private final int size;
+
+    private CompactedFile(ByteBuffer buffer, int size) {
+        this.buffer = buffer;
+        this.size = size;
+    }
+
+    /**
+     * @return the compacted file at the path, or {@link #EMPTY} if there isn't one
+     */
+    static CompactedFile read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file)) {
+            long length = channel.size();
+            if (length == 0) {
+                return EMPTY;
+            }
+            ByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, length);
+            if (length < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                return fromText(file);
+            }
+            if (buffer.getInt(4) != VERSION) {
+                throw new IOException(file + " has unsupported compacted file version " + buffer.getInt(4));
+            }
+            int size = buffer.getInt(8);
+            if (length < HEADER_SIZE + (long) size * ENTRY_SIZE) {
+                throw new IOException(file + " is truncated, expected " + size + " entries");
+            }
+            return new CompactedFile(buffer, size);
+        } catch (NoSuchFileException e) {
+            return EMPTY;
+        }
+    }
+
+    /**
+     * @return whether the file is in an older text format and should be rewritten, false if there's no file
+     */
+    static boolean isText(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {}
+            return channel.size() > 0 && (magic.hasRemaining() || magic.getInt(0) != MAGIC);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    static void write(Path file, SortedMap<Integer, Long> counts) throws IOException {
+        try (OutputStream os = Files.newOutputStream(file);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(counts.size());
+            for (Map.Entry<Integer, Long> e : counts.entrySet()) {
+                out.writeInt(e.getKey());
+                out.writeLong(e.getValue());
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the count on the epoch day
+     */
+    long get(int day) {
+        int i = lowerBound(day);
+        return i < size && day(i) == day ? count(i) : 0;
+    }
+
+    /**
+     * @return the sum of the counts from one epoch day to another, both inclusive
+     */
+    long sum(int fromDay, int toDay) {
+        long total = 0;
+        for (int i = lowerBound(fromDay); i < size && day(i) <= toDay; i++) {
+            total += count(i);
+        }
+        return total;
+    }
+
+    void forEach(DayCountConsumer consumer) {
+        for (int i = 0; i < size; i++) {
+            consumer.accept(day(i), count(i));
+        }
+    }
+
+    /**
+     * @return the index of the first entry on or after the day
+     */
+    private int lowerBound(int day) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (day(mid) < day) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int day(int i) {
+        return buffer.getInt(HEADER_SIZE + i * ENTRY_SIZE);
+    }
+
+    private long count(int i) {
+        return buffer.getLong(HEADER_SIZE + i * ENTRY_SIZE + 4);
+    }
+
+    private static CompactedFile fromText(Path file) throws IOException {
+        SortedMap<Integer, Long> counts = new TreeMap<>();
+        try {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                if (line.isEmpty()) { continue; }
+                String[] parts = line.split(" ");
+                int day = (int) LocalDate.parse(parts[0], BASIC_ISO_DATE).toEpochDay();
+                counts.merge(day, Long.parseLong(parts[1]), Long::sum);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("unable to read text compacted file " + file, e);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + counts.size() * ENTRY_SIZE);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(counts.size());
+        counts.forEach((day, count) -> buffer.putInt(day).putLong(count));
+        return new CompactedFile(buffer, counts.size());
+    }
+
+    @FunctionalInterface
+    interface DayCountConsumer {
+        void accept(int day, long count);
+    }
+}
@@ -3,19 +3,34 @@ package com.rei.trailregister;
 import static java.time.format.DateTimeFormatter.BASIC_ISO_DATE;
 
 import java.sql.Driver;
+import java.sql.Statement;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
 import org.apache.commons.dbcp2.BasicDataSource;
 import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.PreparedBatch;
+import org.skife.jdbi.v2.Query;
 import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
 import org.skife.jdbi.v2.util.LongColumnMapper;
 import org.skife.jdbi.v2.util.StringColumnMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rei.trailregister.metrics.LatencyHistogram;
+import com.rei.trailregister.metrics.Metrics;
 
 public class DatabaseUsageRepository implements UsageRepository {
+    private static Logger logger = LoggerFactory.getLogger(DatabaseUsageRepository.class);
 
     private static final int MAX_CONNECTION = 100;
     
@@ -28,8 +43,26 @@ public class DatabaseUsageRepository implements UsageRepository {
     private static final String UPDATE = 
             "update usages set num = num + ? where app = ? and env = ? and category = ? and \"key\" = ? and date = ?";
     
+    private static final String SELECT_ALL_KEYS = "select distinct app, env, category, \"key\" from usages";
+
+    // other instances may share the database, so the index is reloaded to pick up keys they wrote
+    private static final long INDEX_REFRESH_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final LatencyHistogram QUERIES = Metrics.timer("trail_register_db_query_seconds",
+                                                                  "time taken by database statements");
+
     private DBI dbi;
 
+    private volatile HierarchyIndex index;
+    // keys recorded while the index is being reloaded, added to the new one before it replaces the old one
+    private List<UsageKey> addedDuringReload;
+    private final Object indexLock = new Object();
+    private final ScheduledExecutorService indexRefresher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "db-index-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+
     public DatabaseUsageRepository(String url, String user, String pass, Supplier<Driver> driverProvider) {
         BasicDataSource ds = new BasicDataSource();
         ds.setUrl(url);
@@ -39,6 +72,12 @@ public class DatabaseUsageRepository implements UsageRepository {
         ds.setMaxTotal(MAX_CONNECTION);
         
         dbi = new DBI(ds);
+        dbi.setTimingCollector((elapsedNanos, ctx) -> {
+            QUERIES.record(elapsedNanos);
+            Trace.add("db query", elapsedNanos);
+        });
+        indexRefresher.scheduleWithFixedDelay(this::refreshIndex, INDEX_REFRESH_MILLIS, INDEX_REFRESH_MILLIS,
+                                              TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -59,43 +98,140 @@ public class DatabaseUsageRepository implements UsageRepository {
             }
             h.update(UPDATE, num, key.getApp(), key.getEnv(), key.getCategory(), key.getKey(), date.toEpochDay());
         });
+        addToIndex(key);
+    }
+
+    /**
+     * updates all existing rows in one batch and inserts the missing ones in a second, all in a single transaction. If
+     * the driver doesn't report update counts or another writer inserts one of the rows first, the transaction is
+     * rolled back and each key is recorded individually instead.
+     */
+    @Override
+    public void recordUsages(Map<UsageKey, Integer> usages, LocalDate date) {
+        if (usages.isEmpty()) {
+            return;
+        }
+        List<Map.Entry<UsageKey, Integer>> entries = new ArrayList<>(usages.entrySet());
+        long epochDay = date.toEpochDay();
+        try {
+            dbi.inTransaction((h, status) -> {
+                PreparedBatch update = h.prepareBatch(UPDATE);
+                entries.forEach(e -> update.add(e.getValue(), e.getKey().getApp(), e.getKey().getEnv(),
+                                                e.getKey().getCategory(), e.getKey().getKey(), epochDay));
+                int[] updated = update.execute();
+
+                PreparedBatch insert = h.prepareBatch(INSERT);
+                for (int i = 0; i < updated.length; i++) {
+                    if (updated[i] == Statement.SUCCESS_NO_INFO) {
+                        throw new BatchNotSupportedException();
+                    }
+                    if (updated[i] == 0) {
+                        UsageKey key = entries.get(i).getKey();
+                        insert.add(key.getApp(), key.getEnv(), key.getCategory(), key.getKey(), epochDay, entries.get(i).getValue());
+                    }
+                }
+                if (insert.size() > 0) {
+                    insert.execute();
+                }
+                return null;
+            });
+            usages.keySet().forEach(this::addToIndex);
+        } catch (BatchNotSupportedException | UnableToExecuteStatementException e) {
+            logger.debug("batch insert of {} usages failed, recording individually", entries.size(), e);
+            entries.forEach(entry -> recordUsages(entry.getKey(), entry.getValue(), date));
+        }
     }
 
     @Override
     public List<String> getApps() {
-        return dbi.withHandle(h -> {
-            return h.createQuery("select distinct app from usages").map(StringColumnMapper.INSTANCE).list();
-        });
+        return index().getApps();
     }
 
     @Override
     public List<String> getEnvironments(String app) {
-        return dbi.withHandle(h -> {
-            return h.createQuery("select distinct env from usages where app = ?").bind(0, app).map(StringColumnMapper.INSTANCE).list();
-        });
+        return index().getEnvironments(app);
     }
 
     @Override
     public List<String> getCategories(String app, String env) {
-        return dbi.withHandle(h -> {
-            return h.createQuery("select distinct category from usages where app = ? and env = ?")
-                    .bind(0, app)
-                    .bind(1, env)
-                    .map(StringColumnMapper.INSTANCE)
-                    .list();
-        });
+        return index().getCategories(app, env);
     }
 
     @Override
     public List<String> getKeys(String app, String env, String category) {
-        return dbi.withHandle(h -> {
-            return h.createQuery("select distinct \"key\" from usages where app = ? and env = ? and category = ?")
-                    .bind(0, app)
-                    .bind(1, env)
-                    .bind(2, category)
-                    .map(StringColumnMapper.INSTANCE)
-                    .list();
-        });
+        return index().getKeys(app, env, category);
+    }
+
+    @Override
+    public List<String> getKeys(String app, String env, String category, String after, int limit) {
+        return index().getKeys(app, env, category, after, limit);
+    }
+
+    /**
+     * the index, loaded by the first caller while any others wait for it. It's reloaded in the background after that.
+     */
+    private HierarchyIndex index() {
+        HierarchyIndex current = index;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (index == null) {
+                reloadIndex();
+            }
+            return index;
+        }
+    }
+
+    private void refreshIndex() {
+        if (index == null) {
+            return; // not needed yet, the first read loads it
+        }
+        try {
+            reloadIndex();
+        } catch (RuntimeException e) {
+            logger.warn("unable to refresh key index, keeping the old one", e);
+        }
+    }
+
+    void reloadIndex() {
+        synchronized (indexLock) {
+            addedDuringReload = new ArrayList<>();
+        }
+        HierarchyIndex loaded = new HierarchyIndex();
+        try {
+            dbi.useHandle(h -> {
+                h.createQuery(SELECT_ALL_KEYS).forEach(row -> {
+                    loaded.add((String) row.get("app"), (String) row.get("env"), (String) row.get("category"),
+                               (String) row.get("key"));
+                });
+            });
+            synchronized (indexLock) {
+                addedDuringReload.forEach(key -> loaded.add(key.getApp(), key.getEnv(), key.getCategory(), key.getKey()));
+                index = loaded;
+            }
+        } finally {
+            synchronized (indexLock) {
+                addedDuringReload = null;
+            }
+        }
+    }
+
+    private void addToIndex(UsageKey key) {
+        synchronized (indexLock) {
+            HierarchyIndex current = index;
+            if (current != null) {
+                current.add(key.getApp(), key.getEnv(), key.getCategory(), key.getKey());
+            }
+            if (addedDuringReload != null) {
+                addedDuringReload.add(key);
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        indexRefresher.shutdownNow();
     }
 
     @Override
@@ -129,7 +265,72 @@ public class DatabaseUsageRepository implements UsageRepository {
         });
     }
     
+    @Override
+    public Map<String, Long> getAllUsages(String app, String env, String category, int days) {
+        return dbi.withHandle(h -> {
+            return h.createQuery("select \"key\", sum(case when date > ? then num else 0 end) from usages "
+                                 + "where app = ? and env = ? and category = ? group by \"key\"")
+                    .bind(0, LocalDate.now().minusDays(days).toEpochDay())
+                    .bind(1, app)
+                    .bind(2, env)
+                    .bind(3, category)
+                    .fold(new HashMap<>(), (m, rs, ctx) -> {
+                        m.put(rs.getString(1), rs.getLong(2));
+                        return m;
+                    });
+        });
+    }
+
+    /**
+     * sorted and filtered by the database, which only sends back the ranked rows
+     */
+    @Override
+    public Map<String, Long> getRankedUsages(String app, String env, String category, int days, Ranking ranking) {
+        if (ranking.getLimit() == 0) {
+            return new LinkedHashMap<>();
+        }
+        long since = LocalDate.now().minusDays(days).toEpochDay();
+        String total = "sum(case when date > ? then num else 0 end)";
+        StringBuilder sql = new StringBuilder("select \"key\", " + total + " from usages "
+                                              + "where app = ? and env = ? and category = ? group by \"key\"");
+        List<Object> args = new ArrayList<>(Arrays.asList(since, app, env, category));
+        List<String> having = new ArrayList<>();
+        if (ranking.getMin() != Long.MIN_VALUE) {
+            having.add(total + " >= ?");
+            args.add(since);
+            args.add(ranking.getMin());
+        }
+        if (ranking.getMax() != Long.MAX_VALUE) {
+            having.add(total + " <= ?");
+            args.add(since);
+            args.add(ranking.getMax());
+        }
+        if (!having.isEmpty()) {
+            sql.append(" having ").append(String.join(" and ", having));
+        }
+        sql.append(" order by 2 ").append(ranking.isAscending() ? "asc" : "desc").append(", \"key\"");
+
+        return dbi.withHandle(h -> {
+            Query<Map<String, Object>> query = h.createQuery(sql.toString());
+            for (int i = 0; i < args.size(); i++) {
+                query.bind(i, args.get(i));
+            }
+            // portable where limit isn't, the driver stops reading after the ranked rows
+            if (ranking.getLimit() != Ranking.UNLIMITED) {
+                query.setMaxRows(ranking.getLimit());
+            }
+            return query.fold(new LinkedHashMap<>(), (m, rs, ctx) -> {
+                m.put(rs.getString(1), rs.getLong(2));
+                return m;
+            });
+        });
+    }
+
     DBI getDbi() {
         return dbi;
     }
+
+    private static class BatchNotSupportedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
 }
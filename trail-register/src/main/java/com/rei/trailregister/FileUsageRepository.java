@@ -6,22 +6,35 @@ import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
+import java.util.function.Supplier;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
@@ -34,14 +47,37 @@ import com.google.common.base.Preconditions;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.Striped;
+import com.rei.trailregister.metrics.LatencyHistogram;
+import com.rei.trailregister.metrics.Metrics;
 
 public class FileUsageRepository implements UsageRepository {
     private static final String INVALID_CHARS = ":*?\"<>|/\\";
     private static final int MIN_COMPACTION_SIZE = 100;
     private static Logger logger = LoggerFactory.getLogger(FileUsageRepository.class);
     private static final String COMPACTED_FILE = "_data";
+    private static final String COMPACTION_TMP = "_data.tmp";
+    private static final String COMPACTION_MANIFEST = "_compaction";
+    private static final String COMPACTION_PROGRESS = "_compaction.progress";
+    private static final String INDEX_SNAPSHOT = "_index";
+    // slack for file systems with coarse modification times
+    private static final long MTIME_SLACK_MILLIS = 2000;
+    private static final int KEY_LOCK_STRIPES = 1024;
+
+    private static final LongAdder FILE_READS = Metrics.counter("trail_register_file_reads_total",
+                                                                "date and compacted files read");
+    private static final LongAdder FILE_WRITES = Metrics.counter("trail_register_file_writes_total",
+                                                                 "date and compacted files written");
+    private static final LongAdder COMPACTED_KEYS = Metrics.counter("trail_register_compacted_keys_total",
+                                                                    "keys whose date files were compacted");
+    private static final LongAdder COMPACTED_FILES = Metrics.counter("trail_register_compacted_files_total",
+                                                                     "date files merged into compacted files");
+    private static final LatencyHistogram COMPACTIONS = Metrics.timer("trail_register_compaction_seconds",
+                                                                      "time taken by compaction passes");
 
     private Path basedir;
+    private boolean readOnly;
+    private HierarchyIndex index;
 
     private LoadingCache<String, Lock> locks = CacheBuilder.newBuilder()
                                                          .expireAfterAccess(1, TimeUnit.MINUTES)
@@ -52,14 +88,43 @@ public class FileUsageRepository implements UsageRepository {
         }
     });
 
-    private ReadWriteLock compactionLock = new ReentrantReadWriteLock(false);
+    // strongly held stripes, so a key always maps to the same lock however long it's held. Callers only keep the
+    // read or write half, which doesn't keep a weakly cached lock from being collected and replaced while held.
+    private Striped<ReadWriteLock> keyLocks = Striped.readWriteLock(KEY_LOCK_STRIPES);
+
+    private AtomicBoolean compacting = new AtomicBoolean();
+    private Set<String> compactedCategories = ConcurrentHashMap.newKeySet();
+    private AtomicLong keysScanned = new AtomicLong();
+    private AtomicLong keysCompacted = new AtomicLong();
+    private AtomicLong filesMerged = new AtomicLong();
+    private volatile long lastCompactionStart;
+    private volatile long lastCompactionMillis = -1;
 
     public FileUsageRepository(Path basedir) {
+        this(basedir, false);
+    }
+
+    /**
+     * @param readOnly to read another node's data without changing it, for imports. Interrupted compactions aren't
+     *                 finished, the index snapshot isn't written and writes and compaction are refused.
+     */
+    FileUsageRepository(Path basedir, boolean readOnly) {
         this.basedir = basedir;
+        this.readOnly = readOnly;
+        this.index = loadIndex();
+        if (!readOnly) {
+            recoverCompaction();
+        } else if (Files.exists(basedir.resolve(COMPACTION_PROGRESS))) {
+            logger.warn("{} has an unfinished compaction, keys it was merging may be read with their date files twice",
+                        basedir);
+        }
     }
 
     @Override
     public void recordUsages(UsageKey key, int num, LocalDate date) {
+        if (readOnly) {
+            throw new UnsupportedOperationException(basedir + " is open read only");
+        }
         checkArgument("app", key.getApp());
         checkArgument("env", key.getEnv());
         checkArgument("category", key.getCategory());
@@ -67,8 +132,9 @@ public class FileUsageRepository implements UsageRepository {
 
         int[] count = new int[] {0};
 
-        withLock(compactionLock.readLock(), () -> {
-            withLock(Paths.get(basedir.toString(), key.getApp(), key.getEnv(), key.getCategory(), key.getKey(), BASIC_ISO_DATE.format(date)),
+        Path keyDir = Paths.get(basedir.toString(), key.getApp(), key.getEnv(), key.getCategory(), key.getKey());
+        withLock(keyLock(keyDir).readLock(), () -> {
+            withLock(keyDir.resolve(BASIC_ISO_DATE.format(date)),
                      Errors.rethrow().wrap(dateFile -> {
 
                     if (!Files.exists(dateFile)) {
@@ -77,74 +143,203 @@ public class FileUsageRepository implements UsageRepository {
                         count[0] = readDataFile(dateFile);
                     }
                     Files.write(dateFile, String.valueOf(count[0]+num).getBytes());
+                    FILE_WRITES.increment();
             }));
         });
+        index.add(key.getApp(), key.getEnv(), key.getCategory(), key.getKey());
     }
 
     @Override
     public List<String> getApps() {
-        return list();
+        return index.getApps();
     }
 
     @Override
     public List<String> getEnvironments(String app) {
-        return list(app);
+        checkNavigation(app);
+        return index.getEnvironments(app);
     }
 
     @Override
     public List<String> getCategories(String app, String env) {
-        return list(app, env);
+        checkNavigation(app, env);
+        return index.getCategories(app, env);
     }
 
     @Override
     public List<String> getKeys(String app, String env, String category) {
-        return list(app, env, category);
+        checkNavigation(app, env, category);
+        return index.getKeys(app, env, category);
     }
 
-    private List<String> list(String... parts) {
-        try {
-            Path path = Paths.get(basedir.toString(), parts);
-            Preconditions.checkArgument(!path.toString().contains(".."), "may not contain '..' or '.'!");
+    @Override
+    public List<String> getKeys(String app, String env, String category, String after, int limit) {
+        checkNavigation(app, env, category);
+        return index.getKeys(app, env, category, after, limit);
+    }
 
-            if (!Files.exists(path)) {
-                return Collections.emptyList();
-            }
-            try (Stream<Path> stream = Files.list(path)) {
-                return stream.filter(Files::isDirectory)
-                        .map(Path::getFileName)
-                        .map(Path::toString)
-                        .collect(Collectors.toList());
+    @Override
+    public void shutdown() {
+        if (!readOnly) {
+            saveIndex();
+        }
+    }
 
+    private void checkNavigation(String... parts) {
+        Path path = Paths.get(basedir.toString(), parts);
+        Preconditions.checkArgument(!path.toString().contains(".."), "may not contain '..' or '.'!");
+    }
+
+    /**
+     * reads the index snapshot and rescans only the categories whose directories changed since it was written, or
+     * builds the index from the directory tree if there is no usable snapshot.
+     */
+    private HierarchyIndex loadIndex() {
+        Path snapshot = basedir.resolve(INDEX_SNAPSHOT);
+        HierarchyIndex loaded = new HierarchyIndex();
+        long since = Long.MIN_VALUE;
+        if (Files.exists(snapshot)) {
+            try {
+                loaded = HierarchyIndex.load(snapshot);
+                since = loaded.getCreatedAt() - MTIME_SLACK_MILLIS;
+            } catch (IOException e) {
+                logger.warn("unable to read index snapshot, rebuilding it", e);
             }
+        }
+
+        long start = System.currentTimeMillis();
+        int[] rescanned = {0};
+        HierarchyIndex index = loaded;
+        long changedSince = since;
+        listDirs(basedir).forEach(app -> {
+            listDirs(app).forEach(env -> {
+                listDirs(env).forEach(category -> {
+                    String a = app.getFileName().toString();
+                    String e = env.getFileName().toString();
+                    String c = category.getFileName().toString();
+                    if (!index.contains(a, e, c) || modifiedSince(category, changedSince)) {
+                        index.addAll(a, e, c, listDirs(category).stream()
+                                                                .map(k -> k.getFileName().toString())
+                                                                .collect(toList()));
+                        rescanned[0]++;
+                    }
+                });
+            });
+        });
+        logger.info("loaded index in {}ms, rescanned {} categories", System.currentTimeMillis() - start, rescanned[0]);
+        return index;
+    }
+
+    private void saveIndex() {
+        if (!index.isModified() && Files.exists(basedir.resolve(INDEX_SNAPSHOT))) {
+            return;
+        }
+        try {
+            index.save(basedir.resolve(INDEX_SNAPSHOT));
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            logger.warn("unable to write index snapshot", e);
+        }
+    }
+
+    private static boolean modifiedSince(Path dir, long time) {
+        try {
+            return Files.getLastModifiedTime(dir).toMillis() >= time;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private static List<Path> listDirs(Path dir) {
+        if (!Files.isDirectory(dir)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> stream = Files.list(dir)) {
+            return stream.filter(Files::isDirectory).collect(toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 
     @Override
     public Map<String, Long> getUsagesByDate(UsageKey key, int days) {
-        Map<String, Integer> compactedData = readCompactedFile(key.getApp(), key.getEnv(), key.getCategory(), key.getKey());
-
-        LocalDate now = LocalDate.now();
-        return new TreeMap<>(IntStream.range(0, days)
-                                      .mapToObj(now::minusDays)
-                                      .collect(toMap(BASIC_ISO_DATE::format,
-                                                     date -> getUsages(key.getApp(), key.getEnv(), key.getCategory(),
-                                                                       key.getKey(), date, compactedData))));
+        return withReadLock(key, () -> {
+            CompactedFile compactedData = readCompactedFile(key.getApp(), key.getEnv(), key.getCategory(), key.getKey());
+
+            LocalDate now = LocalDate.now();
+            return new TreeMap<>(IntStream.range(0, days)
+                                          .mapToObj(now::minusDays)
+                                          .collect(toMap(BASIC_ISO_DATE::format,
+                                                         date -> getUsages(key.getApp(), key.getEnv(), key.getCategory(),
+                                                                           key.getKey(), date, compactedData))));
+        });
     }
 
     @Override
     public long getUsages(UsageKey key, int days) {
-        Map<String, Integer> compactedData = readCompactedFile(key.getApp(), key.getEnv(), key.getCategory(), key.getKey());
+        return withReadLock(key, () -> {
+            Path keyDir = Paths.get(basedir.toString(), key.getApp(), key.getEnv(), key.getCategory(), key.getKey());
+            if (!Files.exists(keyDir)) {
+                return 0L;
+            }
+            LocalDate now = LocalDate.now();
+            return Errors.rethrow().get(() -> sumKeyDir(keyDir, now.minusDays(days - 1), now));
+        });
+    }
+
+    /**
+     * sums every key in the category with one pass over the category directory, listing each key directory once instead
+     * of checking for a file per day.
+     */
+    @Override
+    public Map<String, Long> getAllUsages(String app, String env, String category, int days) {
+        checkArgument("app", app);
+        checkArgument("env", env);
+        checkArgument("category", category);
+
+        Path categoryDir = Paths.get(basedir.toString(), app, env, category);
+        Map<String, Long> result = new HashMap<>();
+        if (!Files.exists(categoryDir)) {
+            return result;
+        }
 
         LocalDate now = LocalDate.now();
-        return IntStream.range(0, days)
-                        .mapToLong(delta -> getUsages(key.getApp(), key.getEnv(), key.getCategory(),
-                                                key.getKey(), now.minusDays(delta), compactedData))
-                        .sum();
+        LocalDate from = now.minusDays(days - 1);
+
+        long listing = Trace.start();
+        try (DirectoryStream<Path> keyDirs = Files.newDirectoryStream(categoryDir, Files::isDirectory)) {
+            for (Path keyDir : keyDirs) {
+                result.put(keyDir.getFileName().toString(),
+                           withReadLock(keyDir, Errors.rethrow().wrap(() -> sumKeyDir(keyDir, from, now))));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            Trace.end("list category", listing);
+        }
+        return result;
+    }
+
+    private long sumKeyDir(Path keyDir, LocalDate fromDate, LocalDate toDate) throws IOException {
+        String from = BASIC_ISO_DATE.format(fromDate);
+        String to = BASIC_ISO_DATE.format(toDate);
+        long total = 0;
+        long listing = Trace.start();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(keyDir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.equals(COMPACTED_FILE)) {
+                    total += readCompactedFile(file).sum((int) fromDate.toEpochDay(), (int) toDate.toEpochDay());
+                } else if (isDateFile(name) && name.compareTo(from) >= 0 && name.compareTo(to) <= 0) {
+                    total += readDataFile(file);
+                }
+            }
+        } finally {
+            Trace.end("list key", listing);
+        }
+        return total;
     }
 
-    protected long getUsages(String app, String env, String category, String key, LocalDate date, Map<String, Integer> compactedData) {
+    protected long getUsages(String app, String env, String category, String key, LocalDate date, CompactedFile compactedData) {
         checkArgument("app", app);
         checkArgument("env", env);
         checkArgument("category", category);
@@ -154,79 +349,226 @@ public class FileUsageRepository implements UsageRepository {
         String dateString = BASIC_ISO_DATE.format(date);
         Path dateFile = Paths.get(basedir.toString(), app, env, category, key, dateString);
 
-        int uncompactedNum = Files.exists(dateFile) ? readDataFile(dateFile) : 0;
-        return uncompactedNum + compactedData.computeIfAbsent(dateString, k -> 0);
+        long checking = Trace.start();
+        boolean exists = Files.exists(dateFile);
+        Trace.end("stat date file", checking);
+        int uncompactedNum = exists ? readDataFile(dateFile) : 0;
+        return uncompactedNum + compactedData.get((int) date.toEpochDay());
     }
 
+    /**
+     * compacts every key with enough date files. Only the key being compacted is locked, so writes to other keys carry
+     * on. Categories are checkpointed as they finish, so a pass that was interrupted picks up where it left off.
+     */
+    @Override
     public void runCompaction() {
-        getApps().forEach(app -> {
-            getEnvironments(app).forEach(env -> {
-                getCategories(app, env).parallelStream().forEach(cat -> {
-                    getKeys(app, env, cat).forEach(Errors.rethrow().wrap((String key) -> runCompaction(app, env, cat, key)));
+        if (readOnly) {
+            return;
+        }
+        if (!compacting.compareAndSet(false, true)) {
+            logger.info("compaction already running");
+            return;
+        }
+        lastCompactionStart = System.currentTimeMillis();
+        keysScanned.set(0);
+        keysCompacted.set(0);
+        filesMerged.set(0);
+        try {
+            getApps().forEach(app -> {
+                getEnvironments(app).forEach(env -> {
+                    getCategories(app, env).parallelStream().forEach(cat -> {
+                        String category = app + "/" + env + "/" + cat;
+                        if (compactedCategories.contains(category)) { return; }
+
+                        getKeys(app, env, cat).forEach(Errors.rethrow().wrap((String key) -> runCompaction(app, env, cat, key)));
+
+                        appendProgress("category " + category);
+                        compactedCategories.add(category);
+                    });
                 });
             });
-        });
+            compactedCategories.clear();
+            Files.deleteIfExists(basedir.resolve(COMPACTION_PROGRESS));
+            saveIndex();
+        } catch (IOException e) {
+            logger.error("failed to finish compaction", e);
+        } finally {
+            lastCompactionMillis = System.currentTimeMillis() - lastCompactionStart;
+            COMPACTIONS.record(TimeUnit.MILLISECONDS.toNanos(lastCompactionMillis));
+            compacting.set(false);
+            logger.info("compaction compacted {} of {} keys, merging {} files in {}ms", keysCompacted, keysScanned,
+                        filesMerged, lastCompactionMillis);
+        }
     }
 
+    @Override
+    public Map<String, Object> getCompactionStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("running", compacting.get());
+        status.put("startedAt", lastCompactionStart);
+        status.put("durationMillis", compacting.get() ? System.currentTimeMillis() - lastCompactionStart : lastCompactionMillis);
+        status.put("keysScanned", keysScanned.get());
+        status.put("keysCompacted", keysCompacted.get());
+        status.put("filesMerged", filesMerged.get());
+        status.put("categoriesCompleted", compactedCategories.size());
+        return status;
+    }
+
+    /**
+     * merges every date file of the key into a new compacted file in one pass and swaps it in with a rename. The
+     * merged date files are listed in a manifest first so a crash between the rename and deleting them can be finished
+     * later without counting them twice.
+     */
     private void runCompaction(String app, String env, String category, String key) throws IOException {
+        Path keyDir = Paths.get(basedir.toString(), app, env, category, key);
+        keysScanned.incrementAndGet();
 
-        if (getDateFiles(app, env, category, key).size() < MIN_COMPACTION_SIZE) { return; }
+        if (!needsCompaction(keyDir, getDateFiles(keyDir))) { return; }
 
-        withLock(compactionLock.writeLock(), Errors.rethrow().wrap(() -> {
-            List<Path> dateFiles = getDateFiles(app, env, category, key);
-            if (dateFiles.size() < MIN_COMPACTION_SIZE) { return; }
+        withLock(keyLock(keyDir).writeLock(), Errors.rethrow().wrap(() -> {
+            recoverCompaction(keyDir);
 
-            logger.info("running compaction on {}/{}/{}/{}", app, env, category, key);
+            List<Path> dateFiles = getDateFiles(keyDir);
+            if (!needsCompaction(keyDir, dateFiles)) { return; }
 
-            dateFiles.forEach(withLock(Errors.rethrow().wrap(dateFile -> {
-                 Map<String, Integer> data = readCompactedFile(app, env, category, key);
+            logger.debug("running compaction on {}/{}/{}/{}", app, env, category, key);
 
-                 data.merge(dateFile.getFileName().toString(), readDataFile(dateFile), Integer::sum);
+            // text files from older versions are read here and written back out in the binary format
+            SortedMap<Integer, Long> data = new TreeMap<>();
+            readCompactedFile(keyDir.resolve(COMPACTED_FILE)).forEach(data::put);
+            List<String> merged = new ArrayList<>(dateFiles.size());
+            for (Path dateFile : dateFiles) {
+                String name = dateFile.getFileName().toString();
+                data.merge((int) LocalDate.parse(name, BASIC_ISO_DATE).toEpochDay(), (long) readDataFile(dateFile), Long::sum);
+                merged.add(name);
+            }
 
-                 writeCompactedFile(compactionFile(app, env, category, key), data);
-                 Files.delete(dateFile);
-            })));
+            writeCompactedFile(keyDir.resolve(COMPACTION_TMP), data);
+            Files.write(keyDir.resolve(COMPACTION_MANIFEST), merged);
+            appendProgress("key " + basedir.relativize(keyDir));
+            Files.move(keyDir.resolve(COMPACTION_TMP), keyDir.resolve(COMPACTED_FILE),
+                       StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            finishCompaction(keyDir);
+            appendProgress("done " + basedir.relativize(keyDir));
+
+            keysCompacted.incrementAndGet();
+            filesMerged.addAndGet(merged.size());
+            COMPACTED_KEYS.increment();
+            COMPACTED_FILES.add(merged.size());
         }));
     }
 
-    private List<Path> getDateFiles(String app, String env, String category, String key) throws IOException {
-        try (Stream<Path> stream = Files.list(Paths.get(basedir.toString(), app, env, category, key))) {
-            return stream.filter(p -> !p.getFileName().toString().equals(COMPACTED_FILE)).collect(toList());
-        }
+    // text files from older versions are upgraded even when there are few date files to merge
+    private static boolean needsCompaction(Path keyDir, List<Path> dateFiles) throws IOException {
+        return dateFiles.size() >= MIN_COMPACTION_SIZE || CompactedFile.isText(keyDir.resolve(COMPACTED_FILE));
     }
 
-    private Map<String, Integer> readCompactedFile(String app, String env, String category, String key) {
+    private void recoverCompaction() {
+        Path progress = basedir.resolve(COMPACTION_PROGRESS);
+        if (!Files.exists(progress)) {
+            return;
+        }
         try {
-            Path file = compactionFile(app, env, category, key);
-            if (!Files.exists(file)) {
-                return new LinkedHashMap<>();
+            Set<String> started = new LinkedHashSet<>();
+            for (String line : Files.readAllLines(progress)) {
+                if (line.startsWith("category ")) {
+                    compactedCategories.add(line.substring("category ".length()));
+                } else if (line.startsWith("key ")) {
+                    started.add(line.substring("key ".length()));
+                } else if (line.startsWith("done ")) {
+                    started.remove(line.substring("done ".length()));
+                }
+            }
+            for (String key : started) {
+                Path keyDir = basedir.resolve(key);
+                logger.info("finishing interrupted compaction of {}", key);
+                withLock(keyLock(keyDir).writeLock(), Errors.rethrow().wrap(() -> recoverCompaction(keyDir)));
             }
-            return Files.readAllLines(file).stream()
-                    .map(l -> l.split(" "))
-                    .collect(toMap(parts -> parts[0], parts -> Integer.parseInt(parts[1])));
-        } catch (NumberFormatException | IOException e) {
+            logger.info("resuming compaction after {} completed categories", compactedCategories.size());
+        } catch (IOException e) {
+            logger.error("unable to read compaction progress", e);
+        }
+    }
+
+    // callers must hold the key's write lock
+    private void recoverCompaction(Path keyDir) throws IOException {
+        if (Files.exists(keyDir.resolve(COMPACTION_TMP))) {
+            // never swapped in, the date files are all still there
+            Files.delete(keyDir.resolve(COMPACTION_TMP));
+            Files.deleteIfExists(keyDir.resolve(COMPACTION_MANIFEST));
+        } else if (Files.exists(keyDir.resolve(COMPACTION_MANIFEST))) {
+            finishCompaction(keyDir);
+        }
+    }
+
+    private void finishCompaction(Path keyDir) throws IOException {
+        Path manifest = keyDir.resolve(COMPACTION_MANIFEST);
+        for (String dateFile : Files.readAllLines(manifest)) {
+            Files.deleteIfExists(keyDir.resolve(dateFile));
+        }
+        Files.delete(manifest);
+    }
+
+    private synchronized void appendProgress(String line) {
+        try {
+            Files.write(basedir.resolve(COMPACTION_PROGRESS), Collections.singletonList(line),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private List<Path> getDateFiles(Path keyDir) throws IOException {
+        try (Stream<Path> stream = Files.list(keyDir)) {
+            return stream.filter(p -> isDateFile(p.getFileName().toString())).collect(toList());
+        }
+    }
+
+    private static boolean isDateFile(String name) {
+        return !name.startsWith("_");
+    }
+
+    private CompactedFile readCompactedFile(String app, String env, String category, String key) {
+        return readCompactedFile(compactionFile(app, env, category, key));
+    }
+
+    private CompactedFile readCompactedFile(Path file) {
+        FILE_READS.increment();
+        long reading = Trace.start();
+        try {
+            return CompactedFile.read(file);
+        } catch (IOException e) {
             logger.error("failed to read compacted file", e);
             throw new IllegalStateException("unable to read compacted file!", e);
+        } finally {
+            Trace.end("read _data", reading);
         }
     }
 
-    private void writeCompactedFile(Path file, Map<String, Integer> data) {
+    private void writeCompactedFile(Path file, SortedMap<Integer, Long> data) {
+        FILE_WRITES.increment();
         try {
-            Files.write(file, data.entrySet().stream().map(e -> e.getKey() + " " + e.getValue()).collect(toList()));
-        } catch (NumberFormatException | IOException e) {
+            CompactedFile.write(file, data);
+        } catch (IOException e) {
             logger.error("failed to write compacted file", e);
             throw new IllegalStateException("unable to write compacted file!", e);
         }
     }
 
     private int readDataFile(Path dateFile) {
+        FILE_READS.increment();
+        long reading = Trace.start();
         try {
             return Integer.parseInt(new String(Files.readAllBytes(dateFile)));
         } catch (NumberFormatException e) {
             return 0; // file contains invalid data somehow
+        } catch (NoSuchFileException e) {
+            return 0; // compacted since it was listed
         } catch (IOException e) {
             logger.error("failed to read data file", e);
             throw new RuntimeException(e);
+        } finally {
+            Trace.end("read date file", reading);
         }
     }
 
@@ -238,7 +580,9 @@ public class FileUsageRepository implements UsageRepository {
         return path -> {
             Lock lock = locks.getUnchecked(path.toString());
             try {
+                long waiting = Trace.start();
                 lock.lock();
+                Trace.end("lock wait", waiting);
                 work.accept(path);
             } finally {
                 lock.unlock();
@@ -250,16 +594,42 @@ public class FileUsageRepository implements UsageRepository {
         withLock(work::accept).accept(p);
     }
 
+    ReadWriteLock keyLock(Path keyDir) {
+        return keyLocks.get(keyDir.toString());
+    }
+
+    private <T> T withReadLock(UsageKey key, Supplier<T> work) {
+        checkArgument("app", key.getApp());
+        checkArgument("env", key.getEnv());
+        checkArgument("category", key.getCategory());
+        checkArgument("key", key.getKey());
+        return withReadLock(Paths.get(basedir.toString(), key.getApp(), key.getEnv(), key.getCategory(), key.getKey()), work);
+    }
+
+    private <T> T withReadLock(Path keyDir, Supplier<T> work) {
+        Lock lock = keyLock(keyDir).readLock();
+        try {
+            long waiting = Trace.start();
+            lock.lock();
+            Trace.end("lock wait", waiting);
+            return work.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private void withLock(Lock lock, Runnable work) {
         try {
+            long waiting = Trace.start();
             lock.lock();
+            Trace.end("lock wait", waiting);
             work.run();
         } finally {
             lock.unlock();
         }
     }
 
-    private void checkArgument(String name, String value) {
+    static void checkArgument(String name, String value) {
         Preconditions.checkArgument(value != null, "{0} may not be null", name);
         Preconditions.checkArgument(CharMatcher.anyOf(INVALID_CHARS).matchesNoneOf(value), "%s may not contain %s", name, INVALID_CHARS);
         Preconditions.checkArgument(!value.equals("..") && !value.equals("."), "%s must not equal '..' or '.'", name);
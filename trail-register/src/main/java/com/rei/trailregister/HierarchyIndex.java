@@ -0,0 +1,173 @@
+package com.rei.trailregister;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * An in memory trie of app, environment, category and key so listing them doesn't have to go to storage. Names are
+ * kept sorted. The index can be written to a snapshot file and read back to avoid rebuilding it on every start.
+ */
+class HierarchyIndex {
+    private static final int MAGIC = 0x54524958; // "TRIX"
+    private static final int VERSION = 1;
+
+    private final NavigableMap<String, NavigableMap<String, NavigableMap<String, NavigableSet<String>>>> apps =
+            new ConcurrentSkipListMap<>();
+    private volatile boolean modified;
+    private long createdAt;
+
+    /**
+     * @return true if the key wasn't in the index yet
+     */
+    boolean add(String app, String env, String category, String key) {
+        NavigableSet<String> keys = keys(app, env, category);
+        if (keys != null && keys.contains(key)) {
+            return false;
+        }
+        keys = apps.computeIfAbsent(app, a -> new ConcurrentSkipListMap<>())
+                   .computeIfAbsent(env, e -> new ConcurrentSkipListMap<>())
+                   .computeIfAbsent(category, c -> new ConcurrentSkipListSet<>());
+        if (keys.add(key)) {
+            modified = true;
+            return true;
+        }
+        return false;
+    }
+
+    void addAll(String app, String env, String category, Collection<String> keys) {
+        keys.forEach(key -> add(app, env, category, key));
+    }
+
+    List<String> getApps() {
+        return new ArrayList<>(apps.keySet());
+    }
+
+    List<String> getEnvironments(String app) {
+        NavigableMap<String, ?> envs = apps.get(app);
+        return envs == null ? Collections.emptyList() : new ArrayList<>(envs.keySet());
+    }
+
+    List<String> getCategories(String app, String env) {
+        NavigableMap<String, NavigableMap<String, NavigableSet<String>>> envs = apps.get(app);
+        NavigableMap<String, ?> categories = envs == null ? null : envs.get(env);
+        return categories == null ? Collections.emptyList() : new ArrayList<>(categories.keySet());
+    }
+
+    List<String> getKeys(String app, String env, String category) {
+        NavigableSet<String> keys = keys(app, env, category);
+        return keys == null ? Collections.emptyList() : new ArrayList<>(keys);
+    }
+
+    /**
+     * @return at most {@code limit} keys after {@code after}, read off the sorted set without copying the rest
+     */
+    List<String> getKeys(String app, String env, String category, String after, int limit) {
+        NavigableSet<String> keys = keys(app, env, category);
+        if (keys == null) {
+            return Collections.emptyList();
+        }
+        List<String> page = new ArrayList<>();
+        for (String key : after == null ? keys : keys.tailSet(after, false)) {
+            if (page.size() == limit) {
+                break;
+            }
+            page.add(key);
+        }
+        return page;
+    }
+
+    boolean contains(String app, String env, String category) {
+        return keys(app, env, category) != null;
+    }
+
+    boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * @return the time the snapshot this index was read from was started, or 0 if it wasn't read from a snapshot
+     */
+    long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * writes the index to a temporary file and renames it over the snapshot, so a crash never leaves a partial snapshot.
+     */
+    void save(Path file) throws IOException {
+        long startedAt = System.currentTimeMillis();
+        modified = false;
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(startedAt);
+            out.writeInt(apps.size());
+            for (Map.Entry<String, NavigableMap<String, NavigableMap<String, NavigableSet<String>>>> app : apps.entrySet()) {
+                out.writeUTF(app.getKey());
+                out.writeInt(app.getValue().size());
+                for (Map.Entry<String, NavigableMap<String, NavigableSet<String>>> env : app.getValue().entrySet()) {
+                    out.writeUTF(env.getKey());
+                    out.writeInt(env.getValue().size());
+                    for (Map.Entry<String, NavigableSet<String>> category : env.getValue().entrySet()) {
+                        out.writeUTF(category.getKey());
+                        List<String> keys = new ArrayList<>(category.getValue());
+                        out.writeInt(keys.size());
+                        for (String key : keys) {
+                            out.writeUTF(key);
+                        }
+                    }
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static HierarchyIndex load(Path file) throws IOException {
+        HierarchyIndex index = new HierarchyIndex();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not an index snapshot");
+            }
+            index.createdAt = in.readLong();
+            for (int a = in.readInt(); a > 0; a--) {
+                String app = in.readUTF();
+                for (int e = in.readInt(); e > 0; e--) {
+                    String env = in.readUTF();
+                    for (int c = in.readInt(); c > 0; c--) {
+                        String category = in.readUTF();
+                        NavigableSet<String> keys = index.apps.computeIfAbsent(app, x -> new ConcurrentSkipListMap<>())
+                                                              .computeIfAbsent(env, x -> new ConcurrentSkipListMap<>())
+                                                              .computeIfAbsent(category, x -> new ConcurrentSkipListSet<>());
+                        for (int k = in.readInt(); k > 0; k--) {
+                            keys.add(in.readUTF());
+                        }
+                    }
+                }
+            }
+        }
+        return index;
+    }
+
+    private NavigableSet<String> keys(String app, String env, String category) {
+        NavigableMap<String, NavigableMap<String, NavigableSet<String>>> envs = apps.get(app);
+        NavigableMap<String, NavigableSet<String>> categories = envs == null ? null : envs.get(env);
+        return categories == null ? null : categories.get(category);
+    }
+}
@@ -0,0 +1,344 @@
+package com.rei.trailregister;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.time.format.DateTimeFormatter.BASIC_ISO_DATE;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Copies usages from one repository into another. Keys are discovered a category at a time and handed to a bounded
+ * pool of workers in sorted chunks, each worker reads its chunk's counts in one call and writes them back in one batch
+ * per day. An import that fails part way is resumed by starting it again with the same parameters.
+ * <p>
+ * Writes add to what the target holds, so nothing may be written twice. Each chunk's keys are appended to a checkpoint
+ * file before any of it is written, and each day before its batch is written. A batch the target rejects is marked to
+ * be written again, a chunk is marked done once every day is in. Resuming skips done chunks and the days already
+ * written of the others, and copies keys added to the source since in new chunks. A batch the process died in the
+ * middle of counts as written, it's left out rather than possibly counted twice. The checkpoint is deleted once an
+ * import finishes without errors.
+ */
+class Importer implements Runnable {
+    private static Logger logger = LoggerFactory.getLogger(Importer.class);
+
+    static final int DEFAULT_THREADS = 4;
+    static final int DEFAULT_BATCH_SIZE = 500;
+
+    private final UsageRepository from;
+    private final UsageRepository to;
+    private final String source;
+    private final String app;
+    private final String env;
+    private final int days;
+    private final int threads;
+    private final int batchSize;
+    private final Path checkpointFile;
+
+    // app, env, category -> keys of the chunks an earlier run finished, and the chunks it didn't finish
+    private final Map<List<String>, Set<String>> done = new HashMap<>();
+    private final List<Chunk> unfinished = new ArrayList<>();
+    private final AtomicInteger nextChunk = new AtomicInteger();
+    private Writer checkpoint;
+
+    private volatile String state = "starting";
+    private volatile boolean discovering = true;
+    private final AtomicLong startedAt = new AtomicLong();
+    private final LongAdder keysFound = new LongAdder();
+    private final LongAdder keysSkipped = new LongAdder();
+    private final LongAdder keysImported = new LongAdder();
+    private final LongAdder usagesImported = new LongAdder();
+    private final LongAdder chunksFailed = new LongAdder();
+
+    /**
+     * @param source describes where usages are read from, a checkpoint left by an import from somewhere else is
+     *               ignored
+     * @param app only this app, or every app when null
+     * @param env only this environment, or every one when null
+     */
+    Importer(UsageRepository from, UsageRepository to, String source, String app, String env, int days, int threads,
+             int batchSize, Path checkpointFile) {
+        this.from = from;
+        this.to = to;
+        this.source = source;
+        this.app = app;
+        this.env = env;
+        this.days = days;
+        this.threads = threads;
+        this.batchSize = batchSize;
+        this.checkpointFile = checkpointFile;
+    }
+
+    @Override
+    public void run() {
+        startedAt.set(System.currentTimeMillis());
+        state = "running";
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                                                            new ArrayBlockingQueue<>(threads * 2),
+                                                            new ThreadFactoryBuilder().setNameFormat("import-%d").build(),
+                                                            // discovery slows to the workers' pace instead of queueing every key
+                                                            new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            openCheckpoint();
+            for (String a : app != null ? Collections.singletonList(app) : from.getApps()) {
+                for (String e : env != null ? Collections.singletonList(env) : from.getEnvironments(a)) {
+                    for (String category : from.getCategories(a, e)) {
+                        discover(workers, a, e, category);
+                    }
+                }
+            }
+            discovering = false;
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            closeCheckpoint(chunksFailed.sum() == 0);
+            state = chunksFailed.sum() == 0 ? "finished" : "failed";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            state = "failed";
+        } catch (RuntimeException | IOException e) {
+            logger.error("import failed", e);
+            state = "failed";
+        } finally {
+            discovering = false;
+            workers.shutdownNow();
+            try {
+                closeCheckpoint(false);
+            } catch (IOException e) {
+                logger.warn("unable to close import checkpoint", e);
+            }
+        }
+    }
+
+    /**
+     * @return state, counts, rate in keys per second and the estimated seconds left, once every key has been found
+     */
+    Map<String, Object> getProgress() {
+        Map<String, Object> progress = new LinkedHashMap<>();
+        long imported = keysImported.sum();
+        long remaining = keysFound.sum() - keysSkipped.sum() - imported;
+        double elapsedSeconds = Math.max(1, System.currentTimeMillis() - startedAt.get()) / 1000.0;
+        double rate = imported / elapsedSeconds;
+        progress.put("state", state);
+        progress.put("source", source);
+        progress.put("discovering", discovering);
+        progress.put("keysFound", keysFound.sum());
+        progress.put("keysSkipped", keysSkipped.sum());
+        progress.put("keysImported", imported);
+        progress.put("usagesImported", usagesImported.sum());
+        progress.put("chunksFailed", chunksFailed.sum());
+        progress.put("keysPerSecond", Math.round(rate * 10) / 10.0);
+        if (!discovering && rate > 0) {
+            progress.put("etaSeconds", Math.round(remaining / rate));
+        }
+        return progress;
+    }
+
+    boolean isRunning() {
+        return "starting".equals(state) || "running".equals(state);
+    }
+
+    private void discover(ThreadPoolExecutor workers, String a, String e, String category) {
+        List<String> keys = new ArrayList<>(from.getKeys(a, e, category));
+        Collections.sort(keys);
+        keysFound.add(keys.size());
+        Set<String> written = done.getOrDefault(key(a, e, category), Collections.emptySet());
+        // picked up where the earlier run stopped, with the same keys
+        Set<String> resumed = new HashSet<>();
+        unfinished.stream().filter(chunk -> chunk.isIn(a, e, category)).forEach(chunk -> {
+            resumed.addAll(chunk.keys);
+            submit(workers, chunk);
+        });
+        List<String> chunk = new ArrayList<>(batchSize);
+        for (String key : keys) {
+            if (written.contains(key)) {
+                keysSkipped.increment();
+                continue;
+            }
+            if (resumed.contains(key)) {
+                continue;
+            }
+            chunk.add(key);
+            if (chunk.size() == batchSize) {
+                submit(workers, new Chunk(nextChunk.getAndIncrement(), a, e, category, chunk));
+                chunk = new ArrayList<>(batchSize);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            submit(workers, new Chunk(nextChunk.getAndIncrement(), a, e, category, chunk));
+        }
+    }
+
+    private void submit(ThreadPoolExecutor workers, Chunk chunk) {
+        workers.execute(() -> {
+            try {
+                copy(chunk);
+            } catch (RuntimeException | IOException ex) {
+                chunksFailed.increment();
+                logger.error("failed to import {} keys of {}/{}/{} from {}", chunk.keys.size(), chunk.app, chunk.env,
+                             chunk.category, chunk.keys.get(0), ex);
+            }
+        });
+    }
+
+    private void copy(Chunk chunk) throws IOException {
+        String id = String.valueOf(chunk.id);
+        if (!chunk.resumed) {
+            List<String> line = new ArrayList<>(Arrays.asList("chunk", id, chunk.app, chunk.env, chunk.category));
+            line.addAll(chunk.keys);
+            checkpoint(line.toArray(new String[0]));
+        }
+        Map<LocalDate, Map<UsageKey, Integer>> byDate = new TreeMap<>();
+        from.getUsagesByDate(chunk.app, chunk.env, chunk.category, chunk.keys, days).forEach((key, counts) -> counts.forEach((date, num) -> {
+            if (num != null && num > 0) {
+                byDate.computeIfAbsent(LocalDate.parse(date, BASIC_ISO_DATE), d -> new HashMap<>())
+                      .put(new UsageKey(chunk.app, chunk.env, chunk.category, key), num.intValue());
+            }
+        }));
+        for (Map.Entry<LocalDate, Map<UsageKey, Integer>> day : byDate.entrySet()) {
+            String date = BASIC_ISO_DATE.format(day.getKey());
+            if (chunk.daysWritten.contains(date)) {
+                continue;
+            }
+            checkpoint("day", id, date);
+            try {
+                to.recordUsages(day.getValue(), day.getKey());
+            } catch (RuntimeException ex) {
+                checkpoint("retry", id, date);
+                throw ex;
+            }
+            usagesImported.add(day.getValue().values().stream().mapToLong(Integer::longValue).sum());
+        }
+        checkpoint("done", id);
+        keysImported.add(chunk.keys.size());
+    }
+
+    private void openCheckpoint() throws IOException {
+        String header = String.join("\t", source, String.valueOf(app), String.valueOf(env), String.valueOf(days));
+        if (Files.exists(checkpointFile)) {
+            List<String> lines = Files.readAllLines(checkpointFile, StandardCharsets.UTF_8);
+            if (!lines.isEmpty() && lines.get(0).equals(header)) {
+                readCheckpoint(lines.subList(1, lines.size()));
+                checkpoint = Files.newBufferedWriter(checkpointFile, StandardCharsets.UTF_8, APPEND);
+                return;
+            }
+            logger.info("ignoring checkpoint left by a different import");
+        }
+        checkpoint = Files.newBufferedWriter(checkpointFile, StandardCharsets.UTF_8, CREATE,
+                                             TRUNCATE_EXISTING);
+        checkpoint.write(header + "\n");
+        checkpoint.flush();
+    }
+
+    private void readCheckpoint(List<String> lines) {
+        Map<Integer, Chunk> chunks = new LinkedHashMap<>();
+        for (String line : lines) {
+            String[] parts = line.split("\t", -1);
+            if (parts.length < 2) {
+                continue; // cut off by a crash
+            }
+            int id = Integer.parseInt(parts[1]);
+            Chunk chunk = chunks.get(id);
+            if (parts[0].equals("chunk") && parts.length > 5) {
+                chunks.put(id, new Chunk(id, parts[2], parts[3], parts[4], Arrays.asList(parts).subList(5, parts.length)));
+                nextChunk.set(Math.max(nextChunk.get(), id + 1));
+            } else if (chunk != null && parts[0].equals("day") && parts.length == 3) {
+                chunk.daysWritten.add(parts[2]);
+            } else if (chunk != null && parts[0].equals("retry") && parts.length == 3) {
+                chunk.daysWritten.remove(parts[2]);
+            } else if (chunk != null && parts[0].equals("done")) {
+                chunk.done = true;
+            }
+        }
+        chunks.values().forEach(chunk -> {
+            if (chunk.done) {
+                done.computeIfAbsent(key(chunk.app, chunk.env, chunk.category), k -> new HashSet<>()).addAll(chunk.keys);
+            } else {
+                chunk.resumed = true;
+                unfinished.add(chunk);
+            }
+        });
+        logger.info("resuming import from {}, {} chunks already written and {} to finish", source,
+                    chunks.size() - unfinished.size(), unfinished.size());
+    }
+
+    private synchronized void checkpoint(String... fields) {
+        try {
+            checkpoint.write(String.join("\t", fields) + "\n");
+            checkpoint.flush();
+        } catch (IOException ex) {
+            throw new UncheckedIOException("unable to write import checkpoint " + checkpointFile, ex);
+        }
+    }
+
+    private synchronized void closeCheckpoint(boolean delete) throws IOException {
+        if (checkpoint != null) {
+            checkpoint.close();
+            checkpoint = null;
+            if (delete) {
+                Files.deleteIfExists(checkpointFile);
+            }
+        }
+    }
+
+    /**
+     * keys copied together, and the days of them already written
+     */
+    private static class Chunk {
+        private final int id;
+        private final String app;
+        private final String env;
+        private final String category;
+        private final List<String> keys;
+        private final Set<String> daysWritten = new HashSet<>();
+        private boolean done;
+        // started by an earlier run, so its keys are in the checkpoint already
+        private boolean resumed;
+
+        Chunk(int id, String app, String env, String category, List<String> keys) {
+            this.id = id;
+            this.app = app;
+            this.env = env;
+            this.category = category;
+            this.keys = keys;
+        }
+
+        boolean isIn(String app, String env, String category) {
+            return this.app.equals(app) && this.env.equals(env) && this.category.equals(category);
+        }
+    }
+
+    private static List<String> key(String app, String env, String category) {
+        List<String> key = new ArrayList<>(3);
+        key.add(app);
+        key.add(env);
+        key.add(category);
+        return key;
+    }
+}
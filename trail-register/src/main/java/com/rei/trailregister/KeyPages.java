@@ -0,0 +1,31 @@
+package com.rei.trailregister;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Picks a page of keys out of keys in any order, possibly from several sources, without sorting all of them.
+ */
+public final class KeyPages {
+
+    private KeyPages() {}
+
+    /**
+     * @return the first {@code limit} distinct keys that sort after {@code after}, in order, from the start when
+     *         {@code after} is null
+     */
+    public static List<String> firstAfter(Iterable<String> keys, String after, int limit) {
+        TreeSet<String> first = new TreeSet<>();
+        for (String key : keys) {
+            if (after != null && key.compareTo(after) <= 0) {
+                continue;
+            }
+            first.add(key);
+            if (first.size() > limit) {
+                first.pollLast();
+            }
+        }
+        return new ArrayList<>(first);
+    }
+}
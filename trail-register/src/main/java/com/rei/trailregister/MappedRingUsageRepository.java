@@ -0,0 +1,221 @@
+package com.rei.trailregister;
+
+import static com.rei.trailregister.FileUsageRepository.checkArgument;
+import static java.time.format.DateTimeFormatter.BASIC_ISO_DATE;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Stores each key in a single fixed size memory mapped file holding a ring of per day counters indexed by epoch day.
+ * Increments are in place writes and range reads are a loop over the mapped buffer, no matter how many days are read.
+ * Only the most recent {@code ringDays} days are retained, older days are overwritten as the ring wraps around.
+ */
+public class MappedRingUsageRepository implements UsageRepository {
+    private static Logger logger = LoggerFactory.getLogger(MappedRingUsageRepository.class);
+
+    static final String RING_SUFFIX = ".ring";
+    private static final int MAGIC = 0x5452524E; // "TRRN"
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 16; // int epoch day, 4 bytes padding, long count
+
+    private final Path basedir;
+    private final int ringDays;
+
+    private final Striped<Lock> locks = Striped.lock(1024);
+    private final LoadingCache<Path, MappedByteBuffer> buffers;
+
+    public MappedRingUsageRepository(Path basedir, int ringDays, int maxOpenFiles) {
+        Preconditions.checkArgument(ringDays > 0, "ringDays must be positive");
+        this.basedir = basedir;
+        this.ringDays = ringDays;
+        buffers = CacheBuilder.newBuilder().maximumSize(maxOpenFiles).build(new CacheLoader<Path, MappedByteBuffer>() {
+            @Override
+            public MappedByteBuffer load(Path file) throws IOException {
+                return map(file);
+            }
+        });
+    }
+
+    @Override
+    public void recordUsages(UsageKey key, int num, LocalDate date) {
+        Path file = ringFile(key);
+        int day = (int) date.toEpochDay();
+        int slot = slotOffset(day);
+
+        Lock lock = locks.get(file);
+        lock.lock();
+        try {
+            MappedByteBuffer buffer = buffers.getIfPresent(file);
+            if (buffer == null) {
+                Files.createDirectories(file.getParent());
+                buffer = buffers.get(file);
+            }
+            int slotDay = buffer.getInt(slot);
+            if (slotDay == day) {
+                buffer.putLong(slot + 8, buffer.getLong(slot + 8) + num);
+            } else if (slotDay < day) {
+                buffer.putLong(slot + 8, num);
+                buffer.putInt(slot, day);
+            } else {
+                logger.warn("dropping {} usages of {} on {}, older than the {} days retained", num, key, date, ringDays);
+            }
+        } catch (IOException | ExecutionException e) {
+            throw new IllegalStateException("unable to record usages for " + key, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<String> getApps() {
+        return list(Files::isDirectory);
+    }
+
+    @Override
+    public List<String> getEnvironments(String app) {
+        return list(Files::isDirectory, app);
+    }
+
+    @Override
+    public List<String> getCategories(String app, String env) {
+        return list(Files::isDirectory, app, env);
+    }
+
+    @Override
+    public List<String> getKeys(String app, String env, String category) {
+        return list(p -> p.getFileName().toString().endsWith(RING_SUFFIX), app, env, category).stream()
+                .map(f -> f.substring(0, f.length() - RING_SUFFIX.length()))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public Map<String, Long> getUsagesByDate(UsageKey key, int days) {
+        long[] counts = readRange(key, days);
+        LocalDate now = LocalDate.now();
+        Map<String, Long> result = new TreeMap<>();
+        for (int i = 0; i < days; i++) {
+            result.put(BASIC_ISO_DATE.format(now.minusDays(i)), i < counts.length ? counts[i] : 0);
+        }
+        return result;
+    }
+
+    @Override
+    public long getUsages(UsageKey key, int days) {
+        long total = 0;
+        for (long count : readRange(key, days)) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * @return counts for the last {@code days} days, limited to the days retained, index 0 being today
+     */
+    private long[] readRange(UsageKey key, int days) {
+        Path file = ringFile(key);
+        int today = (int) LocalDate.now().toEpochDay();
+        long[] counts = new long[Math.max(0, Math.min(days, ringDays))];
+
+        Lock lock = locks.get(file);
+        lock.lock();
+        try {
+            MappedByteBuffer buffer = buffers.getIfPresent(file);
+            if (buffer == null) {
+                if (!Files.exists(file)) {
+                    return counts;
+                }
+                buffer = buffers.get(file);
+            }
+            for (int i = 0; i < counts.length; i++) {
+                int day = today - i;
+                int slot = slotOffset(day);
+                if (buffer.getInt(slot) == day) {
+                    counts[i] = buffer.getLong(slot + 8);
+                }
+            }
+            return counts;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("unable to read usages for " + key, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private MappedByteBuffer map(Path file) throws IOException {
+        long size = HEADER_SIZE + (long) ringDays * SLOT_SIZE;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            boolean created = channel.size() == 0;
+            if (!created && channel.size() != size) {
+                throw new IOException(file + " was created with a different ring size, expected " + size + " bytes");
+            }
+            MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, 0, size);
+            if (created) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, ringDays);
+                for (int i = 0; i < ringDays; i++) {
+                    buffer.putInt(HEADER_SIZE + i * SLOT_SIZE, Integer.MIN_VALUE);
+                }
+            } else if (buffer.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a ring file");
+            }
+            return buffer;
+        }
+    }
+
+    private int slotOffset(int epochDay) {
+        return HEADER_SIZE + Math.floorMod(epochDay, ringDays) * SLOT_SIZE;
+    }
+
+    private Path ringFile(UsageKey key) {
+        checkArgument("app", key.getApp());
+        checkArgument("env", key.getEnv());
+        checkArgument("category", key.getCategory());
+        checkArgument("key", key.getKey());
+        return Paths.get(basedir.toString(), key.getApp(), key.getEnv(), key.getCategory(), key.getKey() + RING_SUFFIX);
+    }
+
+    private List<String> list(Predicate<Path> filter, String... parts) {
+        Path path = Paths.get(basedir.toString(), parts);
+        Preconditions.checkArgument(!path.toString().contains(".."), "may not contain '..' or '.'!");
+
+        if (!Files.exists(path)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> stream = Files.list(path)) {
+            return stream.filter(filter)
+                         .map(Path::getFileName)
+                         .map(Path::toString)
+                         .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
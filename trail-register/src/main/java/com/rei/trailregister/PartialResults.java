@@ -0,0 +1,32 @@
+package com.rei.trailregister;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Tracks, for the current thread, the sources that didn't contribute to a result because they failed or missed their
+ * deadline. Repositories add to it while answering a query, the http layer reports it and clears it per request.
+ */
+public final class PartialResults {
+    private static final ThreadLocal<Set<String>> missing = ThreadLocal.withInitial(TreeSet::new);
+
+    private PartialResults() {}
+
+    public static void addMissing(Collection<String> sources) {
+        missing.get().addAll(sources);
+    }
+
+    public static boolean isPartial() {
+        return !missing.get().isEmpty();
+    }
+
+    public static Set<String> getMissing() {
+        return Collections.unmodifiableSet(new TreeSet<>(missing.get()));
+    }
+
+    public static void clear() {
+        missing.get().clear();
+    }
+}
@@ -0,0 +1,174 @@
+package com.rei.trailregister;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+
+/**
+ * Which keys of a category a ranked query answers with: the {@code limit} most used (or least used), counting only
+ * totals between {@code min} and {@code max}. Ties go to the lower key. Sent between nodes as query parameters.
+ */
+public final class Ranking {
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private final int limit;
+    private final boolean ascending;
+    private final long min;
+    private final long max;
+
+    private Ranking(int limit, boolean ascending, long min, long max) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        if (min > max) {
+            throw new IllegalArgumentException("min must not be more than max");
+        }
+        this.limit = limit;
+        this.ascending = ascending;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * the {@code n} most used keys, most first
+     */
+    public static Ranking top(int n) {
+        return new Ranking(n, false, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * the {@code n} least used keys, least first
+     */
+    public static Ranking bottom(int n) {
+        return new Ranking(n, true, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * every key with a total between min and max, inclusive, most used first
+     */
+    public static Ranking between(long min, long max) {
+        return new Ranking(UNLIMITED, false, min, max);
+    }
+
+    /**
+     * this ranking, only counting totals between min and max, inclusive
+     */
+    public Ranking within(long min, long max) {
+        return new Ranking(limit, ascending, min, max);
+    }
+
+    /**
+     * reads a ranking from {@code top}, {@code bottom}, {@code min} and {@code max} parameters
+     *
+     * @return empty if none of them are given
+     */
+    public static Optional<Ranking> fromParams(Function<String, String> params) {
+        Optional<Integer> top = Optional.ofNullable(params.apply("top")).map(Integer::parseInt);
+        Optional<Integer> bottom = Optional.ofNullable(params.apply("bottom")).map(Integer::parseInt);
+        Optional<Long> min = Optional.ofNullable(params.apply("min")).map(Long::parseLong);
+        Optional<Long> max = Optional.ofNullable(params.apply("max")).map(Long::parseLong);
+        if (top.isPresent() && bottom.isPresent()) {
+            throw new IllegalArgumentException("top and bottom may not both be set!");
+        }
+        if (!top.isPresent() && !bottom.isPresent() && !min.isPresent() && !max.isPresent()) {
+            return Optional.empty();
+        }
+        Ranking ranking = bottom.map(Ranking::bottom).orElseGet(() -> top(top.orElse(UNLIMITED)));
+        return Optional.of(ranking.within(min.orElse(Long.MIN_VALUE), max.orElse(Long.MAX_VALUE)));
+    }
+
+    /**
+     * @return the query parameters {@link #fromParams} reads back
+     */
+    public String toParams() {
+        StringBuilder params = new StringBuilder(ascending ? "bottom=" : "top=").append(limit);
+        if (min != Long.MIN_VALUE) {
+            params.append("&min=").append(min);
+        }
+        if (max != Long.MAX_VALUE) {
+            params.append("&max=").append(max);
+        }
+        return params.toString();
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public boolean isAscending() {
+        return ascending;
+    }
+
+    public long getMin() {
+        return min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public boolean accepts(long total) {
+        return total >= min && total <= max;
+    }
+
+    /**
+     * picks the ranked keys out of a category's totals with a heap of the best {@code limit} seen so far, so only the
+     * answer is ever sorted
+     *
+     * @return the ranked totals, in rank order
+     */
+    public Map<String, Long> select(Map<String, Long> totals) {
+        Comparator<Map.Entry<String, Long>> rank = rank();
+        // the worst of the best so far is on top, the one a new total has to beat
+        PriorityQueue<Map.Entry<String, Long>> best = new PriorityQueue<>(Math.max(1, Math.min(limit, totals.size())),
+                                                                          rank.reversed());
+        for (Map.Entry<String, Long> total : totals.entrySet()) {
+            if (limit == 0 || total.getValue() == null || !accepts(total.getValue())) {
+                continue;
+            }
+            if (best.size() < limit) {
+                best.add(total);
+            } else if (rank.compare(total, best.peek()) < 0) {
+                best.poll();
+                best.add(total);
+            }
+        }
+        List<Map.Entry<String, Long>> ranked = new ArrayList<>(best);
+        ranked.sort(rank);
+        Map<String, Long> result = new LinkedHashMap<>();
+        ranked.forEach(e -> result.put(e.getKey(), e.getValue()));
+        return result;
+    }
+
+    /**
+     * best first
+     */
+    private Comparator<Map.Entry<String, Long>> rank() {
+        Comparator<Map.Entry<String, Long>> byTotal = Map.Entry.comparingByValue();
+        return (ascending ? byTotal : byTotal.reversed()).thenComparing(Map.Entry.comparingByKey());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) { return true; }
+        if (!(obj instanceof Ranking)) { return false; }
+        Ranking other = (Ranking) obj;
+        return limit == other.limit && ascending == other.ascending && min == other.min && max == other.max;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(limit, ascending, min, max);
+    }
+
+    @Override
+    public String toString() {
+        return toParams();
+    }
+}
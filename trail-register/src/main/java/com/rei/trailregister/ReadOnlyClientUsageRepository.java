@@ -50,4 +50,9 @@ public class ReadOnlyClientUsageRepository implements UsageRepository {
     public long getUsages(UsageKey key, int days) {
         return client.getUsages(key.getApp(), key.getEnv(), key.getCategory(), key.getKey(), days);
     }
+
+    @Override
+    public Map<String, Long> getAllUsages(String app, String env, String category, int days) {
+        return client.getAllUsages(app, env, category, days);
+    }
 }
@@ -0,0 +1,128 @@
+package com.rei.trailregister;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rei.trailregister.metrics.Metrics;
+
+/**
+ * Admission control for one class of routes. At most {@code concurrency} requests run at once and {@code queueSize}
+ * more wait, for up to {@code maxWaitMillis}. Anything past that is turned away with {@link OverloadedException}
+ * rather than queued, so a flood of one kind of request can't hold every server thread and starve the others.
+ * <p>
+ * Requests run on the server's thread, or on the given executor when there is one, usually virtual threads. The
+ * server's thread still waits for the answer either way, routes are synchronous.
+ */
+class RequestLane {
+    private static Logger logger = LoggerFactory.getLogger(RequestLane.class);
+
+    private final String name;
+    private final int concurrency;
+    private final long maxWaitMillis;
+    private final Semaphore admitted;
+    private final Semaphore running;
+    private final ExecutorService executor;
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder rejectedTotal;
+
+    /**
+     * @param executor runs admitted requests, or null to run them on the calling thread
+     */
+    RequestLane(String name, int concurrency, int queueSize, long maxWaitMillis, ExecutorService executor) {
+        this.name = name;
+        this.concurrency = concurrency;
+        this.maxWaitMillis = maxWaitMillis;
+        this.admitted = new Semaphore(concurrency + queueSize);
+        this.running = new Semaphore(concurrency, true);
+        this.executor = executor;
+        this.rejectedTotal = Metrics.counter("trail_register_requests_rejected_total",
+                                             "requests answered with 503 for being over capacity", "lane", name);
+    }
+
+    <T> T call(Callable<T> request) throws Exception {
+        if (!admitted.tryAcquire()) {
+            throw overloaded();
+        }
+        try {
+            if (!running.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                throw overloaded();
+            }
+            try {
+                return executor == null ? request.call() : await(executor.submit(request));
+            } finally {
+                running.release();
+            }
+        } finally {
+            admitted.release();
+        }
+    }
+
+    /**
+     * @return requests running and waiting now and how many were turned away
+     */
+    Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("lane", name);
+        stats.put("running", concurrency - running.availablePermits());
+        stats.put("waiting", Math.max(0, running.getQueueLength()));
+        stats.put("rejected", rejected.sum());
+        return stats;
+    }
+
+    /**
+     * an executor that starts a virtual thread per task, or null when this JVM doesn't have them
+     */
+    static ExecutorService virtualThreads() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            logger.warn("virtual threads aren't available on java {}, running requests on server threads",
+                        System.getProperty("java.version"));
+            return null;
+        }
+    }
+
+    private OverloadedException overloaded() {
+        rejected.increment();
+        rejectedTotal.increment();
+        return new OverloadedException(name + " requests are over capacity, try again later");
+    }
+
+    private static <T> T await(Future<T> answer) throws Exception {
+        try {
+            return answer.get();
+        } catch (InterruptedException e) {
+            answer.cancel(true);
+            Thread.currentThread().interrupt();
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * answered with a 503
+     */
+    static class OverloadedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        OverloadedException(String message) {
+            super(message);
+        }
+    }
+}
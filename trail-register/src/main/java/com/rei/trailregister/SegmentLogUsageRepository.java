@@ -0,0 +1,449 @@
+package com.rei.trailregister;
+
+import static java.time.format.DateTimeFormatter.BASIC_ISO_DATE;
+import static java.util.stream.Collectors.toList;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Stores usages as fixed width (key id, epoch day, delta) records appended to rolling segment files. Keys are interned
+ * to ids in a separate append only dictionary file. The totals per key and day are held in an in memory index that is
+ * rebuilt from the segments at startup, so reads never touch the disk. Sealed segments are merged in the background
+ * into a single segment holding one record per key and day.
+ */
+public class SegmentLogUsageRepository implements UsageRepository {
+    private static Logger logger = LoggerFactory.getLogger(SegmentLogUsageRepository.class);
+
+    static final int RECORD_SIZE = 16;
+    private static final int HEADER_SIZE = 8;
+    private static final int MAGIC = 0x54525347; // "TRSG"
+    private static final String KEYS_FILE = "keys.log";
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.log");
+    private static final int MERGE_THRESHOLD = 4;
+    private static final int WRITE_BUFFER_RECORDS = 1024;
+
+    private final Path dir;
+    private final long maxSegmentBytes;
+
+    private final Map<UsageKey, Integer> keyIds = new ConcurrentHashMap<>();
+    private final List<UsageKey> keys = new CopyOnWriteArrayList<>();
+    private final Map<Integer, ConcurrentSkipListMap<Integer, Long>> index = new ConcurrentHashMap<>();
+
+    private final List<Long> sealedSegments = new CopyOnWriteArrayList<>();
+    private final ExecutorService mergeExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean mergeScheduled = new AtomicBoolean();
+    private final Object mergeLock = new Object();
+
+    // guarded by this
+    private DataOutputStream keysOut;
+    private FileChannel active;
+    private long activeId;
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(RECORD_SIZE * WRITE_BUFFER_RECORDS);
+
+    public SegmentLogUsageRepository(Path dir, long maxSegmentBytes) {
+        this.dir = dir;
+        this.maxSegmentBytes = maxSegmentBytes;
+        try {
+            Files.createDirectories(dir);
+            loadKeys();
+            loadSegments();
+            keysOut = new DataOutputStream(Files.newOutputStream(dir.resolve(KEYS_FILE), StandardOpenOption.CREATE,
+                                                                 StandardOpenOption.APPEND));
+            openSegment(sealedSegments.isEmpty() ? 0 : sealedSegments.get(sealedSegments.size() - 1) + 1);
+        } catch (IOException e) {
+            throw new UncheckedIOException("unable to open segment log in " + dir, e);
+        }
+    }
+
+    @Override
+    public void recordUsages(UsageKey key, int num, LocalDate date) {
+        int id = intern(key);
+        int day = (int) date.toEpochDay();
+        synchronized (this) {
+            append(id, day, num);
+            flushWriteBuffer();
+        }
+        addToIndex(id, day, num);
+    }
+
+    @Override
+    public void recordUsages(Map<UsageKey, Integer> usages, LocalDate date) {
+        int day = (int) date.toEpochDay();
+        Map<Integer, Integer> byId = new HashMap<>(usages.size() * 2);
+        usages.forEach((key, num) -> {
+            byId.merge(intern(key), num, Integer::sum);
+        });
+        synchronized (this) {
+            byId.forEach((id, num) -> append(id, day, num));
+            flushWriteBuffer();
+        }
+        byId.forEach((id, num) -> addToIndex(id, day, num));
+    }
+
+    @Override
+    public List<String> getApps() {
+        return distinct(k -> true, UsageKey::getApp);
+    }
+
+    @Override
+    public List<String> getEnvironments(String app) {
+        return distinct(k -> k.getApp().equals(app), UsageKey::getEnv);
+    }
+
+    @Override
+    public List<String> getCategories(String app, String env) {
+        return distinct(k -> k.getApp().equals(app) && k.getEnv().equals(env), UsageKey::getCategory);
+    }
+
+    @Override
+    public List<String> getKeys(String app, String env, String category) {
+        return distinct(k -> k.getApp().equals(app) && k.getEnv().equals(env) && k.getCategory().equals(category),
+                        UsageKey::getKey);
+    }
+
+    @Override
+    public Map<String, Long> getUsagesByDate(UsageKey key, int days) {
+        Map<String, Long> result = new TreeMap<>();
+        LocalDate now = LocalDate.now();
+        for (int i = 0; i < days; i++) {
+            result.put(BASIC_ISO_DATE.format(now.minusDays(i)), 0L);
+        }
+        range(key, days).forEach((day, num) -> result.put(BASIC_ISO_DATE.format(LocalDate.ofEpochDay(day)), num));
+        return result;
+    }
+
+    @Override
+    public long getUsages(UsageKey key, int days) {
+        long total = 0;
+        for (long num : range(key, days).values()) {
+            total += num;
+        }
+        return total;
+    }
+
+    @Override
+    public Map<String, Long> getAllUsages(String app, String env, String category, int days) {
+        Map<String, Long> result = new HashMap<>();
+        keys.stream()
+            .filter(k -> k.getApp().equals(app) && k.getEnv().equals(env) && k.getCategory().equals(category))
+            .forEach(k -> result.put(k.getKey(), getUsages(k, days)));
+        return result;
+    }
+
+    @Override
+    public void runCompaction() {
+        mergeSegments();
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        mergeExecutor.shutdown();
+        try {
+            mergeExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            active.close();
+            keysOut.close();
+        } catch (IOException e) {
+            logger.warn("error closing segment log", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    List<Long> getSealedSegments() {
+        return sealedSegments;
+    }
+
+    private NavigableMap<Integer, Long> range(UsageKey key, int days) {
+        Integer id = keyIds.get(key);
+        ConcurrentSkipListMap<Integer, Long> counts = id == null ? null : index.get(id);
+        if (counts == null || days <= 0) {
+            return new TreeMap<>();
+        }
+        int today = (int) LocalDate.now().toEpochDay();
+        return counts.subMap(today - days + 1, true, today, true);
+    }
+
+    private int intern(UsageKey key) {
+        Preconditions.checkArgument(key.getApp() != null && key.getEnv() != null && key.getCategory() != null
+                                    && key.getKey() != null, "app, env, category and key may not be null");
+        Integer id = keyIds.get(key);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = keyIds.get(key);
+            if (id == null) {
+                id = keys.size();
+                try {
+                    writeKey(keysOut, id, key);
+                    keysOut.flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException("unable to write key " + key, e);
+                }
+                keys.add(key);
+                keyIds.put(key, id);
+            }
+            return id;
+        }
+    }
+
+    private void addToIndex(int id, int day, long num) {
+        index.computeIfAbsent(id, k -> new ConcurrentSkipListMap<>()).merge(day, num, Long::sum);
+    }
+
+    // callers must hold the lock on this
+    private void append(int id, int day, long num) {
+        if (!writeBuffer.hasRemaining()) {
+            flushWriteBuffer();
+        }
+        writeBuffer.putInt(id).putInt(day).putLong(num);
+    }
+
+    // callers must hold the lock on this
+    private void flushWriteBuffer() {
+        try {
+            writeBuffer.flip();
+            while (writeBuffer.hasRemaining()) {
+                active.write(writeBuffer);
+            }
+            writeBuffer.clear();
+            if (active.size() >= maxSegmentBytes) {
+                rollSegment();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("unable to append to segment " + activeId, e);
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        active.close();
+        sealedSegments.add(activeId);
+        openSegment(activeId + 1);
+
+        if (sealedSegments.size() >= MERGE_THRESHOLD && mergeScheduled.compareAndSet(false, true)) {
+            mergeExecutor.execute(this::mergeSegments);
+        }
+    }
+
+    private void openSegment(long id) throws IOException {
+        activeId = id;
+        active = FileChannel.open(segmentFile(id), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt((int) id);
+        header.flip();
+        active.write(header);
+    }
+
+    /**
+     * merges all sealed segments into one. The merged segment records the lowest id it covers in its header so a
+     * crash before the old segments are deleted doesn't count their records twice on the next startup.
+     */
+    private void mergeSegments() {
+        synchronized (mergeLock) {
+            mergeScheduled.set(false);
+            mergeSealedSegments();
+        }
+    }
+
+    private void mergeSealedSegments() {
+        List<Long> toMerge = new ArrayList<>(sealedSegments);
+        if (toMerge.size() < 2) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        long first = toMerge.get(0);
+        long last = toMerge.get(toMerge.size() - 1);
+
+        try {
+            Map<Long, Long> merged = new HashMap<>();
+            for (long id : toMerge) {
+                readSegment(segmentFile(id), (keyId, day, num) -> merged.merge(((long) keyId << 32) | (day & 0xFFFFFFFFL), num, Long::sum));
+            }
+
+            Path tmp = dir.resolve("merge.tmp");
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE * WRITE_BUFFER_RECORDS);
+                buf.putInt(MAGIC).putInt((int) first);
+                for (Map.Entry<Long, Long> e : merged.entrySet()) {
+                    if (buf.remaining() < RECORD_SIZE) {
+                        writeFully(out, buf);
+                    }
+                    buf.putInt((int) (e.getKey() >>> 32)).putInt((int) e.getKey().longValue()).putLong(e.getValue());
+                }
+                writeFully(out, buf);
+                out.force(true);
+            }
+            Files.move(tmp, segmentFile(last), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            sealedSegments.removeAll(toMerge.subList(0, toMerge.size() - 1));
+            for (long id : toMerge.subList(0, toMerge.size() - 1)) {
+                Files.deleteIfExists(segmentFile(id));
+            }
+            logger.info("merged segments {}-{} into {} records in {}ms", first, last, merged.size(),
+                        System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            logger.error("failed to merge segments {}-{}", first, last, e);
+        }
+    }
+
+    private void loadKeys() throws IOException {
+        Path file = dir.resolve(KEYS_FILE);
+        if (!Files.exists(file)) {
+            return;
+        }
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                int id = in.readInt();
+                UsageKey key = new UsageKey(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF());
+                if (id != keys.size()) {
+                    throw new IOException("key dictionary is corrupt at id " + id);
+                }
+                keys.add(key);
+                keyIds.put(key, id);
+                valid += recordLength(key);
+            }
+        } catch (EOFException e) {
+            // end of the dictionary, a partially written trailing key is dropped below
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            if (channel.size() > valid) {
+                logger.warn("truncating partially written key dictionary {} to {} bytes", file, valid);
+                channel.truncate(valid);
+            }
+        }
+    }
+
+    private void loadSegments() throws IOException {
+        Files.deleteIfExists(dir.resolve("merge.tmp"));
+
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.forEach(f -> {
+                Matcher m = SEGMENT_NAME.matcher(f.getFileName().toString());
+                if (m.matches()) {
+                    segments.put(Long.parseLong(m.group(1)), f);
+                }
+            });
+        }
+
+        // a merged segment covers every id from the one in its header up to its own
+        for (Map.Entry<Long, Path> e : new ArrayList<>(segments.descendingMap().entrySet())) {
+            if (!segments.containsKey(e.getKey())) {
+                continue;
+            }
+            long coveredFrom = readHeader(e.getValue());
+            for (Long obsolete : new ArrayList<>(segments.subMap(coveredFrom, true, e.getKey(), false).keySet())) {
+                logger.info("removing segment {} left over from an interrupted merge", obsolete);
+                Files.delete(segments.remove(obsolete));
+            }
+        }
+
+        for (Map.Entry<Long, Path> e : segments.entrySet()) {
+            readSegment(e.getValue(), this::addToIndex);
+            sealedSegments.add(e.getKey());
+        }
+        logger.info("loaded {} keys from {} segments in {}", keys.size(), segments.size(), dir);
+    }
+
+    private long readHeader(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a segment file: " + file);
+            }
+            return in.readInt();
+        } catch (EOFException e) {
+            Matcher m = SEGMENT_NAME.matcher(file.getFileName().toString());
+            m.matches();
+            return Long.parseLong(m.group(1));
+        }
+    }
+
+    private void readSegment(Path file, RecordConsumer consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE * WRITE_BUFFER_RECORDS);
+            channel.position(HEADER_SIZE);
+            while (channel.read(buf) > 0) {
+                buf.flip();
+                while (buf.remaining() >= RECORD_SIZE) {
+                    consumer.accept(buf.getInt(), buf.getInt(), buf.getLong());
+                }
+                buf.compact();
+            }
+            if (buf.position() > 0) {
+                logger.warn("ignoring {} trailing bytes of partially written record in {}", buf.position(), file);
+            }
+        }
+    }
+
+    private List<String> distinct(Predicate<UsageKey> filter, Function<UsageKey, String> part) {
+        return keys.stream().filter(filter).map(part).distinct().collect(toList());
+    }
+
+    private Path segmentFile(long id) {
+        return dir.resolve(String.format("segment-%010d.log", id));
+    }
+
+    private static void writeKey(DataOutputStream out, int id, UsageKey key) throws IOException {
+        out.writeInt(id);
+        out.writeUTF(key.getApp());
+        out.writeUTF(key.getEnv());
+        out.writeUTF(key.getCategory());
+        out.writeUTF(key.getKey());
+    }
+
+    private static long recordLength(UsageKey key) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeKey(new DataOutputStream(bytes), 0, key);
+        return bytes.size();
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+        buf.clear();
+    }
+
+    @FunctionalInterface
+    private interface RecordConsumer {
+        void accept(int keyId, int day, long num) throws IOException;
+    }
+}
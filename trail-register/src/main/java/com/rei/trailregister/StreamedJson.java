@@ -0,0 +1,45 @@
+package com.rei.trailregister;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * A response written straight to the client rather than built into a string first. Routes return one after they've
+ * set their headers. The results it writes are already read, so it saves the string, not holding the results.
+ */
+@FunctionalInterface
+interface StreamedJson {
+    void writeTo(JsonWriter out) throws IOException;
+
+    /**
+     * a json object of each key's total, in the order given
+     */
+    static StreamedJson totals(Iterable<Map.Entry<String, Long>> totals) {
+        return out -> {
+            out.beginObject();
+            for (Map.Entry<String, Long> total : totals) {
+                out.name(total.getKey()).value(total.getValue());
+            }
+            out.endObject();
+        };
+    }
+
+    /**
+     * a json object of each key's counts by date, in the order given
+     */
+    static StreamedJson byDate(Iterable<Map.Entry<String, Map<String, Long>>> byDate) {
+        return out -> {
+            out.beginObject();
+            for (Map.Entry<String, Map<String, Long>> key : byDate) {
+                out.name(key.getKey()).beginObject();
+                for (Map.Entry<String, Long> day : key.getValue().entrySet()) {
+                    out.name(day.getKey()).value(day.getValue());
+                }
+                out.endObject();
+            }
+            out.endObject();
+        };
+    }
+}
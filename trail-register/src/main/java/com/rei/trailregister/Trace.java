@@ -0,0 +1,126 @@
+package com.rei.trailregister;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Time spent in each phase of the current thread's request, for the slow request log. Repositories wrap phases like
+ * directory listing, file reads and lock waits in {@link #start()} and {@link #end(String, long)}; a phase's time
+ * doesn't include the phases inside it, so the breakdown adds up to the time traced. The http layer clears it per
+ * request, the same way as {@link PartialResults}.
+ * <p>
+ * While disabled {@link #start()} returns 0 without reading the clock and {@link #end(String, long)} returns straight
+ * away, so the calls can stay on hot paths.
+ */
+public final class Trace {
+    private static volatile boolean enabled;
+    private static final ThreadLocal<Spans> spans = ThreadLocal.withInitial(Spans::new);
+
+    private Trace() {}
+
+    public static void setEnabled(boolean enabled) {
+        Trace.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the start of a phase to pass to {@link #end(String, long)}, 0 when tracing is disabled
+     */
+    public static long start() {
+        if (!enabled) {
+            return 0;
+        }
+        spans.get().push();
+        return System.nanoTime();
+    }
+
+    public static void end(String phase, long start) {
+        if (start != 0) {
+            spans.get().pop(phase, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * records a phase timed some other way on this thread, it's taken out of the phase it ran in
+     */
+    public static void add(String phase, long nanos) {
+        if (enabled) {
+            spans.get().add(phase, nanos, true);
+        }
+    }
+
+    /**
+     * records time spent on another thread on this request's behalf, like a call to a peer made in parallel with
+     * others. It's reported but not taken out of the phase that waited for it.
+     */
+    public static void addConcurrent(String phase, long nanos) {
+        if (enabled) {
+            spans.get().add(phase, nanos, false);
+        }
+    }
+
+    /**
+     * @return milliseconds and count for each phase traced since the last clear, in the order they first ran
+     */
+    public static String describe() {
+        StringBuilder out = new StringBuilder();
+        spans.get().phases.forEach((phase, totals) -> {
+            out.append(out.length() > 0 ? ", " : "").append(phase).append(' ')
+               .append(String.format("%.1fms", totals[0] / 1e6));
+            if (totals[1] > 1) {
+                out.append(" x").append(totals[1]);
+            }
+        });
+        return out.toString();
+    }
+
+    public static void clear() {
+        if (enabled) {
+            spans.get().clear();
+        }
+    }
+
+    private static class Spans {
+        // phase -> nanos, count
+        private final Map<String, long[]> phases = new LinkedHashMap<>();
+        // time taken by the phases inside each one that's still open
+        private long[] inner = new long[8];
+        private int depth;
+
+        void push() {
+            if (depth == inner.length) {
+                inner = Arrays.copyOf(inner, depth * 2);
+            }
+            inner[depth++] = 0;
+        }
+
+        void pop(String phase, long nanos) {
+            if (depth == 0) {
+                return; // cleared while the phase was open
+            }
+            long self = nanos - inner[--depth];
+            add(phase, self, false);
+            if (depth > 0) {
+                inner[depth - 1] += nanos;
+            }
+        }
+
+        void add(String phase, long nanos, boolean nested) {
+            long[] totals = phases.computeIfAbsent(phase, p -> new long[2]);
+            totals[0] += nanos;
+            totals[1]++;
+            if (nested && depth > 0) {
+                inner[depth - 1] += nanos;
+            }
+        }
+
+        void clear() {
+            phases.clear();
+            depth = 0;
+        }
+    }
+}
@@ -1,32 +1,40 @@
 package com.rei.trailregister;
 
 import static java.util.stream.Collectors.toList;
-import static java.util.stream.Collectors.toMap;
 import static spark.Spark.exception;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
 
 import spark.Request;
+import spark.Response;
 import spark.Route;
 import spark.Spark;
 
@@ -36,22 +44,64 @@ import org.slf4j.LoggerFactory;
 import com.diffplug.common.base.DurianPlugins;
 import com.diffplug.common.base.Errors;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.net.HostAndPort;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonWriter;
 
 import com.rei.trailregister.client.DirectTrailRegisterClient;
 import com.rei.trailregister.cluster.ClusterAwareTrailRegisterClient;
+import com.rei.trailregister.cluster.ClusterMode;
 import com.rei.trailregister.cluster.ClusterUtils;
 import com.rei.trailregister.cluster.ClusteredFileUsageRepository;
+import com.rei.trailregister.cluster.PeerCodec;
+import com.rei.trailregister.metrics.LatencyHistogram;
+import com.rei.trailregister.metrics.Metrics;
 
 public class TrailRegister {
     private static final String DATA_DIR_VAR = "DATA_DIR";
 
     private static final String PORT = "PORT";
+    private static final String STORAGE_ENGINE = "STORAGE_ENGINE";
+    private static final String SEGMENT_SIZE_MB = "SEGMENT_SIZE_MB";
+    private static final String RING_DAYS = "RING_DAYS";
+    private static final String WRITE_BEHIND_INTERVAL = "WRITE_BEHIND_INTERVAL_MS";
+    private static final String WRITE_BEHIND_MAX_PENDING = "WRITE_BEHIND_MAX_PENDING";
+    private static final String QUERY_CACHE_SIZE = "QUERY_CACHE_SIZE";
+    private static final String QUERY_CACHE_TTL = "QUERY_CACHE_TTL_MS";
+    private static final String PEER_DEADLINE = "PEER_DEADLINE_MILLIS";
+    private static final String CLUSTER_MODE = "CLUSTER_MODE";
+    private static final String CLUSTER_REPLICAS = "CLUSTER_REPLICAS";
+    private static final String SELF = "SELF";
+    private static final String ROLLUP_INTERVAL = "ROLLUP_INTERVAL_MS";
+    private static final String ROLLUP_STALENESS = "ROLLUP_MAX_STALENESS_MS";
+    private static final String INGEST_BATCH_SIZE = "INGEST_BATCH_SIZE";
+    private static final String IMPORT_THREADS = "IMPORT_THREADS";
+    private static final String IMPORT_BATCH_SIZE = "IMPORT_BATCH_SIZE";
+    private static final String IMPORT_CHECKPOINT = "import-checkpoint";
+    private static final String REQUEST_THREADS = "REQUEST_THREADS";
+    private static final String READ_CONCURRENCY = "READ_CONCURRENCY";
+    private static final String INGEST_CONCURRENCY = "INGEST_CONCURRENCY";
+    private static final String REQUEST_QUEUE_SIZE = "REQUEST_QUEUE_SIZE";
+    private static final String SLOW_REQUEST_MILLIS = "SLOW_REQUEST_MILLIS";
+
+    // with the defaults every lane full and queued holds 148 of jetty's 200 threads
+    private static final int DEFAULT_READ_CONCURRENCY = 32;
+    private static final int DEFAULT_INGEST_CONCURRENCY = 16;
+    private static final int DEFAULT_REQUEST_QUEUE_SIZE = 16;
+    private static final int ADMIN_CONCURRENCY = 4;
+    private static final long MAX_QUEUE_WAIT_MILLIS = 1000;
+    // keys whose usages category reads hold at once
+    static final int CHUNK_KEYS = 1000;
+
+    public static final String PARTIAL_RESULTS_HEADER = "X-Partial-Results";
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    public static final String RECORDS_WRITTEN_HEADER = "X-Records-Written";
 
     private static final String POM_PROPS = "META-INF/maven/com.rei.stats/trail-register/pom.properties";
-    public static final String POOL_SIZE = "FORK_POOL_SIZE";
 
     private static Logger logger = LoggerFactory.getLogger(TrailRegister.class);
     
@@ -75,16 +125,44 @@ public class TrailRegister {
     }
     
     private ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-    private ForkJoinPool forkJoinPool = new ForkJoinPool(getPoolSize());
 
     private Gson json = new Gson();
     private UsageRepository repo;
+    private UsageRepository localRepo;
+    private CachingUsageRepository queryCache;
+    private ClusteredFileUsageRepository cluster;
     private UUID id;
-    private Map<String, AtomicLong> elapsedTime = new ConcurrentHashMap<>();
-    private Map<String, AtomicLong> invocations = new ConcurrentHashMap<>();
+    private int ingestBatchSize = Optional.ofNullable(System.getenv(INGEST_BATCH_SIZE)).map(Integer::parseInt)
+                                          .orElse(UsageStreamReader.DEFAULT_BATCH_SIZE);
+    private Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    // requests slower than this are logged with where their time went, 0 turns tracing off
+    private long slowRequestNanos = TimeUnit.MILLISECONDS.toNanos(Optional.ofNullable(System.getenv(SLOW_REQUEST_MILLIS))
+                                                                          .map(Long::parseLong).orElse(0L));
     
-    private Collection<UsageKey> currentImport;
-    private Collection<UsageKey> imported;
+    private int importThreads = Optional.ofNullable(System.getenv(IMPORT_THREADS)).map(Integer::parseInt)
+                                        .orElse(Importer.DEFAULT_THREADS);
+    private int importBatchSize = Optional.ofNullable(System.getenv(IMPORT_BATCH_SIZE)).map(Integer::parseInt)
+                                          .orElse(Importer.DEFAULT_BATCH_SIZE);
+    private Path checkpointDir = Paths.get(System.getProperty("java.io.tmpdir"));
+    private volatile Importer importer;
+
+    private ExecutorService requestExecutor = "virtual".equals(System.getenv(REQUEST_THREADS)) ? RequestLane.virtualThreads()
+                                                                                             : null;
+    private int readConcurrency = Optional.ofNullable(System.getenv(READ_CONCURRENCY)).map(Integer::parseInt)
+                                          .orElse(DEFAULT_READ_CONCURRENCY);
+    private int requestQueueSize = Optional.ofNullable(System.getenv(REQUEST_QUEUE_SIZE)).map(Integer::parseInt)
+                                           .orElse(DEFAULT_REQUEST_QUEUE_SIZE);
+    private RequestLane readLane = new RequestLane("read", readConcurrency, requestQueueSize, MAX_QUEUE_WAIT_MILLIS,
+                                                   requestExecutor);
+    // peers' reads get their own lane, a node whose reads are waiting on peers must still be able to answer them
+    private RequestLane peerLane = new RequestLane("peer", readConcurrency, requestQueueSize, MAX_QUEUE_WAIT_MILLIS,
+                                                   requestExecutor);
+    private RequestLane ingestLane = new RequestLane("ingest", Optional.ofNullable(System.getenv(INGEST_CONCURRENCY))
+                                                                      .map(Integer::parseInt)
+                                                                      .orElse(DEFAULT_INGEST_CONCURRENCY),
+                                                     requestQueueSize, MAX_QUEUE_WAIT_MILLIS, requestExecutor);
+    private RequestLane adminLane = new RequestLane("admin", ADMIN_CONCURRENCY, requestQueueSize, MAX_QUEUE_WAIT_MILLIS,
+                                                    requestExecutor);
     
     public TrailRegister(Path dataDir, List<HostAndPort> peers) throws IOException {
         if (!Files.exists(dataDir)) {
@@ -92,51 +170,173 @@ public class TrailRegister {
         }
         
         id = UUID.randomUUID();
-        repo = peers.isEmpty() ? new FileUsageRepository(dataDir) : new ClusteredFileUsageRepository(dataDir, id, peers);
+        checkpointDir = dataDir;
+        localRepo = withWriteBehind(createStorage(dataDir));
+        if (!peers.isEmpty()) {
+            long deadline = Optional.ofNullable(System.getenv(PEER_DEADLINE)).map(Long::parseLong)
+                                    .orElse(ClusteredFileUsageRepository.DEFAULT_DEADLINE_MILLIS);
+            ClusterMode mode = Optional.ofNullable(System.getenv(CLUSTER_MODE)).map(m -> ClusterMode.valueOf(m.toUpperCase()))
+                                       .orElse(ClusterMode.FANOUT);
+            int replicas = Optional.ofNullable(System.getenv(CLUSTER_REPLICAS)).map(Integer::parseInt)
+                                   .orElse(ClusteredFileUsageRepository.DEFAULT_REPLICAS);
+            long rollupInterval = Optional.ofNullable(System.getenv(ROLLUP_INTERVAL)).map(Long::parseLong)
+                                          .orElse(ClusteredFileUsageRepository.DEFAULT_ROLLUP_INTERVAL_MILLIS);
+            long rollupStaleness = Optional.ofNullable(System.getenv(ROLLUP_STALENESS)).map(Long::parseLong)
+                                           .orElse(ClusteredFileUsageRepository.DEFAULT_ROLLUP_STALENESS_MILLIS);
+            HostAndPort self = Optional.ofNullable(System.getenv(SELF)).map(HostAndPort::fromString).orElse(null);
+            cluster = new ClusteredFileUsageRepository(localRepo, id, peers, deadline, mode, replicas, rollupInterval,
+                                                       rollupStaleness, self);
+        }
+        repo = withQueryCache(cluster != null ? cluster : localRepo);
         executor.scheduleWithFixedDelay(repo::runCompaction, 1, 1, TimeUnit.DAYS);
+        Runtime.getRuntime().addShutdownHook(new Thread(repo::shutdown));
     }
     
     public TrailRegister(String url, String user, String pass, String driverUrl, String driverClass) throws IOException {
         id = UUID.randomUUID();
-        repo = new DatabaseUsageRepository(url, user, pass, new DriverDownloader(driverUrl, driverClass));
+        localRepo = new DatabaseUsageRepository(url, user, pass, new DriverDownloader(driverUrl, driverClass));
+        repo = withQueryCache(localRepo);
     }
     
     public void run() {
+        Trace.setEnabled(slowRequestNanos > 0);
         exception(IllegalArgumentException.class, (e, request, response) -> {
             response.status(400);
             response.body(e.getMessage());
         });
+        exception(UsageStreamReader.BadRecordException.class, (e, request, response) -> {
+            response.status(400);
+            response.header(RECORDS_WRITTEN_HEADER, Long.toString(((UsageStreamReader.BadRecordException) e).getWritten()));
+            response.body(e.getMessage());
+        });
+        exception(RequestLane.OverloadedException.class, (e, request, response) -> {
+            response.status(503);
+            response.header("Retry-After", "1");
+            response.body(e.getMessage());
+        });
         
         get("/_import", (req, res) -> {
-            if (imported == null || currentImport == null) {
-                return "no imports running or recently ran";
+            if (importer == null) {
+                return ImmutableMap.of("state", "none");
             }
-            return "imported " + imported.size() + "/" + currentImport.size() + " records";
+            return importer.getProgress();
         });
+        get("/_compact", (req, res) -> repo.getCompactionStatus());
         post("/_compact", (req, res) -> {
             executor.execute(repo::runCompaction);
             return "success";
          });
+        // writes handed off by peers that don't own them, for the day they were made
+        post(ClusterAwareTrailRegisterClient.USAGES_PATH, (req, res) -> {
+            Map<String, Map<String, Map<String, Map<String, Integer>>>> body =
+                    parseJson(req, new TypeToken<Map<String, Map<String, Map<String, Map<String, Integer>>>>>() {});
+            Map<UsageKey, Integer> usages = new HashMap<>();
+            body.forEach((app, envs) -> envs.forEach((env, categories) -> categories.forEach((category, keys) -> {
+                keys.forEach((key, num) -> usages.put(new UsageKey(app, env, category, key), num));
+            })));
+            LocalDate date = Optional.ofNullable(req.queryParams("date"))
+                                     .map(d -> LocalDate.parse(d, DateTimeFormatter.BASIC_ISO_DATE))
+                                     .orElse(LocalDate.now());
+            localRepo.recordUsages(usages, date);
+            res.status(201);
+            return "";
+        });
+        // counts pushed by peers in rollup mode
+        post(ClusterAwareTrailRegisterClient.ROLLUP_PATH, (req, res) -> {
+            if (cluster == null) {
+                res.status(404);
+                return "not clustered";
+            }
+            try {
+                cluster.receiveRollup(req.bodyAsBytes());
+            } catch (IllegalStateException e) {
+                res.status(409);
+                return e.getMessage();
+            }
+            res.status(201);
+            return "";
+        });
+        // bulk reads for peers, always answered from local data, no keys means the whole category
+        postPeer(ClusterAwareTrailRegisterClient.READ_PATH + "/:app/:env/:cat", (req, res) -> {
+            List<String> keys = Optional.ofNullable(parseJson(req, new TypeToken<List<String>>() {}))
+                                        .orElse(Collections.emptyList());
+            String app = req.params(":app");
+            String env = req.params(":env");
+            String cat = req.params(":cat");
+            boolean binary = Optional.ofNullable(req.headers("Accept")).orElse("").contains(PeerCodec.CONTENT_TYPE);
+            Optional<Ranking> ranking = Ranking.fromParams(req::queryParams);
+            if (ranking.isPresent()) {
+                Map<String, Long> result = localRepo.getRankedUsages(app, env, cat, days(req), ranking.get());
+                return binary ? binary(res, PeerCodec.encodeTotals(result)) : json.toJson(result);
+            }
+            if ("true".equals(req.queryParams("by_date"))) {
+                Map<String, Map<String, Long>> result = keys.isEmpty() ? localRepo.getAllUsagesByDate(app, env, cat, days(req))
+                                                                       : localRepo.getUsagesByDate(app, env, cat, keys, days(req));
+                return binary ? binary(res, PeerCodec.encodeByDate(result)) : json.toJson(result);
+            }
+            Map<String, Long> result = keys.isEmpty() ? localRepo.getAllUsages(app, env, cat, days(req))
+                                                      : localRepo.getUsages(app, env, cat, keys, days(req));
+            return binary ? binary(res, PeerCodec.encodeTotals(result)) : json.toJson(result);
+        });
+        // newline delimited records streamed into the repository in batches, optionally gzipped
+        post("/_ingest", (req, res) -> {
+            InputStream in = req.raw().getInputStream();
+            if ("gzip".equalsIgnoreCase(req.headers("Content-Encoding"))) {
+                in = new GZIPInputStream(in);
+            }
+            long records = new UsageStreamReader(getRepo(req), ingestBatchSize).read(in);
+            res.status(201);
+            return ImmutableMap.of("records", records);
+        });
         post("/_import", (req, res) -> {
             String dir = req.queryParams("dir");
             String srcHost = req.queryParams("srcHost");
             String app = req.queryParams("app");
             String env = req.queryParams("env");
             int days = days(req);
-            executor.submit(() -> importData(dir, srcHost, app, env, days));
+            synchronized (this) {
+                if (importer != null && importer.isRunning()) {
+                    res.status(409);
+                    return "an import is already running";
+                }
+                importer = new Importer(getFromUsageRepository(dir, srcHost), repo, dir != null ? dir : srcHost, app, env,
+                                        days, importThreads, importBatchSize, checkpointDir.resolve(IMPORT_CHECKPOINT));
+                executor.submit(importer);
+            }
+            res.status(202);
             return "import started";
         });
         
     	get("/_ping", (req, res) -> id.toString() );
-    	get("/_stats", (req, res) -> elapsedTime.keySet().stream().map(r -> {
-			long invocationCount = invocations.get(r).get();
-			invocationCount = invocationCount == 0 ? 1 : invocationCount;
-			return ImmutableMap.of("req", r, 
-								   "total", elapsedTime.get(r).get(), 
-									"count", invocationCount,
-    								"avg", elapsedTime.get(r).get() / invocationCount);
-    		}).collect(toList())
-		);
+    	// before /:app, which would take it otherwise
+    	getText("/metrics", (req, res) -> {
+    		res.type("text/plain; version=0.0.4; charset=utf-8");
+    		StringWriter out = new StringWriter();
+    		Metrics.writePrometheus(out);
+    		return out.toString();
+    	});
+    	get("/_stats", (req, res) -> {
+    		List<Map<String, Object>> stats = latencies.entrySet().stream().map(e -> {
+    			// count and percentiles from one read of the buckets, so they agree with each other
+    			Map<String, Object> stat = new LinkedHashMap<>();
+    			stat.put("req", e.getKey());
+    			stat.putAll(e.getValue().snapshot());
+    			return stat;
+    		}).collect(toList());
+    		if (queryCache != null) {
+    			stats.add(ImmutableMap.<String, Object>of("cache", "queries",
+    									  "hits", queryCache.getHits(),
+    									  "misses", queryCache.getMisses(),
+    									  "evictions", queryCache.getEvictions(),
+    									  "size", queryCache.getSize()));
+    		}
+    		for (RequestLane lane : Arrays.asList(readLane, peerLane, ingestLane, adminLane)) {
+    			stats.add(lane.getStats());
+    		}
+    		return stats;
+    	});
+    	
+    	get("/_peers", (req, res) -> cluster != null ? cluster.getPeerStats() : Collections.emptyList());
     	
     	get("/health", (req, res) -> getRepo(req).getApps() != null ? "UP" : "DOWN");
     	
@@ -146,40 +346,64 @@ public class TrailRegister {
         get("/:app", (req, res) -> getRepo(req).getEnvironments(req.params(":app")));
         get("/:app/:env", (req, res) -> getRepo(req).getCategories(req.params(":app"), req.params(":env")));
 
-        get("/:app/:env/:cat", (req, res) -> {
-            List<String> keys = getRepo(req).getKeys(req.params(":app"), req.params(":env"), req.params(":cat"));
-
+        // usages are read a chunk of keys at a time as they're written, so only rankings, which need every total to
+        // pick from, hold a whole category
+        getStreamed("/:app/:env/:cat", (req, res) -> {
+            UsageRepository repo = getRepo(req);
+            String app = req.params(":app");
+            String env = req.params(":env");
+            String cat = req.params(":cat");
+            boolean paged = req.queryParams("limit") != null || req.queryParams("cursor") != null;
             if ("true".equals(req.queryParams("keys"))) {
-                return keys;
+                List<String> keys = paged ? page(res, repo, app, env, cat, req.queryParams("cursor"), limit(req))
+                                          : repo.getKeys(app, env, cat);
+                return (StreamedJson) out -> json.toJson(keys, List.class, out);
             }
 
-            return forkJoinPool.submit(() ->
-                keys.parallelStream().collect(toMap(k -> k, k -> getRepo(req).getUsages(toUsageKey(req, k), days(req))))).get();
+            boolean byDate = "true".equals(req.queryParams("by_date"));
+            int days = days(req);
+            List<String> keys = Optional.ofNullable(req.raw().getParameterValues("key"))
+                                        .map(k -> Arrays.stream(k).distinct().collect(toList()))
+                                        .orElse(Collections.emptyList());
+            Optional<Ranking> ranking = Ranking.fromParams(req::queryParams);
+            if (ranking.isPresent()) {
+                Map<String, Long> ranked = keys.isEmpty() ? repo.getRankedUsages(app, env, cat, days, ranking.get())
+                                                          : ranking.get().select(repo.getUsages(app, env, cat, keys, days));
+                if (!byDate) {
+                    return StreamedJson.totals(ranked.entrySet());
+                }
+                keys = new ArrayList<>(ranked.keySet());
+            } else if (keys.isEmpty()) {
+                keys = paged ? page(res, repo, app, env, cat, req.queryParams("cursor"), limit(req))
+                             : repo.getKeys(app, env, cat);
+            }
+            return byDate ? StreamedJson.byDate(chunked(res, keys, chunk -> repo.getUsagesByDate(app, env, cat, chunk, days)))
+                          : StreamedJson.totals(chunked(res, keys, chunk -> repo.getUsages(app, env, cat, chunk, days)));
         });
         
-        get("/:app/:env/:cat/:key", (req, res) -> {
+        getStreamed("/:app/:env/:cat/:key", (req, res) -> {
             if ("true".equals(req.queryParams("by_date"))) {
-                return getRepo(req).getUsagesByDate(toUsageKey(req), days(req));
+                return StreamedJson.totals(getRepo(req).getUsagesByDate(toUsageKey(req), days(req)).entrySet());
             }
-            return getRepo(req).getUsages(toUsageKey(req), days(req));
+            return String.valueOf(getRepo(req).getUsages(toUsageKey(req), days(req)));
         });
         
         post("/:app/:env", (req, res) -> {
             Map<String, Map<String, Integer>> body = parseJson(req, new TypeToken<Map<String, Map<String, Integer>>>() {});
-            body.forEach((category, usages) -> {
-                usages.forEach((key, num) -> {
-                    getRepo(req).recordUsages(new UsageKey(req.params(":app"), req.params(":env"), category, key), num);
-                });
+            Map<UsageKey, Integer> usages = new HashMap<>();
+            body.forEach((category, keys) -> {
+                keys.forEach((key, num) -> usages.put(new UsageKey(req.params(":app"), req.params(":env"), category, key), num));
             });
+            getRepo(req).recordUsages(usages, LocalDate.now());
             res.status(201);
             return "";
         });
         
         post("/:app/:env/:cat", (req, res) -> {
             Map<String, Integer> body = parseJson(req, new TypeToken<Map<String, Integer>>() {});
-            body.forEach((key, num) -> {
-                getRepo(req).recordUsages(new UsageKey(req.params(":app"), req.params(":env"), req.params(":cat"), key), num);
-            });
+            Map<UsageKey, Integer> usages = new HashMap<>();
+            body.forEach((key, num) -> usages.put(toUsageKey(req, key), num));
+            getRepo(req).recordUsages(usages, LocalDate.now());
             res.status(201);
             return "";
         });
@@ -191,60 +415,66 @@ public class TrailRegister {
         });
     }
 
-    private void importData(String dir, String srcHost, String importApp, String importEnv, int days) {
-        try {
-            UsageRepository fromRepo = getFromUsageRepository(dir, srcHost);
-            
-            List<String> apps = importApp != null ? Arrays.asList(importApp) : fromRepo.getApps();
-            
-            currentImport = apps.stream().flatMap(app -> {
-                    List<String> envs = importEnv != null ? Arrays.asList(importEnv) : fromRepo.getEnvironments(app);
-                    return envs.stream().flatMap(env -> {
-                        System.out.println("finding keys for " + app + "/" + env);
-                        return fromRepo.getCategories(app, env).stream().flatMap(cat ->
-                                    fromRepo.getKeys(app, env, cat).stream().map(key -> new UsageKey(app, env, cat, key)));
-                    });
-                })
-                .collect(toList());
-            
-            imported = new LinkedList<>();
-            
-            currentImport.forEach(key -> {
-                try {
-                    fromRepo.getUsagesByDate(key, days).forEach((date, num) -> {
-                        repo.recordUsages(key, num.intValue(), LocalDate.parse(date, DateTimeFormatter.BASIC_ISO_DATE));
-                    });
-                    imported.add(key);
-                } catch (Exception e) {
-                    System.out.println("error importing key " + key);
-                    e.printStackTrace();
-                }                
-            });
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-
     private UsageRepository getFromUsageRepository(String dir, String srcHost) {
         if (dir != null && srcHost == null) {
-            System.out.println("importing data from " + dir);
-            return new FileUsageRepository(Paths.get(dir));
+            logger.info("importing data from {}", dir);
+            // read only, finishing its compactions or saving its index would change the data being copied
+            return new FileUsageRepository(Paths.get(dir), true);
         }
         if (dir == null && srcHost != null) {
-            System.out.println("importing data from " + srcHost);
+            logger.info("importing data from {}", srcHost);
             return new ReadOnlyClientUsageRepository(new DirectTrailRegisterClient("http://" + srcHost));
         }
 
         throw new IllegalArgumentException("either dir or srcHost may be set!");
     }
 
-    private UsageRepository getRepo(Request req) {
-        if (repo instanceof ClusteredFileUsageRepository) {
-            if (isInternal(req)) {
-                return ((ClusteredFileUsageRepository) repo).getDelegate();
-            }
+    /**
+     * keys after the cursor in sorted order across the cluster, at most {@code limit} of them. When more are left the
+     * last one is sent back as the next cursor.
+     */
+    private static List<String> page(Response res, UsageRepository repo, String app, String env, String cat,
+                                     String cursor, int limit) {
+        // one more than the page tells whether there's another after it
+        List<String> keys = repo.getKeys(app, env, cat, cursor, limit == Integer.MAX_VALUE ? limit : limit + 1);
+        if (keys.size() <= limit) {
+            return keys;
         }
-        return repo;
+        List<String> page = keys.subList(0, limit);
+        res.header(NEXT_CURSOR_HEADER, page.get(page.size() - 1));
+        return page;
+    }
+
+    /**
+     * the keys' usages, read {@value #CHUNK_KEYS} keys at a time as they're written. The first chunk is read before
+     * anything is sent so peers it's missing make the partial results header, a peer first missed by a later chunk
+     * can't be reported anymore so the response is cut off rather than quietly leaving it out.
+     */
+    private static <T> Iterable<Map.Entry<String, T>> chunked(Response res, List<String> keys,
+                                                             Function<List<String>, Map<String, T>> read) {
+        List<List<String>> chunks = Lists.partition(keys, CHUNK_KEYS);
+        if (chunks.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Map.Entry<String, T>> first = inOrder(chunks.get(0), read.apply(chunks.get(0)));
+        Iterable<List<Map.Entry<String, T>>> rest = Iterables.transform(chunks.subList(1, chunks.size()), chunk -> {
+            List<Map.Entry<String, T>> entries = inOrder(chunk, read.apply(chunk));
+            String reported = res.raw().getHeader(PARTIAL_RESULTS_HEADER);
+            if (PartialResults.isPartial()
+                    && (reported == null || !Arrays.asList(reported.split(",")).containsAll(PartialResults.getMissing()))) {
+                throw new IllegalStateException("lost " + PartialResults.getMissing() + " part way through the response");
+            }
+            return entries;
+        });
+        return Iterables.concat(first, Iterables.concat(rest));
+    }
+
+    private static <T> List<Map.Entry<String, T>> inOrder(List<String> keys, Map<String, T> values) {
+        return keys.stream().filter(values::containsKey).map(k -> Maps.immutableEntry(k, values.get(k))).collect(toList());
+    }
+
+    private UsageRepository getRepo(Request req) {
+        return isInternal(req) ? localRepo : repo;
     }
 
     private boolean isInternal(Request req) {
@@ -263,6 +493,14 @@ public class TrailRegister {
         return json.fromJson(req.body(), typeToken.getType());
     }
     
+	private static int limit(Request req) {
+		int limit = Optional.ofNullable(req.queryParams("limit")).map(Integer::parseInt).orElse(Integer.MAX_VALUE);
+		if (limit <= 0) {
+			throw new IllegalArgumentException("limit must be positive");
+		}
+		return limit;
+	}
+	
 	private static Integer days(Request req) {
 		return Optional.ofNullable(req.queryParams("days")).map(Integer::parseInt).orElse(30);
 	}
@@ -275,23 +513,97 @@ public class TrailRegister {
 		Spark.post(path, wrap("POST", path, route), json::toJson);
 	}
 	
+	/**
+	 * registered without the json transformer, the route returns {@link StreamedJson} that's written once its headers
+	 * are set
+	 */
+	private void getStreamed(String path, Route route) {
+		Spark.get(path, wrap("GET", path, route));
+	}
+	
+	/**
+	 * registered without the json transformer, the route returns the body as a string
+	 */
+	private void getText(String path, Route route) {
+		Spark.get(path, wrap("GET", path, route));
+	}
+	
+	/**
+	 * registered without the json transformer, the route answers with json or {@link PeerCodec} bytes itself depending
+	 * on what the peer asked for
+	 */
+	private void postPeer(String path, Route route) {
+		Spark.post(path, wrap("POST", path, route));
+	}
+	
+	private static byte[] binary(Response res, byte[] body) {
+		res.type(PeerCodec.CONTENT_TYPE);
+		return body;
+	}
+	
 	private Route wrap(String method, String path, Route route) {
+		RequestLane lane = laneFor(method, path);
+		LatencyHistogram latency = Metrics.timer("trail_register_request_seconds", "time taken to answer requests", "route",
+		                                         method + " " + path);
+		latencies.put(method + " " + path, latency);
 		return (req, res) -> {
-			AtomicLong elapsed = elapsedTime.computeIfAbsent(method + " " + path, k -> new AtomicLong());
-			AtomicLong counter = invocations.computeIfAbsent(method + " " + path, k -> new AtomicLong());
-			long start = System.currentTimeMillis();
-			
-			Object result = route.handle(req, res);
-			
-			elapsed.addAndGet(System.currentTimeMillis() - start);
-			counter.incrementAndGet();
-			
-			res.header("Content-Type", "application/json");
-			
+			long start = System.nanoTime();
+			Object result = lane.call(() -> handle(route, req, res, start));
+			latency.record(System.nanoTime() - start);
 			return result;
 		};
 	}
 	
+	// runs on whichever thread the lane picks, so partial results and the trace are cleared and read there
+	private Object handle(Route route, Request req, Response res, long start) throws Exception {
+		PartialResults.clear();
+		Trace.clear();
+		Trace.add("queue", System.nanoTime() - start);
+		try {
+			return respond(route.handle(req, res), res);
+		} finally {
+			long elapsed = System.nanoTime() - start;
+			if (slowRequestNanos > 0 && elapsed > slowRequestNanos) {
+				logger.warn("slow request {} {}{} took {}ms: {}", req.requestMethod(), req.pathInfo(),
+				            req.queryString() != null ? "?" + req.queryString() : "", TimeUnit.NANOSECONDS.toMillis(elapsed),
+				            Trace.describe());
+			}
+		}
+	}
+	
+	private static Object respond(Object result, Response res) throws IOException {
+		if (res.raw().getContentType() == null) {
+			res.header("Content-Type", "application/json");
+		}
+		if (PartialResults.isPartial()) {
+			res.header(PARTIAL_RESULTS_HEADER, String.join(",", PartialResults.getMissing()));
+			PartialResults.clear();
+		}
+		if (result instanceof StreamedJson) {
+			long writing = Trace.start();
+			Writer body = new BufferedWriter(new OutputStreamWriter(res.raw().getOutputStream(), StandardCharsets.UTF_8));
+			JsonWriter out = new JsonWriter(body);
+			((StreamedJson) result).writeTo(out);
+			out.flush();
+			Trace.end("write response", writing);
+			return "";
+		}
+		return result;
+	}
+	
+	private RequestLane laneFor(String method, String path) {
+		if (path.startsWith(ClusterAwareTrailRegisterClient.PEER_PATH)) {
+			return peerLane;
+		}
+		if (path.equals("/_ingest") || "POST".equals(method) && !path.startsWith("/_")) {
+			return ingestLane;
+		}
+		if (path.startsWith("/_") || path.equals("/health") || path.equals("/version") || path.equals("/metrics")) {
+			return adminLane;
+		}
+		return readLane;
+	}
+	
 	private static Properties readVersionInfo() {
 	    InputStream in = ClassLoader.getSystemClassLoader().getResourceAsStream(POM_PROPS);
 	    if (in == null) {
@@ -307,10 +619,40 @@ public class TrailRegister {
 	    return props;
 	}
 
-    private static int getPoolSize() {
-        if (System.getenv(POOL_SIZE) != null) {
-            return Integer.parseInt(System.getenv(POOL_SIZE));
+    private static UsageRepository createStorage(Path dataDir) {
+        String engine = Optional.ofNullable(System.getenv(STORAGE_ENGINE)).orElse("file");
+        switch (engine) {
+            case "file":
+                return new FileUsageRepository(dataDir);
+            case "segment":
+                long segmentSize = Optional.ofNullable(System.getenv(SEGMENT_SIZE_MB)).map(Long::parseLong).orElse(64L);
+                return new SegmentLogUsageRepository(dataDir.resolve("segments"), segmentSize * 1024 * 1024);
+            case "ring":
+                int ringDays = Optional.ofNullable(System.getenv(RING_DAYS)).map(Integer::parseInt).orElse(732);
+                return new MappedRingUsageRepository(dataDir.resolve("rings"), ringDays, 10000);
+            default:
+                throw new IllegalArgumentException("unknown " + STORAGE_ENGINE + ": " + engine);
+        }
+    }
+
+    private static UsageRepository withWriteBehind(UsageRepository repo) {
+        long interval = Optional.ofNullable(System.getenv(WRITE_BEHIND_INTERVAL)).map(Long::parseLong).orElse(0L);
+        if (interval <= 0) {
+            return repo;
+        }
+        int maxPending = Optional.ofNullable(System.getenv(WRITE_BEHIND_MAX_PENDING)).map(Integer::parseInt).orElse(10000);
+        logger.info("buffering writes for up to {}ms or {} pending entries", interval, maxPending);
+        return new WriteBehindUsageRepository(repo, interval, TimeUnit.MILLISECONDS, maxPending);
+    }
+
+    private UsageRepository withQueryCache(UsageRepository repo) {
+        // off unless asked for, a cached read misses writes made on other nodes until it expires
+        long size = Optional.ofNullable(System.getenv(QUERY_CACHE_SIZE)).map(Long::parseLong).orElse(0L);
+        if (size <= 0) {
+            return repo;
         }
-        return 10;
+        long ttl = Optional.ofNullable(System.getenv(QUERY_CACHE_TTL)).map(Long::parseLong).orElse(10000L);
+        queryCache = new CachingUsageRepository(repo, size, ttl, TimeUnit.MILLISECONDS);
+        return queryCache;
     }
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package com.rei.trailregister;
 
+import java.util.Objects;
+
 public class UsageKey {
     private String app;
     private String env;
@@ -48,6 +50,24 @@ public class UsageKey {
         this.key = key;
     }
     
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof UsageKey)) {
+            return false;
+        }
+        UsageKey other = (UsageKey) o;
+        return Objects.equals(app, other.app) && Objects.equals(env, other.env)
+                && Objects.equals(category, other.category) && Objects.equals(key, other.key);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(app, env, category, key);
+    }
+
     @Override
     public String toString() {
         return String.format("%s/%s/%s/%s", app, env, category, key);
@@ -1,6 +1,10 @@
 package com.rei.trailregister;
 
+import static java.util.stream.Collectors.toMap;
+
 import java.time.LocalDate;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -20,12 +24,79 @@ public interface UsageRepository {
     
     void recordUsages(UsageKey key, int num, LocalDate date);
 
+    /**
+     * records usages for many keys on the same date, implementations should do this in as few round trips as possible.
+     */
+    default void recordUsages(Map<UsageKey, Integer> usages, LocalDate date) {
+        usages.forEach((key, num) -> recordUsages(key, num, date));
+    }
+
     List<String> getApps();
     List<String> getEnvironments(String app);
     List<String> getCategories(String app, String env);
     List<String> getKeys(String app, String env, String category);
+    /**
+     * @return at most {@code limit} of the category's keys that sort after {@code after}, in order, from the first key
+     *         when {@code after} is null
+     */
+    default List<String> getKeys(String app, String env, String category, String after, int limit) {
+        return KeyPages.firstAfter(getKeys(app, env, category), after, limit);
+    }
+
     Map<String, Long> getUsagesByDate(UsageKey key, int days);
     long getUsages(UsageKey key, int days);
+
+    /**
+     * @return total usages over the last {@code days} days for every key in the category
+     */
+    default Map<String, Long> getAllUsages(String app, String env, String category, int days) {
+        return getKeys(app, env, category).stream()
+                .collect(toMap(k -> k, k -> getUsages(new UsageKey(app, env, category, k), days)));
+    }
+
+    /**
+     * @return total usages over the last {@code days} days for each of the keys in the category
+     */
+    default Map<String, Long> getUsages(String app, String env, String category, Collection<String> keys, int days) {
+        return keys.stream().distinct()
+                .collect(toMap(k -> k, k -> getUsages(new UsageKey(app, env, category, k), days)));
+    }
+
+    /**
+     * @return usages by date over the last {@code days} days for each of the keys in the category
+     */
+    default Map<String, Map<String, Long>> getUsagesByDate(String app, String env, String category, Collection<String> keys,
+                                                           int days) {
+        return keys.stream().distinct()
+                .collect(toMap(k -> k, k -> getUsagesByDate(new UsageKey(app, env, category, k), days)));
+    }
+
+    /**
+     * @return usages by date over the last {@code days} days for every key in the category
+     */
+    default Map<String, Map<String, Long>> getAllUsagesByDate(String app, String env, String category, int days) {
+        return getUsagesByDate(app, env, category, getKeys(app, env, category), days);
+    }
+    
+    /**
+     * @return the keys in the category picked by the ranking of their totals over the last {@code days} days, in rank
+     *         order
+     */
+    default Map<String, Long> getRankedUsages(String app, String env, String category, int days, Ranking ranking) {
+        return ranking.select(getAllUsages(app, env, category, days));
+    }
     
     default void runCompaction() {}
+
+    /**
+     * @return progress of the current or last compaction pass, empty if this repository doesn't compact
+     */
+    default Map<String, Object> getCompactionStatus() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * releases any resources held by this repository, writing out anything not yet persisted.
+     */
+    default void shutdown() {}
 }
\ No newline at end of file
@@ -0,0 +1,124 @@
+package com.rei.trailregister;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+/**
+ * Reads newline delimited usage records off a stream and records them in batches, so an import of any size only holds
+ * one batch in memory at a time.
+ * <pre>
+ * {"app": "my-app", "env": "prod", "category": "pages", "key": "home", "date": "20160301", "num": 3}
+ * </pre>
+ * {@code date} defaults to today and {@code num} to 1. Records of the same key and date in a batch are summed. A bad
+ * record fails the read with a {@link BadRecordException} after every record before it has been recorded, so the
+ * sender can carry on from the one after it.
+ */
+class UsageStreamReader {
+    static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final UsageRepository repo;
+    private final int batchSize;
+
+    UsageStreamReader(UsageRepository repo, int batchSize) {
+        this.repo = repo;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return the number of records read
+     */
+    long read(InputStream in) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        // lenient so a stream of top level objects is accepted
+        reader.setLenient(true);
+        Map<LocalDate, Map<UsageKey, Integer>> batch = new HashMap<>();
+        LocalDate today = LocalDate.now();
+        long records = 0;
+        int batched = 0;
+        while (reader.peek() != JsonToken.END_DOCUMENT) {
+            try {
+                readRecord(reader, records + 1, today, batch);
+            } catch (IllegalArgumentException e) {
+                record(batch);
+                throw new BadRecordException(records, e.getMessage(), e);
+            } catch (IllegalStateException | MalformedJsonException e) {
+                record(batch);
+                throw new BadRecordException(records, "record " + (records + 1) + " isn't a json object", e);
+            }
+            records++;
+            if (++batched >= batchSize) {
+                record(batch);
+                batched = 0;
+            }
+        }
+        record(batch);
+        return records;
+    }
+
+    private static void readRecord(JsonReader reader, long record, LocalDate today,
+                                   Map<LocalDate, Map<UsageKey, Integer>> batch) throws IOException {
+        String app = null, env = null, category = null, key = null;
+        LocalDate date = today;
+        int num = 1;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case "app": app = reader.nextString(); break;
+                case "env": env = reader.nextString(); break;
+                case "category": category = reader.nextString(); break;
+                case "key": key = reader.nextString(); break;
+                case "date": date = parseDate(reader.nextString(), record); break;
+                case "num": num = reader.nextInt(); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (app == null || env == null || category == null || key == null) {
+            throw new IllegalArgumentException("record " + record + " needs app, env, category and key");
+        }
+        batch.computeIfAbsent(date, d -> new HashMap<>()).merge(new UsageKey(app, env, category, key), num, Integer::sum);
+    }
+
+    private static LocalDate parseDate(String date, long record) {
+        try {
+            return LocalDate.parse(date, DateTimeFormatter.BASIC_ISO_DATE);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("record " + record + " has date " + date + ", expected yyyyMMdd", e);
+        }
+    }
+
+    private void record(Map<LocalDate, Map<UsageKey, Integer>> batch) {
+        batch.forEach((date, usages) -> repo.recordUsages(usages, date));
+        batch.clear();
+    }
+
+    /**
+     * answered with a 400, telling the sender how many records were written before the bad one
+     */
+    static class BadRecordException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        private final long written;
+
+        BadRecordException(long written, String message, Exception cause) {
+            super(message, cause);
+            this.written = written;
+        }
+
+        long getWritten() {
+            return written;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package com.rei.trailregister;
+
+import static java.time.format.DateTimeFormatter.BASIC_ISO_DATE;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Buffers increments in memory and writes them to the delegate repository in batches, either on a fixed schedule or
+ * once the number of pending (key, date) entries reaches a limit. Reads merge the unflushed counts into the results
+ * of the delegate so callers never see a difference.
+ */
+public class WriteBehindUsageRepository implements UsageRepository {
+    private static Logger logger = LoggerFactory.getLogger(WriteBehindUsageRepository.class);
+    private static final int STRIPES = 32;
+    private static final int MAX_BATCH = 1000;
+
+    private final UsageRepository delegate;
+    private final int maxPending;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicInteger pendingEntries = new AtomicInteger();
+
+    // entries drained from the stripes that haven't been written to the delegate yet, only modified under the write lock
+    private final Map<UsageKey, Map<LocalDate, long[]>> inFlight = new HashMap<>();
+    private final ReadWriteLock flushLock = new ReentrantReadWriteLock(false);
+    private final Lock flushInProgress = new ReentrantLock();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    public WriteBehindUsageRepository(UsageRepository delegate, long interval, TimeUnit unit, int maxPending) {
+        this.delegate = delegate;
+        this.maxPending = maxPending;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        executor.scheduleWithFixedDelay(this::flush, interval, interval, unit);
+    }
+
+    @Override
+    public void recordUsages(UsageKey key, int num, LocalDate date) {
+        if (stripe(key).add(key, date, num) && pendingEntries.incrementAndGet() >= maxPending
+                && flushRequested.compareAndSet(false, true)) {
+            executor.execute(this::flush);
+        }
+    }
+
+    @Override
+    public List<String> getApps() {
+        return merge(delegate::getApps, k -> true, UsageKey::getApp);
+    }
+
+    @Override
+    public List<String> getEnvironments(String app) {
+        return merge(() -> delegate.getEnvironments(app), k -> k.getApp().equals(app), UsageKey::getEnv);
+    }
+
+    @Override
+    public List<String> getCategories(String app, String env) {
+        return merge(() -> delegate.getCategories(app, env),
+                     k -> k.getApp().equals(app) && k.getEnv().equals(env), UsageKey::getCategory);
+    }
+
+    @Override
+    public List<String> getKeys(String app, String env, String category) {
+        return merge(() -> delegate.getKeys(app, env, category),
+                     k -> k.getApp().equals(app) && k.getEnv().equals(env) && k.getCategory().equals(category),
+                     UsageKey::getKey);
+    }
+
+    @Override
+    public List<String> getKeys(String app, String env, String category, String after, int limit) {
+        return withReadLock(() -> {
+            List<String> keys = new ArrayList<>(delegate.getKeys(app, env, category, after, limit));
+            pendingKeys(k -> k.getApp().equals(app) && k.getEnv().equals(env) && k.getCategory().equals(category))
+                .forEach(key -> keys.add(key.getKey()));
+            return KeyPages.firstAfter(keys, after, limit);
+        });
+    }
+
+    @Override
+    public Map<String, Long> getUsagesByDate(UsageKey key, int days) {
+        return withReadLock(() -> {
+            Map<String, Long> result = new TreeMap<>(delegate.getUsagesByDate(key, days));
+            forEachPending(key, days, (date, num) -> result.merge(BASIC_ISO_DATE.format(date), num, Long::sum));
+            return result;
+        });
+    }
+
+    @Override
+    public long getUsages(UsageKey key, int days) {
+        return withReadLock(() -> {
+            long[] total = { delegate.getUsages(key, days) };
+            forEachPending(key, days, (date, num) -> total[0] += num);
+            return total[0];
+        });
+    }
+
+    @Override
+    public Map<String, Long> getAllUsages(String app, String env, String category, int days) {
+        return withReadLock(() -> {
+            Map<String, Long> result = new HashMap<>(delegate.getAllUsages(app, env, category, days));
+            pendingKeys(k -> k.getApp().equals(app) && k.getEnv().equals(env) && k.getCategory().equals(category))
+                .forEach(key -> {
+                    result.putIfAbsent(key.getKey(), 0L);
+                    forEachPending(key, days, (date, num) -> result.merge(key.getKey(), num, Long::sum));
+                });
+            return result;
+        });
+    }
+
+    @Override
+    public void runCompaction() {
+        flush();
+        delegate.runCompaction();
+    }
+
+    @Override
+    public Map<String, Object> getCompactionStatus() {
+        return delegate.getCompactionStatus();
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        delegate.shutdown();
+    }
+
+    /**
+     * writes all buffered increments to the delegate repository.
+     */
+    public void flush() {
+        flushInProgress.lock();
+        try {
+            flushRequested.set(false);
+            drain();
+            writeInFlight();
+        } finally {
+            flushInProgress.unlock();
+        }
+    }
+
+    int getPendingEntries() {
+        return pendingEntries.get();
+    }
+
+    private void drain() {
+        flushLock.writeLock().lock();
+        try {
+            for (Stripe stripe : stripes) {
+                stripe.drain().forEach((key, dates) -> {
+                    pendingEntries.addAndGet(-dates.size());
+                    Map<LocalDate, long[]> target = inFlight.computeIfAbsent(key, k -> new HashMap<>());
+                    dates.forEach((date, num) -> target.computeIfAbsent(date, d -> new long[1])[0] += num[0]);
+                });
+            }
+        } finally {
+            flushLock.writeLock().unlock();
+        }
+    }
+
+    private void writeInFlight() {
+        Set<LocalDate> dates = withReadLock(() -> {
+            Set<LocalDate> pendingDates = new TreeSet<>();
+            inFlight.values().forEach(byDate -> pendingDates.addAll(byDate.keySet()));
+            return pendingDates;
+        });
+        for (LocalDate date : dates) {
+            boolean more = true;
+            while (more) {
+                // written a batch at a time under the write lock so a concurrent read never counts a usage twice
+                flushLock.writeLock().lock();
+                try {
+                    more = writeBatch(date);
+                } catch (RuntimeException e) {
+                    logger.warn("failed to flush usages for {}, will retry on next flush", date, e);
+                    return;
+                } finally {
+                    flushLock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if there are more usages left to write for the date
+     */
+    private boolean writeBatch(LocalDate date) {
+        Map<UsageKey, Integer> batch = new HashMap<>();
+        for (Map.Entry<UsageKey, Map<LocalDate, long[]>> e : inFlight.entrySet()) {
+            long[] num = e.getValue().get(date);
+            if (num != null) {
+                batch.put(e.getKey(), (int) Math.min(num[0], Integer.MAX_VALUE));
+                if (batch.size() == MAX_BATCH) {
+                    break;
+                }
+            }
+        }
+        if (batch.isEmpty()) {
+            return false;
+        }
+
+        delegate.recordUsages(batch, date);
+
+        batch.forEach((key, written) -> {
+            Map<LocalDate, long[]> byDate = inFlight.get(key);
+            long[] num = byDate.get(date);
+            num[0] -= written;
+            if (num[0] <= 0) {
+                byDate.remove(date);
+                if (byDate.isEmpty()) {
+                    inFlight.remove(key);
+                }
+            }
+        });
+        return true;
+    }
+
+    private void forEachPending(UsageKey key, int days, DateCountConsumer consumer) {
+        LocalDate now = LocalDate.now();
+        LocalDate first = now.minusDays(days - 1);
+        Predicate<LocalDate> inRange = date -> !date.isBefore(first) && !date.isAfter(now);
+
+        Map<LocalDate, long[]> flushing = inFlight.get(key);
+        if (flushing != null) {
+            flushing.forEach((date, num) -> {
+                if (inRange.test(date)) { consumer.accept(date, num[0]); }
+            });
+        }
+        stripe(key).forEach(key, (date, num) -> {
+            if (inRange.test(date)) { consumer.accept(date, num); }
+        });
+    }
+
+    private List<String> merge(Supplier<List<String>> fromDelegate, Predicate<UsageKey> filter,
+                               Function<UsageKey, String> part) {
+        return withReadLock(() -> {
+            Set<String> result = new TreeSet<>(fromDelegate.get());
+            pendingKeys(filter).stream().map(part).forEach(result::add);
+            return new ArrayList<>(result);
+        });
+    }
+
+    // callers must hold the read lock
+    private Set<UsageKey> pendingKeys(Predicate<UsageKey> filter) {
+        Set<UsageKey> keys = new HashSet<>();
+        inFlight.keySet().stream().filter(filter).forEach(keys::add);
+        for (Stripe stripe : stripes) {
+            stripe.keys().stream().filter(filter).forEach(keys::add);
+        }
+        return keys;
+    }
+
+    private <T> T withReadLock(Supplier<T> work) {
+        flushLock.readLock().lock();
+        try {
+            return work.get();
+        } finally {
+            flushLock.readLock().unlock();
+        }
+    }
+
+    private Stripe stripe(UsageKey key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    @FunctionalInterface
+    private interface DateCountConsumer {
+        void accept(LocalDate date, long num);
+    }
+
+    private static class Stripe {
+        private Map<UsageKey, Map<LocalDate, long[]>> counts = new HashMap<>();
+
+        /**
+         * @return true if this created a new (key, date) entry
+         */
+        synchronized boolean add(UsageKey key, LocalDate date, int num) {
+            Map<LocalDate, long[]> dates = counts.computeIfAbsent(key, k -> new HashMap<>(4));
+            long[] count = dates.get(date);
+            if (count == null) {
+                dates.put(date, new long[] { num });
+                return true;
+            }
+            count[0] += num;
+            return false;
+        }
+
+        synchronized void forEach(UsageKey key, DateCountConsumer consumer) {
+            Map<LocalDate, long[]> dates = counts.get(key);
+            if (dates != null) {
+                dates.forEach((date, num) -> consumer.accept(date, num[0]));
+            }
+        }
+
+        synchronized List<UsageKey> keys() {
+            return new ArrayList<>(counts.keySet());
+        }
+
+        synchronized Map<UsageKey, Map<LocalDate, long[]>> drain() {
+            Map<UsageKey, Map<LocalDate, long[]>> drained = counts;
+            counts = new HashMap<>();
+            return drained;
+        }
+    }
+}
@@ -1,18 +1,139 @@
 package com.rei.trailregister.cluster;
 
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import com.google.common.net.UrlEscapers;
+import com.google.gson.reflect.TypeToken;
+import com.rei.trailregister.Ranking;
+import com.rei.trailregister.UsageKey;
 import com.rei.trailregister.client.DirectTrailRegisterClient;
+import com.squareup.okhttp.MediaType;
 import com.squareup.okhttp.Request.Builder;
 
-public class ClusterAwareTrailRegisterClient extends DirectTrailRegisterClient {
+public class ClusterAwareTrailRegisterClient extends DirectTrailRegisterClient implements PeerClient {
 
     public static final String CLUSTERING_HEADER = "X-From-Peer";
+    public static final String PEER_PATH = "/_peer";
+    public static final String USAGES_PATH = PEER_PATH + "/_usages";
+    public static final String ROLLUP_PATH = PEER_PATH + "/_rollup";
+    // one segment longer than any write, so a node that predates peer reads answers 404 instead of recording a usage
+    public static final String READ_PATH = PEER_PATH + "/_read";
+
+    // peers answer bulk reads in the binary encoding when asked, json still works for nodes that predate it
+    private static final String ACCEPT = PeerCodec.CONTENT_TYPE + ", application/json;q=0.5";
+
+    // the tag of the call being made on this thread, set on its requests
+    private final ThreadLocal<Object> tag = new ThreadLocal<>();
 
     public ClusterAwareTrailRegisterClient(String baseUrl) {
         super(baseUrl);
     }
 
+    /**
+     * @param readTimeoutMillis how long reads wait for the peer, writes keep the default
+     */
+    public ClusterAwareTrailRegisterClient(String baseUrl, long readTimeoutMillis) {
+        super(baseUrl);
+        setReadTimeout(readTimeoutMillis);
+    }
+
+    @Override
+    public <T> T tagged(Object tag, Function<PeerClient, T> call) {
+        this.tag.set(tag);
+        try {
+            return call.apply(this);
+        } finally {
+            this.tag.remove();
+        }
+    }
+
+    @Override
+    public void cancel(Object tag) {
+        super.cancel(tag);
+    }
+
+    @Override
+    public Map<String, Long> getUsages(String app, String env, String category, Collection<String> keys, int days) {
+        return post(READ_PATH + path(app, env, category) + "?days=" + days, new ArrayList<>(keys), ACCEPT,
+                    (type, body) -> isBinary(type) ? PeerCodec.decodeTotals(body)
+                                                   : required(fromJson(body, new TypeToken<Map<String, Long>>(){})));
+    }
+
+    @Override
+    public List<String> getKeys(String app, String env, String category, String after, int limit) {
+        String cursor = after == null ? "" : "&cursor=" + UrlEscapers.urlFormParameterEscaper().escape(after);
+        return get(path(app, env, category) + "?keys=true&limit=" + limit + cursor, new TypeToken<List<String>>(){});
+    }
+
+    @Override
+    public Map<String, Long> getRankedUsages(String app, String env, String category, int days, Ranking ranking) {
+        return post(READ_PATH + path(app, env, category) + "?days=" + days + "&" + ranking.toParams(), new ArrayList<>(),
+                    ACCEPT, (type, body) -> isBinary(type) ? PeerCodec.decodeTotals(body)
+                                                           : required(fromJson(body, new TypeToken<Map<String, Long>>(){})));
+    }
+
+    @Override
+    public Map<String, Map<String, Long>> getUsagesByDate(String app, String env, String category, Collection<String> keys,
+                                                          int days) {
+        Map<String, Map<String, Long>> result = new HashMap<>();
+        getDailyCounts(app, env, category, keys, LocalDate.now(), days).forEach((key, counts) -> result.put(key, counts.toMap()));
+        return result;
+    }
+
+    @Override
+    public Map<String, DailyCounts> getDailyCounts(String app, String env, String category, Collection<String> keys,
+                                                   LocalDate lastDate, int days) {
+        return post(READ_PATH + path(app, env, category) + "?by_date=true&days=" + days, new ArrayList<>(keys), ACCEPT,
+                    (type, body) -> {
+                        if (isBinary(type)) {
+                            return PeerCodec.decodeByDate(body, lastDate, days);
+                        }
+                        Map<String, DailyCounts> result = new HashMap<>();
+                        required(fromJson(body, new TypeToken<Map<String, Map<String, Long>>>(){}))
+                                .forEach((key, byDate) -> result.put(key, DailyCounts.of(byDate, lastDate, days)));
+                        return result;
+                    });
+    }
+
+    @Override
+    public void recordUsages(Map<UsageKey, Integer> usages, LocalDate date) {
+        // nested app, environment, category, key like the other bulk writes
+        Map<String, Map<String, Map<String, Map<String, Integer>>>> body = new HashMap<>();
+        usages.forEach((key, num) -> body.computeIfAbsent(key.getApp(), a -> new HashMap<>())
+                                         .computeIfAbsent(key.getEnv(), e -> new HashMap<>())
+                                         .computeIfAbsent(key.getCategory(), c -> new HashMap<>())
+                                         .merge(key.getKey(), num, Integer::sum));
+        send(USAGES_PATH + "?date=" + DailyCounts.format(date), body);
+    }
+
+    @Override
+    public void pushRollup(byte[] rollup) {
+        send(ROLLUP_PATH, rollup, PeerCodec.CONTENT_TYPE);
+    }
+
     @Override
     protected void modifyRequest(Builder b) {
         b.addHeader(CLUSTERING_HEADER, "true");
+        Object current = tag.get();
+        if (current != null) {
+            b.tag(current);
+        }
+    }
+
+    private static <T> T required(T result) {
+        if (result == null) {
+            throw new IllegalStateException("peer answered a read with an empty body");
+        }
+        return result;
+    }
+
+    private static boolean isBinary(MediaType type) {
+        return type != null && PeerCodec.CONTENT_TYPE.equals(type.type() + "/" + type.subtype());
     }
 }
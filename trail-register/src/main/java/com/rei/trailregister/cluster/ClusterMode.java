@@ -0,0 +1,21 @@
+package com.rei.trailregister.cluster;
+
+/**
+ * How clustered nodes share their usage data.
+ */
+public enum ClusterMode {
+    /**
+     * every node keeps the writes it receives, reads ask every peer and add up their answers
+     */
+    FANOUT,
+    /**
+     * each category belongs to a few nodes picked by consistent hashing, writes are handed off to them in batches and
+     * reads ask one of them
+     */
+    OWNER,
+    /**
+     * every node keeps the writes it receives and periodically pushes its changed counts to its peers, reads only
+     * look at local data and what peers last pushed
+     */
+    ROLLUP
+}
@@ -4,90 +4,833 @@ import static java.util.stream.Collectors.toList;
 
 import java.nio.file.Path;
 import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.net.HostAndPort;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import com.rei.trailregister.FileUsageRepository;
+import com.rei.trailregister.KeyPages;
+import com.rei.trailregister.PartialResults;
+import com.rei.trailregister.Ranking;
+import com.rei.trailregister.Trace;
 import com.rei.trailregister.UsageKey;
 import com.rei.trailregister.UsageRepository;
-import com.rei.trailregister.client.TrailRegisterClient;
+import com.rei.trailregister.metrics.LatencyHistogram;
+import com.rei.trailregister.metrics.Metrics;
 
 public class ClusteredFileUsageRepository implements UsageRepository {
 	private static Logger logger = LoggerFactory.getLogger(ClusteredFileUsageRepository.class);
 
+    public static final long DEFAULT_DEADLINE_MILLIS = 2000;
+    public static final int DEFAULT_REPLICAS = 2;
+    // reads in flight to one peer at once, and waiting for one of those to finish before the peer is left out
+    static final int MAX_PEER_READS = 4;
+    static final int MAX_QUEUED_PEER_READS = 64;
+    static final long HANDOFF_INTERVAL_MILLIS = 1000;
+    // distinct keys queued for one peer before more writes for it are dropped, so an owner that's down a long time
+    // can't use up the heap
+    static final int MAX_PENDING_HANDOFFS = 100_000;
+    // how often availability is checked again while this node hasn't found itself among the peers, and how many times
+    static final long SELF_CHECK_INTERVAL_MILLIS = 1000;
+    static final int MAX_SELF_CHECKS = 300;
+    public static final long DEFAULT_ROLLUP_INTERVAL_MILLIS = 5000;
+    public static final long DEFAULT_ROLLUP_STALENESS_MILLIS = 30000;
+    // days of peer counts kept in ROLLUP mode, matches how long the ring engine keeps them by default
+    static final int ROLLUP_DAYS = 732;
+    // peers sent every count in one push, and how many keys go in each body those counts are split into
+    static final int MAX_FULL_ROLLUPS = 2;
+    static final int FULL_ROLLUP_KEYS = 1000;
+
+    private static final LongAdder PEER_TIMEOUTS = Metrics.counter("trail_register_peer_timeouts_total",
+                                                                   "peer reads left out for missing the deadline");
+    private static final LongAdder PEER_ERRORS = Metrics.counter("trail_register_peer_errors_total",
+                                                                 "calls to peers that failed");
+    private static final LongAdder HANDOFFS_DROPPED = Metrics.counter("trail_register_handoffs_dropped_total",
+                                                                      "usages dropped because too many were queued for a peer");
+
     private ScheduledExecutorService availabilityCheckExecutor = Executors.newScheduledThreadPool(1); 
+    private ScheduledExecutorService syncExecutor;
+    private long deadlineNanos;
+    private int replicas;
+    // set in OWNER mode, members are every configured peer including this node
+    private HashRing<Peer> ring;
+    // set in ROLLUP mode, with the earliest day each key changed on since the last push
+    private RollupTable rollups;
+    private ConcurrentMap<UsageKey, LocalDate> changed = new ConcurrentHashMap<>();
+    private long rollupStalenessMillis;
     
     private volatile List<Peer> availablePeers = Collections.emptyList();
     private List<Peer> possiblePeers;
 	private UUID id;
 	private volatile CountDownLatch initialized = new CountDownLatch(1);
 
-    private FileUsageRepository delegate;
+    private UsageRepository delegate;
 	
     public ClusteredFileUsageRepository(Path dataDir, UUID id, List<HostAndPort> peers) {
-        delegate = new FileUsageRepository(dataDir);
+        this(new FileUsageRepository(dataDir), id, peers);
+    }
+
+    public ClusteredFileUsageRepository(UsageRepository delegate, UUID id, List<HostAndPort> peers) {
+        this(delegate, id, peers, DEFAULT_DEADLINE_MILLIS);
+    }
+
+    /**
+     * @param deadlineMillis how long a read waits for peers, peers that haven't answered by then are left out of the
+     *                       result and reported through {@link PartialResults}
+     */
+    public ClusteredFileUsageRepository(UsageRepository delegate, UUID id, List<HostAndPort> peers, long deadlineMillis) {
+        this(delegate, id, peers, deadlineMillis, ClusterMode.FANOUT, DEFAULT_REPLICAS);
+    }
+
+    /**
+     * @param replicas in {@link ClusterMode#OWNER} mode, how many nodes keep each category. The peers must list every
+     *                 node including this one, the same way on every node, so they all agree on the owners.
+     */
+    public ClusteredFileUsageRepository(UsageRepository delegate, UUID id, List<HostAndPort> peers, long deadlineMillis,
+                                        ClusterMode mode, int replicas) {
+        this(delegate, id, peers, deadlineMillis, mode, replicas, DEFAULT_ROLLUP_INTERVAL_MILLIS,
+             DEFAULT_ROLLUP_STALENESS_MILLIS);
+    }
+
+    /**
+     * @param rollupIntervalMillis in {@link ClusterMode#ROLLUP} mode, how often changed counts are pushed to peers
+     * @param rollupStalenessMillis in {@link ClusterMode#ROLLUP} mode, reads still use counts from a peer that hasn't
+     *                              pushed for this long but report it through {@link PartialResults}
+     */
+    public ClusteredFileUsageRepository(UsageRepository delegate, UUID id, List<HostAndPort> peers, long deadlineMillis,
+                                        ClusterMode mode, int replicas, long rollupIntervalMillis,
+                                        long rollupStalenessMillis) {
+        this(delegate, id, peers, deadlineMillis, mode, replicas, rollupIntervalMillis, rollupStalenessMillis, null);
+    }
+
+    /**
+     * @param self which of the peers is this node, or null to find out by pinging each peer for its id. Until the ping
+     *             to itself succeeds, which can't happen before the server is listening, a node in
+     *             {@link ClusterMode#OWNER} mode queues writes it owns instead of keeping them and a node in
+     *             {@link ClusterMode#ROLLUP} mode doesn't push.
+     */
+    public ClusteredFileUsageRepository(UsageRepository delegate, UUID id, List<HostAndPort> peers, long deadlineMillis,
+                                        ClusterMode mode, int replicas, long rollupIntervalMillis,
+                                        long rollupStalenessMillis, HostAndPort self) {
+        this(delegate, id, createClients(peers, deadlineMillis), deadlineMillis, mode, replicas, rollupIntervalMillis,
+             rollupStalenessMillis, self);
+    }
+
+    ClusteredFileUsageRepository(UsageRepository delegate, UUID id, Map<HostAndPort, PeerClient> peers,
+                                 long deadlineMillis) {
+        this(delegate, id, peers, deadlineMillis, ClusterMode.FANOUT, DEFAULT_REPLICAS);
+    }
+
+    ClusteredFileUsageRepository(UsageRepository delegate, UUID id, Map<HostAndPort, PeerClient> peers,
+                                 long deadlineMillis, ClusterMode mode, int replicas) {
+        this(delegate, id, peers, deadlineMillis, mode, replicas, DEFAULT_ROLLUP_INTERVAL_MILLIS,
+             DEFAULT_ROLLUP_STALENESS_MILLIS);
+    }
+
+    ClusteredFileUsageRepository(UsageRepository delegate, UUID id, Map<HostAndPort, PeerClient> peers,
+                                 long deadlineMillis, ClusterMode mode, int replicas, long rollupIntervalMillis,
+                                 long rollupStalenessMillis) {
+        this(delegate, id, peers, deadlineMillis, mode, replicas, rollupIntervalMillis, rollupStalenessMillis, null);
+    }
+
+    ClusteredFileUsageRepository(UsageRepository delegate, UUID id, Map<HostAndPort, PeerClient> peers,
+                                 long deadlineMillis, ClusterMode mode, int replicas, long rollupIntervalMillis,
+                                 long rollupStalenessMillis, HostAndPort self) {
+        this.delegate = delegate;
 		this.id = id;
-        possiblePeers = peers.stream().map(Peer::new).collect(toList());
+		this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+		this.replicas = Math.max(1, replicas);
+        possiblePeers = peers.entrySet().stream().map(e -> new Peer(e.getKey(), e.getValue())).collect(toList());
+        if (self != null) {
+            possiblePeers.stream().filter(peer -> peer.host.equals(self)).forEach(peer -> peer.self = true);
+            if (!hasSelf()) {
+                logger.warn("{} isn't one of the peers {}, will look for this node by pinging them", self, peers.keySet());
+            }
+        }
+        if (mode != ClusterMode.FANOUT) {
+            syncExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("cluster-sync-%d")
+                                                                                                .setDaemon(true)
+                                                                                                .build());
+        }
+        if (mode == ClusterMode.OWNER) {
+            ring = new HashRing<>(possiblePeers, Peer::toString, HashRing.DEFAULT_POINTS);
+            syncExecutor.scheduleWithFixedDelay(this::flushHandoffs, HANDOFF_INTERVAL_MILLIS, HANDOFF_INTERVAL_MILLIS,
+                                                TimeUnit.MILLISECONDS);
+        }
+        if (mode == ClusterMode.ROLLUP) {
+            rollups = new RollupTable();
+            this.rollupStalenessMillis = rollupStalenessMillis;
+            syncExecutor.scheduleWithFixedDelay(this::pushRollups, rollupIntervalMillis, rollupIntervalMillis,
+                                                TimeUnit.MILLISECONDS);
+        }
         availabilityCheckExecutor.scheduleAtFixedRate(this::checkAvailability, 0, 1, TimeUnit.MINUTES);
+        if (mode != ClusterMode.FANOUT) {
+            // peers have to include this node in these modes
+            availabilityCheckExecutor.schedule(() -> findSelf(0), SELF_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
     }
 
     public void recordUsages(UsageKey key, int num, LocalDate date) {
+        if (ring != null) {
+            recordUsages(Collections.singletonMap(key, num), date);
+            return;
+        }
         delegate.recordUsages(key, num, date);
+        if (rollups != null) {
+            changed.merge(key, date, ClusteredFileUsageRepository::earliest);
+        }
+    }
+
+    @Override
+    public void recordUsages(Map<UsageKey, Integer> usages, LocalDate date) {
+        if (ring == null) {
+            delegate.recordUsages(usages, date);
+            if (rollups != null) {
+                // marked after the write so the push that picks the key up reads the new count
+                usages.keySet().forEach(key -> changed.merge(key, date, ClusteredFileUsageRepository::earliest));
+            }
+            return;
+        }
+        awaitInitialization();
+        // kept here if this node is one of the owners, queued for the other owners and sent by the handoff thread
+        Map<UsageKey, Integer> local = new HashMap<>();
+        usages.forEach((key, num) -> owners(key.getApp(), key.getEnv(), key.getCategory()).forEach(owner -> {
+            if (owner.self) {
+                local.put(key, num);
+            } else {
+                owner.handoff(key, num, date);
+            }
+        }));
+        if (!local.isEmpty()) {
+            delegate.recordUsages(local, date);
+        }
     }
 
     public List<String> getApps() {
+        if (ring != null) {
+            return listEverywhere(delegate::getApps, PeerClient::getApps);
+        }
         return delegate.getApps();
     }
 
     public List<String> getEnvironments(String app) {
+        if (ring != null) {
+            return listEverywhere(() -> delegate.getEnvironments(app), client -> client.getEnvironments(app));
+        }
         return delegate.getEnvironments(app);
     }
 
     public List<String> getCategories(String app, String env) {
+        if (ring != null) {
+            return listEverywhere(() -> delegate.getCategories(app, env), client -> client.getCategories(app, env));
+        }
         return delegate.getCategories(app, env);
     }
 
+    /**
+     * keys are listed wherever their counts are read from, so every key a read of the category would count is listed
+     */
     public List<String> getKeys(String app, String env, String category) {
-        return delegate.getKeys(app, env, category);
+        if (ring != null) {
+            return readOwned(app, env, category, () -> delegate.getKeys(app, env, category),
+                             client -> client.getKeys(app, env, category));
+        }
+        if (rollups != null) {
+            Set<String> result = new TreeSet<>(delegate.getKeys(app, env, category));
+            result.addAll(rollups.getKeys(app, env, category));
+            return new ArrayList<>(result);
+        }
+        return listEverywhere(() -> delegate.getKeys(app, env, category), client -> client.getKeys(app, env, category));
+    }
+
+    @Override
+    public List<String> getKeys(String app, String env, String category, String after, int limit) {
+        if (ring != null) {
+            return readOwned(app, env, category, () -> delegate.getKeys(app, env, category, after, limit),
+                             client -> KeyPages.firstAfter(client.getKeys(app, env, category, after, limit), after, limit));
+        }
+        if (rollups != null) {
+            List<String> keys = new ArrayList<>(delegate.getKeys(app, env, category, after, limit));
+            keys.addAll(rollups.getKeys(app, env, category));
+            return KeyPages.firstAfter(keys, after, limit);
+        }
+        awaitInitialization();
+        List<List<String>> peerResults = scatter(client -> client.getKeys(app, env, category, after, limit));
+        List<String> keys = new ArrayList<>(delegate.getKeys(app, env, category, after, limit));
+        peerResults.stream().filter(Objects::nonNull).forEach(keys::addAll);
+        return KeyPages.firstAfter(keys, after, limit);
     }
     
     @Override
     public Map<String, Long> getUsagesByDate(UsageKey key, int days) {
+        if (ring != null) {
+            return readOwned(key.getApp(), key.getEnv(), key.getCategory(), () -> delegate.getUsagesByDate(key, days),
+                             client -> client.getUsagesByDate(key.getApp(), key.getEnv(), key.getCategory(), key.getKey(), days));
+        }
+        if (rollups != null) {
+            return rolledUpByDate(key.getApp(), key.getEnv(), key.getCategory(), Collections.singletonList(key.getKey()),
+                                  () -> Collections.singletonMap(key.getKey(), delegate.getUsagesByDate(key, days)), days)
+                    .getOrDefault(key.getKey(), Collections.emptyMap());
+        }
     	awaitInitialization();
-        Map<String, Long> localResult = delegate.getUsagesByDate(key, days);
-        
-        availablePeers.parallelStream().forEach(peer -> 
-            localResult.putAll(peer.client.getUsagesByDate(key.getApp(), key.getEnv(), key.getCategory(), key.getKey(), days)));
-        
-        return localResult;
+        LocalDate today = LocalDate.now();
+        // peers decode straight into day arrays on their own threads, leaving only array additions for this one
+        List<DailyCounts> peerResults = scatter(client -> client.getDailyCounts(key.getApp(), key.getEnv(), key.getCategory(),
+                                                                                Collections.singletonList(key.getKey()),
+                                                                                today, days)
+                                                                .get(key.getKey()));
+        DailyCounts result = DailyCounts.of(delegate.getUsagesByDate(key, days), today, days);
+        peerResults.stream().filter(Objects::nonNull).forEach(result::add);
+        return result.toMap();
     }
 
     @Override
     public long getUsages(UsageKey key, int days) {
+        if (ring != null) {
+            return readOwned(key.getApp(), key.getEnv(), key.getCategory(), () -> delegate.getUsages(key, days),
+                             client -> client.getUsages(key.getApp(), key.getEnv(), key.getCategory(), key.getKey(), days));
+        }
+        if (rollups != null) {
+            return delegate.getUsages(key, days)
+                   + rolledUp(key.getApp(), key.getEnv(), key.getCategory(), Collections.singletonList(key.getKey()), days)
+                           .getOrDefault(key.getKey(), 0L);
+        }
     	awaitInitialization();
+        List<Long> peerResults = scatter(client -> client.getUsages(key.getApp(), key.getEnv(), key.getCategory(),
+                                                                    key.getKey(), days));
         long localResult = delegate.getUsages(key, days);
-        return localResult + getUsagesFromPeers(key, days);
+        return localResult + peerResults.stream().mapToLong(Long::longValue).sum();
     }
 
-    public FileUsageRepository getDelegate() {
+    @Override
+    public Map<String, Long> getAllUsages(String app, String env, String category, int days) {
+        if (ring != null) {
+            return readOwned(app, env, category, () -> delegate.getAllUsages(app, env, category, days),
+                             client -> client.getUsages(app, env, category, Collections.emptyList(), days));
+        }
+        if (rollups != null) {
+            Map<String, Long> result = new HashMap<>(delegate.getAllUsages(app, env, category, days));
+            rolledUp(app, env, category, null, days).forEach((k, num) -> result.merge(k, num, Long::sum));
+            return result;
+        }
+        awaitInitialization();
+        List<Map<String, Long>> peerResults = scatter(client -> client.getUsages(app, env, category, Collections.emptyList(), days));
+        Map<String, Long> result = new HashMap<>(delegate.getAllUsages(app, env, category, days));
+        peerResults.forEach(peerResult -> peerResult.forEach((k, num) -> result.merge(k, num, Long::sum)));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getUsages(String app, String env, String category, Collection<String> keys, int days) {
+        if (ring != null) {
+            return readOwned(app, env, category, () -> delegate.getUsages(app, env, category, keys, days),
+                             client -> client.getUsages(app, env, category, keys, days));
+        }
+        if (rollups != null) {
+            Map<String, Long> result = new HashMap<>(delegate.getUsages(app, env, category, keys, days));
+            rolledUp(app, env, category, keys, days).forEach((k, num) -> result.merge(k, num, Long::sum));
+            return result;
+        }
+        awaitInitialization();
+        List<Map<String, Long>> peerResults = scatter(client -> client.getUsages(app, env, category, keys, days));
+        Map<String, Long> result = new HashMap<>(delegate.getUsages(app, env, category, keys, days));
+        peerResults.forEach(peerResult -> peerResult.forEach((k, num) -> result.merge(k, num, Long::sum)));
+        return result;
+    }
+
+    @Override
+    public Map<String, Map<String, Long>> getUsagesByDate(String app, String env, String category, Collection<String> keys,
+                                                          int days) {
+        if (ring != null) {
+            return readOwned(app, env, category, () -> delegate.getUsagesByDate(app, env, category, keys, days),
+                             client -> client.getUsagesByDate(app, env, category, keys, days));
+        }
+        if (rollups != null) {
+            return rolledUpByDate(app, env, category, keys, () -> delegate.getUsagesByDate(app, env, category, keys, days), days);
+        }
+        awaitInitialization();
+        return mergeByDate((client, today) -> client.getDailyCounts(app, env, category, keys, today, days),
+                           () -> delegate.getUsagesByDate(app, env, category, keys, days), days);
+    }
+
+    @Override
+    public Map<String, Map<String, Long>> getAllUsagesByDate(String app, String env, String category, int days) {
+        if (ring != null) {
+            return readOwned(app, env, category, () -> delegate.getAllUsagesByDate(app, env, category, days),
+                             client -> client.getUsagesByDate(app, env, category, Collections.emptyList(), days));
+        }
+        if (rollups != null) {
+            return rolledUpByDate(app, env, category, null, () -> delegate.getAllUsagesByDate(app, env, category, days), days);
+        }
+        awaitInitialization();
+        return mergeByDate((client, today) -> client.getDailyCounts(app, env, category, Collections.emptyList(), today, days),
+                           () -> delegate.getAllUsagesByDate(app, env, category, days), days);
+    }
+
+    /**
+     * In fanout mode the most used keys are found without every node sending its whole category, with the three phase
+     * uniform threshold algorithm (TPUT). Each node sends its own top {@code n}, and the n-th highest of their summed
+     * totals is a lower bound {@code t} on the n-th highest real total. A key whose count on every node is under
+     * {@code t / nodes} can't reach it, so each node then sends every key at or above that. Keys whose best possible
+     * total still falls short of the n-th best known one are dropped, and exact totals are read for the rest. Least used
+     * keys and rankings with a max have no such bound and read whole categories.
+     */
+    @Override
+    public Map<String, Long> getRankedUsages(String app, String env, String category, int days, Ranking ranking) {
+        if (ring != null) {
+            return readOwned(app, env, category, () -> delegate.getRankedUsages(app, env, category, days, ranking),
+                             client -> ranking.select(client.getRankedUsages(app, env, category, days, ranking)));
+        }
+        if (rollups != null || ranking.isAscending() || ranking.getMax() != Long.MAX_VALUE
+                || ranking.getLimit() == Ranking.UNLIMITED || ranking.getLimit() == 0) {
+            return ranking.select(getAllUsages(app, env, category, days));
+        }
+        awaitInitialization();
+        int n = ranking.getLimit();
+        List<Map<String, Long>> tops = rankEverywhere(app, env, category, days, Ranking.top(n));
+        long threshold = nthHighest(sum(tops).values(), n) / tops.size();
+
+        List<Map<String, Long>> aboveThreshold = rankEverywhere(app, env, category, days,
+                                                                Ranking.between(threshold, Long.MAX_VALUE));
+        Map<String, Long> known = sum(aboveThreshold);
+        Map<String, Integer> reportedBy = new HashMap<>();
+        aboveThreshold.forEach(result -> result.keySet().forEach(k -> reportedBy.merge(k, 1, Integer::sum)));
+        long nthKnown = Math.max(nthHighest(known.values(), n), ranking.getMin());
+        long unreported = Math.max(0, threshold - 1);
+        List<String> candidates = known.entrySet().stream()
+                .filter(e -> e.getValue() + (aboveThreshold.size() - reportedBy.get(e.getKey())) * unreported >= nthKnown)
+                .map(Map.Entry::getKey)
+                .collect(toList());
+        if (candidates.isEmpty()) {
+            return new LinkedHashMap<>();
+        }
+        return ranking.select(getUsages(app, env, category, candidates, days));
+    }
+
+    @Override
+    public void runCompaction() {
+        delegate.runCompaction();
+    }
+
+    @Override
+    public Map<String, Object> getCompactionStatus() {
+        return delegate.getCompactionStatus();
+    }
+
+    @Override
+    public void shutdown() {
+        if (syncExecutor != null) {
+            syncExecutor.shutdownNow();
+            if (ring != null) {
+                flushHandoffs();
+            }
+        }
+        availabilityCheckExecutor.shutdownNow();
+        possiblePeers.forEach(peer -> peer.reads.shutdownNow());
+        delegate.shutdown();
+    }
+
+    /**
+     * @return availability, latency, timeout and error counts for each peer
+     */
+    public List<Map<String, Object>> getPeerStats() {
+        List<Peer> available = availablePeers;
+        return possiblePeers.stream().map(peer -> {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("peer", peer.toString());
+            stats.put("available", available.contains(peer));
+            stats.put("latency", peer.latency.snapshot());
+            stats.put("timeouts", peer.timeouts.sum());
+            stats.put("errors", peer.errors.sum());
+            if (ring != null) {
+                stats.put("self", peer.self);
+                stats.put("handedOff", peer.handedOff.sum());
+                stats.put("pendingHandoffs", peer.pendingHandoffs());
+                stats.put("droppedHandoffs", peer.droppedHandoffs.sum());
+            }
+            if (rollups != null) {
+                long lastHeard = rollups.lastHeard(peer.toString());
+                stats.put("rollupAgeMillis", lastHeard == 0 ? -1 : System.currentTimeMillis() - lastHeard);
+                stats.put("rollupsPushed", peer.rollupsPushed.sum());
+            }
+            return stats;
+        }).collect(toList());
+    }
+
+    public UsageRepository getDelegate() {
         return delegate;
     }
     
-    private long getUsagesFromPeers(UsageKey key, int days) {
-        return availablePeers.parallelStream()
-                             .mapToLong(peer -> peer.client.getUsages(key.getApp(), key.getEnv(), key.getCategory(), key.getKey(), days))
-                             .sum();
+    private Map<String, Map<String, Long>> mergeByDate(BiFunction<PeerClient, LocalDate, Map<String, DailyCounts>> peerCall,
+                                                       Supplier<Map<String, Map<String, Long>>> localCall, int days) {
+        LocalDate today = LocalDate.now();
+        List<Map<String, DailyCounts>> peerResults = scatter(client -> peerCall.apply(client, today));
+        Map<String, DailyCounts> result = toDailyCounts(localCall.get(), today, days);
+        peerResults.forEach(peerResult -> peerResult.forEach((key, counts) -> {
+            DailyCounts total = result.putIfAbsent(key, counts);
+            if (total != null) {
+                total.add(counts);
+            }
+        }));
+        Map<String, Map<String, Long>> byKey = new HashMap<>();
+        result.forEach((key, counts) -> byKey.put(key, counts.toMap()));
+        return byKey;
+    }
+
+    /**
+     * every node's own answer to the ranking, this one's included
+     */
+    private List<Map<String, Long>> rankEverywhere(String app, String env, String category, int days, Ranking ranking) {
+        List<Map<String, Long>> results = new ArrayList<>(scatter(client -> client.getRankedUsages(app, env, category, days,
+                                                                                                    ranking)));
+        results.add(delegate.getRankedUsages(app, env, category, days, ranking));
+        return results;
+    }
+
+    private static Map<String, Long> sum(List<Map<String, Long>> results) {
+        Map<String, Long> sum = new HashMap<>();
+        results.forEach(result -> result.forEach((k, num) -> sum.merge(k, num, Long::sum)));
+        return sum;
+    }
+
+    /**
+     * @return the n-th highest value, 0 if there are fewer than n
+     */
+    private static long nthHighest(Collection<Long> values, int n) {
+        if (values.size() < n) {
+            return 0;
+        }
+        PriorityQueue<Long> highest = new PriorityQueue<>(n + 1);
+        for (Long value : values) {
+            highest.add(value);
+            if (highest.size() > n) {
+                highest.poll();
+            }
+        }
+        return highest.peek();
+    }
+
+    private static Map<String, DailyCounts> toDailyCounts(Map<String, Map<String, Long>> byKey, LocalDate today, int days) {
+        Map<String, DailyCounts> result = new HashMap<>();
+        byKey.forEach((key, byDate) -> result.put(key, DailyCounts.of(byDate, today, days)));
+        return result;
+    }
+
+    /**
+     * calls every available peer at once on the peer executor and waits for them until the deadline. Peers that fail
+     * or don't answer in time are left out and recorded as missing in {@link PartialResults}.
+     */
+    private <T> List<T> scatter(Function<PeerClient, T> call) {
+        List<String> missing = new ArrayList<>();
+        List<T> results = gather(availablePeers, call, System.nanoTime() + deadlineNanos, missing);
+        if (!missing.isEmpty()) {
+            logger.debug("returning partial result, missing {}", missing);
+            PartialResults.addMissing(missing);
+        }
+        return results;
+    }
+
+    /**
+     * Each peer is called on its own threads so one that hangs can't hold up reads from the others, and a peer with
+     * too many reads waiting is missing from the result straight away. Calls are tagged so the requests they make can
+     * be aborted when they miss the deadline, rather than holding a thread until the read timeout.
+     */
+    private <T> List<T> gather(List<Peer> peers, Function<PeerClient, T> call, long deadline, List<String> missing) {
+        long fanout = Trace.start();
+        // peers answer on their own threads, their times are added to this thread's trace once they're in
+        long[] elapsed = new long[peers.size()];
+        List<CompletableFuture<T>> futures = new ArrayList<>(peers.size());
+        List<AtomicBoolean> abandoned = new ArrayList<>(peers.size());
+        for (int i = 0; i < peers.size(); i++) {
+            Peer peer = peers.get(i);
+            int n = i;
+            AtomicBoolean tag = new AtomicBoolean();
+            abandoned.add(tag);
+            try {
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                    if (tag.get()) {
+                        throw new CancellationException("missed the deadline before it started");
+                    }
+                    long start = System.nanoTime();
+                    T result = peer.call(tag, call);
+                    elapsed[n] = System.nanoTime() - start;
+                    return result;
+                }, peer.reads));
+            } catch (RejectedExecutionException e) {
+                futures.add(null);
+            }
+        }
+
+        List<T> results = new ArrayList<>(peers.size());
+        for (int i = 0; i < peers.size(); i++) {
+            Peer peer = peers.get(i);
+            if (futures.get(i) == null) {
+                logger.debug("{} has too many reads waiting, leaving it out", peer);
+                peer.timeouts.increment();
+                PEER_TIMEOUTS.increment();
+                missing.add(peer.toString());
+                continue;
+            }
+            try {
+                results.add(futures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+                if (fanout != 0) {
+                    Trace.addConcurrent("peer " + peer, elapsed[i]);
+                }
+            } catch (TimeoutException e) {
+                peer.timeouts.increment();
+                PEER_TIMEOUTS.increment();
+                abandoned.get(i).set(true);
+                peer.client.cancel(abandoned.get(i));
+                missing.add(peer.toString());
+            } catch (ExecutionException e) {
+                peer.errors.increment();
+                logger.warn("error reading from peer {}", peer, e.getCause());
+                missing.add(peer.toString());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                missing.add(peer.toString());
+            }
+        }
+        Trace.end("peer fan-out", fanout);
+        return results;
+    }
+
+    /**
+     * names listed by every available peer merged with this node's own, in {@link ClusterMode#OWNER} mode any node may
+     * own some of the categories under a name
+     */
+    private List<String> listEverywhere(Supplier<List<String>> local, Function<PeerClient, List<String>> remote) {
+        awaitInitialization();
+        List<List<String>> peerResults = scatter(remote);
+        Set<String> result = new TreeSet<>(local.get());
+        peerResults.stream().filter(Objects::nonNull).forEach(result::addAll);
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * answers locally when this node owns the category, otherwise asks its owners in ring order until one answers.
+     * If none do by the deadline the local (usually empty) answer is returned and the owners are reported missing.
+     */
+    private <T> T readOwned(String app, String env, String category, Supplier<T> local, Function<PeerClient, T> remote) {
+        awaitInitialization();
+        List<Peer> owners = owners(app, env, category);
+        if (owners.isEmpty() || owners.stream().anyMatch(owner -> owner.self)) {
+            return local.get();
+        }
+        long deadline = System.nanoTime() + deadlineNanos;
+        List<Peer> available = availablePeers;
+        List<String> missing = new ArrayList<>();
+        for (Peer owner : owners) {
+            if (!available.contains(owner)) {
+                missing.add(owner.toString());
+                continue;
+            }
+            List<String> failed = new ArrayList<>();
+            List<T> result = gather(Collections.singletonList(owner), remote, deadline, failed);
+            if (failed.isEmpty()) {
+                return result.get(0);
+            }
+            missing.addAll(failed);
+        }
+        logger.debug("no owner of {}/{}/{} answered, missing {}", app, env, category, missing);
+        PartialResults.addMissing(missing);
+        return local.get();
+    }
+
+    private List<Peer> owners(String app, String env, String category) {
+        return ring.getOwners(app + "/" + env + "/" + category, replicas);
+    }
+
+    /**
+     * merges a rollup pushed by a peer
+     *
+     * @throws IllegalStateException if not in {@link ClusterMode#ROLLUP} mode, or the peer has to send all its counts
+     */
+    public void receiveRollup(byte[] rollup) {
+        if (rollups == null) {
+            throw new IllegalStateException("not in rollup mode");
+        }
+        String node = PeerCodec.decodeRollup(rollup, rollups);
+        rollups.heardFrom(node, System.currentTimeMillis());
+    }
+
+    /**
+     * pushes this node's counts for the keys that changed to every available peer. Peers that are new, came back or
+     * missed a push are sent every count from the last {@value #ROLLUP_DAYS} days instead, at most
+     * {@value #MAX_FULL_ROLLUPS} of them each time, the rest wait for a later push. Nothing is pushed until this node
+     * knows which peer it is, peers keep counts by the name they're pushed under.
+     */
+    void pushRollups() {
+        awaitInitialization();
+        String node = possiblePeers.stream().filter(peer -> peer.self).map(Peer::toString).findFirst().orElse(null);
+        if (node == null) {
+            logger.debug("not pushing rollups until this node finds itself among {}", possiblePeers);
+            return;
+        }
+        // changes are collected first, counts read for a full push afterwards already include them
+        byte[] delta = PeerCodec.encodeRollup(node, false, collectChanges());
+        List<Peer> available = availablePeers;
+        List<Peer> full = new ArrayList<>();
+        for (Peer peer : possiblePeers) {
+            if (peer.self) {
+                continue;
+            }
+            if (!available.contains(peer)) {
+                peer.needsFullRollup = true;
+            } else if (peer.needsFullRollup) {
+                if (full.size() < MAX_FULL_ROLLUPS) {
+                    full.add(peer);
+                }
+            } else {
+                pushRollup(peer, delta);
+            }
+        }
+        if (!full.isEmpty()) {
+            pushFullRollups(node, full);
+        }
+        rollups.prune(LocalDate.now().minusDays(ROLLUP_DAYS).toEpochDay());
+    }
+
+    /**
+     * sends every count to the peers a category and {@value #FULL_ROLLUP_KEYS} keys at a time, so neither the counts
+     * read nor a body sent grow with everything this node keeps. Peers keep the larger count for each day, so the
+     * parts can arrive in any order, a peer that misses one is sent everything again next time.
+     */
+    private void pushFullRollups(String node, List<Peer> peers) {
+        List<Peer> receiving = new ArrayList<>(peers);
+        boolean sent = false;
+        for (String app : delegate.getApps()) {
+            for (String env : delegate.getEnvironments(app)) {
+                for (String category : delegate.getCategories(app, env)) {
+                    List<String> keys = delegate.getKeys(app, env, category, null, FULL_ROLLUP_KEYS);
+                    while (!keys.isEmpty() && !receiving.isEmpty()) {
+                        Map<UsageKey, Map<String, Long>> totals = new HashMap<>();
+                        delegate.getUsagesByDate(app, env, category, keys, ROLLUP_DAYS)
+                                .forEach((key, byDate) -> totals.put(new UsageKey(app, env, category, key), byDate));
+                        byte[] rollup = PeerCodec.encodeRollup(node, true, totals);
+                        receiving.removeIf(peer -> !pushRollup(peer, rollup));
+                        sent = true;
+                        keys = keys.size() < FULL_ROLLUP_KEYS ? Collections.emptyList()
+                                : delegate.getKeys(app, env, category, keys.get(keys.size() - 1), FULL_ROLLUP_KEYS);
+                    }
+                }
+            }
+        }
+        if (!sent) {
+            // nothing kept yet, the peers still need to hear from this node
+            byte[] empty = PeerCodec.encodeRollup(node, true, Collections.emptyMap());
+            receiving.removeIf(peer -> !pushRollup(peer, empty));
+        }
+        receiving.forEach(peer -> peer.needsFullRollup = false);
+    }
+
+    private boolean pushRollup(Peer peer, byte[] rollup) {
+        try {
+            peer.call(client -> {
+                client.pushRollup(rollup);
+                return null;
+            });
+            peer.rollupsPushed.increment();
+            return true;
+        } catch (RuntimeException e) {
+            peer.errors.increment();
+            peer.needsFullRollup = true;
+            logger.warn("unable to push rollup to {}, will send all counts next time", peer, e);
+            return false;
+        }
+    }
+
+    private Map<UsageKey, Map<String, Long>> collectChanges() {
+        LocalDate today = LocalDate.now();
+        Map<UsageKey, Map<String, Long>> totals = new HashMap<>();
+        for (UsageKey key : changed.keySet()) {
+            LocalDate since = changed.remove(key);
+            int days = (int) Math.min(ROLLUP_DAYS, Math.max(1, since.until(today, ChronoUnit.DAYS) + 1));
+            totals.put(key, delegate.getUsagesByDate(key, days));
+        }
+        return totals;
+    }
+
+    /**
+     * totals peers pushed for the keys, or the whole category when keys is null
+     */
+    private Map<String, Long> rolledUp(String app, String env, String category, Collection<String> keys, int days) {
+        Map<String, DailyCounts> counts = new HashMap<>();
+        rollups.addTo(counts, app, env, category, keys, LocalDate.now(), days);
+        reportStaleRollups();
+        Map<String, Long> totals = new HashMap<>();
+        counts.forEach((key, byDay) -> totals.put(key, byDay.total()));
+        return totals;
+    }
+
+    private Map<String, Map<String, Long>> rolledUpByDate(String app, String env, String category, Collection<String> keys,
+                                                          Supplier<Map<String, Map<String, Long>>> localCall, int days) {
+        LocalDate today = LocalDate.now();
+        Map<String, DailyCounts> result = toDailyCounts(localCall.get(), today, days);
+        rollups.addTo(result, app, env, category, keys, today, days);
+        reportStaleRollups();
+        Map<String, Map<String, Long>> byKey = new HashMap<>();
+        result.forEach((key, counts) -> byKey.put(key, counts.toMap()));
+        return byKey;
+    }
+
+    private void reportStaleRollups() {
+        long oldest = System.currentTimeMillis() - rollupStalenessMillis;
+        List<String> stale = possiblePeers.stream()
+                                          .filter(peer -> !peer.self && rollups.lastHeard(peer.toString()) < oldest)
+                                          .map(Peer::toString)
+                                          .collect(toList());
+        if (!stale.isEmpty()) {
+            PartialResults.addMissing(stale);
+        }
+    }
+
+    private static LocalDate earliest(LocalDate a, LocalDate b) {
+        return a.isBefore(b) ? a : b;
+    }
+
+    /**
+     * sends the writes queued for each available owner, writes for unavailable ones stay queued until they're back.
+     * Writes queued for this node before it knew which peer it was are written locally.
+     */
+    void flushHandoffs() {
+        List<Peer> available = availablePeers;
+        possiblePeers.stream().filter(peer -> peer.self || available.contains(peer)).forEach(Peer::flushHandoffs);
     }
     
     void checkAvailability() {
@@ -99,6 +842,32 @@ public class ClusteredFileUsageRepository implements UsageRepository {
         
         initialized.countDown();
     }
+
+    /**
+     * checks availability again every {@value #SELF_CHECK_INTERVAL_MILLIS}ms until this node has found itself among the
+     * peers, the first check runs before the server is listening so this node can't answer its own ping yet
+     */
+    private void findSelf(int attempt) {
+        if (hasSelf()) {
+            return;
+        }
+        if (attempt == MAX_SELF_CHECKS) {
+            logger.warn("this node hasn't answered its own ping, check that {} includes it or set its address",
+                        possiblePeers);
+            return;
+        }
+        checkAvailability();
+        try {
+            availabilityCheckExecutor.schedule(() -> findSelf(attempt + 1), SELF_CHECK_INTERVAL_MILLIS,
+                                               TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    private boolean hasSelf() {
+        return possiblePeers.stream().anyMatch(peer -> peer.self);
+    }
     
     private void awaitInitialization() {
     	try {
@@ -108,28 +877,132 @@ public class ClusteredFileUsageRepository implements UsageRepository {
     	}
     }
     
+    private static Map<HostAndPort, PeerClient> createClients(List<HostAndPort> peers, long deadlineMillis) {
+        Map<HostAndPort, PeerClient> clients = new LinkedHashMap<>();
+        peers.forEach(host -> clients.put(host, new ClusterAwareTrailRegisterClient("http://" + host.getHostText() + ":" + host.getPort(),
+                                                                                    deadlineMillis)));
+        return clients;
+    }
+
     private class Peer {
     	private HostAndPort host;
-    	private TrailRegisterClient client; 
+    	private PeerClient client; 
+    	private LatencyHistogram latency = new LatencyHistogram();
+    	// shared by every repository in the process talking to this peer, for /metrics
+    	private LatencyHistogram calls;
+    	private LongAdder timeouts = new LongAdder();
+    	private LongAdder errors = new LongAdder();
+    	private ExecutorService reads;
+    	private LongAdder handedOff = new LongAdder();
+    	private volatile boolean self;
+    	private volatile boolean needsFullRollup = true;
+    	private LongAdder rollupsPushed = new LongAdder();
+    	// writes waiting to be handed off to this peer, by day, and how many keys that is
+    	private Map<LocalDate, Map<UsageKey, Integer>> pending = new HashMap<>();
+    	private int pendingKeys;
+    	private boolean dropping;
+    	private LongAdder droppedHandoffs = new LongAdder();
     	
-    	public Peer(HostAndPort host) {
+    	public Peer(HostAndPort host, PeerClient client) {
     		this.host = host;
-    		client = new ClusterAwareTrailRegisterClient(getBaseUrl()); 
+    		this.client = client;
+    		this.reads = new ThreadPoolExecutor(MAX_PEER_READS, MAX_PEER_READS, 0, TimeUnit.MILLISECONDS,
+    		                                    new LinkedBlockingQueue<>(MAX_QUEUED_PEER_READS),
+    		                                    new ThreadFactoryBuilder().setNameFormat("peer-reads-" + host + "-%d")
+    		                                                              .setDaemon(true)
+    		                                                              .build()); 
+    		this.calls = Metrics.timer("trail_register_peer_call_seconds", "time taken by successful calls to peers",
+    		                           "peer", host.toString());
 		}
     	
+    	<T> T call(Function<PeerClient, T> call) {
+    	    return call(null, call);
+    	}
+    	
+    	<T> T call(Object tag, Function<PeerClient, T> call) {
+    	    long start = System.nanoTime();
+    	    T result;
+    	    try {
+    	        result = tag == null ? call.apply(client) : client.tagged(tag, call);
+    	    } catch (RuntimeException e) {
+    	        PEER_ERRORS.increment();
+    	        throw e;
+    	    }
+    	    long elapsed = System.nanoTime() - start;
+    	    latency.record(elapsed);
+    	    calls.record(elapsed);
+    	    return result;
+    	}
+    	
+    	synchronized void handoff(UsageKey key, int num, LocalDate date) {
+    	    Map<UsageKey, Integer> day = pending.get(date);
+    	    if (day != null && day.containsKey(key)) {
+    	        day.merge(key, num, Integer::sum);
+    	        return;
+    	    }
+    	    if (pendingKeys >= MAX_PENDING_HANDOFFS) {
+    	        if (!dropping) {
+    	            dropping = true;
+    	            logger.warn("{} usages are queued for {}, dropping writes for it until they're handed off", pendingKeys, host);
+    	        }
+    	        droppedHandoffs.add(num);
+    	        HANDOFFS_DROPPED.add(num);
+    	        return;
+    	    }
+    	    pending.computeIfAbsent(date, d -> new HashMap<>()).put(key, num);
+    	    pendingKeys++;
+    	}
+    	
+    	synchronized int pendingHandoffs() {
+    	    return pendingKeys;
+    	}
+    	
+    	void flushHandoffs() {
+    	    Map<LocalDate, Map<UsageKey, Integer>> batches;
+    	    synchronized (this) {
+    	        if (pending.isEmpty()) {
+    	            return;
+    	        }
+    	        batches = pending;
+    	        pending = new HashMap<>();
+    	        pendingKeys = 0;
+    	        dropping = false;
+    	    }
+    	    batches.forEach((date, usages) -> {
+    	        if (self) {
+    	            delegate.recordUsages(usages, date);
+    	            return;
+    	        }
+    	        try {
+    	            call(c -> {
+    	                c.recordUsages(usages, date);
+    	                return null;
+    	            });
+    	            handedOff.add(usages.size());
+    	        } catch (RuntimeException e) {
+    	            errors.increment();
+    	            logger.warn("unable to hand off {} usages to {}, will retry", usages.size(), host, e);
+    	            usages.forEach((key, num) -> handoff(key, num, date));
+    	        }
+    	    });
+    	}
+    	
     	boolean isAvailable() {
+    	    if (self) {
+    	        return false;
+    	    }
     		try {
     			String pingResult = client.ping();
-    			return pingResult != null && !pingResult.equals(id.toString());
+    			if (pingResult != null && pingResult.equals(id.toString())) {
+    			    self = true;
+    			    return false;
+    			}
+    			return pingResult != null;
     		} catch (RuntimeException e) {
     			return false;
     		}
     	}
     	
-    	private String getBaseUrl() {
-    		return "http://" + host.getHostText() + ":" + host.getPort();
-    	}
-    	
     	@Override
     	public String toString() {
     		return host.toString();
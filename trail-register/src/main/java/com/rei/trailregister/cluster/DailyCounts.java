@@ -0,0 +1,130 @@
+package com.rei.trailregister.cluster;
+
+import static java.time.format.DateTimeFormatter.BASIC_ISO_DATE;
+
+import java.time.LocalDate;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per day counts for a window of days ending today, held in a primitive array indexed by days before the end of the
+ * window. Results from several nodes are summed with {@link #add(DailyCounts)} instead of merging string keyed maps.
+ * Not thread safe, each peer's result is parsed into its own instance and they're summed by one thread.
+ */
+public final class DailyCounts {
+    private final long lastDay;
+    private final long[] counts;
+    // days some node reported, so days nobody has data for stay out of the result like they did before
+    private final BitSet present;
+
+    public DailyCounts(LocalDate lastDate, int days) {
+        this.lastDay = lastDate.toEpochDay();
+        this.counts = new long[Math.max(0, days)];
+        this.present = new BitSet(counts.length);
+    }
+
+    /**
+     * @param byDate counts keyed by {@code yyyyMMdd} dates, dates outside the window are ignored
+     */
+    public static DailyCounts of(Map<String, Long> byDate, LocalDate lastDate, int days) {
+        DailyCounts result = new DailyCounts(lastDate, days);
+        byDate.forEach((date, count) -> result.add(parseEpochDay(date), count == null ? 0 : count));
+        return result;
+    }
+
+    public void add(long epochDay, long count) {
+        long index = lastDay - epochDay;
+        if (index >= 0 && index < counts.length) {
+            counts[(int) index] += count;
+            present.set((int) index);
+        }
+    }
+
+    public void add(DailyCounts other) {
+        if (other.lastDay != lastDay || other.counts.length != counts.length) {
+            other.forEach(this::add);
+            return;
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        present.or(other.present);
+    }
+
+    public long get(LocalDate date) {
+        long index = lastDay - date.toEpochDay();
+        return index >= 0 && index < counts.length ? counts[(int) index] : 0;
+    }
+
+    public long total() {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * @return counts keyed by {@code yyyyMMdd} date for every day some result had, in date order
+     */
+    public Map<String, Long> toMap() {
+        // filled oldest first so a linked map iterates in date order without the cost of a tree
+        Map<String, Long> result = new LinkedHashMap<>(present.cardinality() * 4 / 3 + 1);
+        for (int i = present.previousSetBit(counts.length - 1); i >= 0; i = present.previousSetBit(i - 1)) {
+            result.put(format(LocalDate.ofEpochDay(lastDay - i)), counts[i]);
+        }
+        return result;
+    }
+
+    private void forEach(DayCount consumer) {
+        for (int i = present.nextSetBit(0); i >= 0; i = present.nextSetBit(i + 1)) {
+            consumer.accept(lastDay - i, counts[i]);
+        }
+    }
+
+    /**
+     * parses a {@code yyyyMMdd} date without going through a formatter
+     */
+    static long parseEpochDay(String date) {
+        if (date.length() != 8) {
+            return LocalDate.parse(date, BASIC_ISO_DATE).toEpochDay();
+        }
+        int value = 0;
+        for (int i = 0; i < 8; i++) {
+            char c = date.charAt(i);
+            if (c < '0' || c > '9') {
+                return LocalDate.parse(date, BASIC_ISO_DATE).toEpochDay();
+            }
+            value = value * 10 + (c - '0');
+        }
+        return LocalDate.of(value / 10000, value / 100 % 100, value % 100).toEpochDay();
+    }
+
+    /**
+     * formats a date as {@code yyyyMMdd} without going through a formatter
+     */
+    static String format(LocalDate date) {
+        int year = date.getYear();
+        if (year < 1000 || year > 9999) {
+            return BASIC_ISO_DATE.format(date);
+        }
+        char[] chars = new char[8];
+        write(chars, 0, year, 4);
+        write(chars, 4, date.getMonthValue(), 2);
+        write(chars, 6, date.getDayOfMonth(), 2);
+        return new String(chars);
+    }
+
+    private static void write(char[] chars, int offset, int value, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    @FunctionalInterface
+    private interface DayCount {
+        void accept(long epochDay, long count);
+    }
+}
@@ -0,0 +1,58 @@
+package com.rei.trailregister.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+import com.google.common.collect.Iterables;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * A consistent hash ring. Each member is placed at several points on the ring so load stays even, a token is owned by
+ * the first member found walking clockwise from its hash and replicated to the next distinct members. Every node builds
+ * the same ring from the same member names, and adding or removing a member only moves the tokens next to its points.
+ */
+class HashRing<T> {
+    static final int DEFAULT_POINTS = 128;
+
+    private static final HashFunction HASH = Hashing.murmur3_32();
+
+    private final NavigableMap<Integer, T> ring = new TreeMap<>();
+    private final int members;
+
+    HashRing(Collection<T> members, Function<T, String> name, int pointsPerMember) {
+        for (T member : members) {
+            for (int i = 0; i < pointsPerMember; i++) {
+                ring.put(hash(name.apply(member) + "#" + i), member);
+            }
+        }
+        this.members = members.size();
+    }
+
+    /**
+     * @return the owner of the token followed by its replicas, at most {@code count} distinct members
+     */
+    List<T> getOwners(String token, int count) {
+        int wanted = Math.min(count, members);
+        List<T> owners = new ArrayList<>(wanted);
+        int hash = hash(token);
+        for (T member : Iterables.concat(ring.tailMap(hash, true).values(), ring.headMap(hash, false).values())) {
+            if (owners.size() >= wanted) {
+                break;
+            }
+            if (!owners.contains(member)) {
+                owners.add(member);
+            }
+        }
+        return owners;
+    }
+
+    private static int hash(String value) {
+        return HASH.hashString(value, StandardCharsets.UTF_8).asInt();
+    }
+}
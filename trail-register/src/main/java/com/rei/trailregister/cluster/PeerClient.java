@@ -0,0 +1,64 @@
+package com.rei.trailregister.cluster;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import com.rei.trailregister.Ranking;
+import com.rei.trailregister.UsageKey;
+import com.rei.trailregister.client.TrailRegisterClient;
+
+/**
+ * The calls one cluster node makes to another. The bulk reads answer for many keys of a category in one round trip,
+ * an empty collection of keys means every key in the category.
+ */
+public interface PeerClient extends TrailRegisterClient {
+    Map<String, Long> getUsages(String app, String env, String category, Collection<String> keys, int days);
+    Map<String, Map<String, Long>> getUsagesByDate(String app, String env, String category, Collection<String> keys, int days);
+
+    /**
+     * the peer's own keys after {@code after}, at most {@code limit} of them. Nodes that predate paging answer with
+     * every key, so the answer is paged again by the caller.
+     */
+    List<String> getKeys(String app, String env, String category, String after, int limit);
+
+    /**
+     * the peer's own totals for the keys the ranking picks, in no particular order
+     */
+    Map<String, Long> getRankedUsages(String app, String env, String category, int days, Ranking ranking);
+
+    /**
+     * records usages on the peer itself for the given day, used to hand writes off to the nodes that own them
+     */
+    void recordUsages(Map<UsageKey, Integer> usages, LocalDate date);
+
+    /**
+     * sends the peer this node's rollup, {@link PeerCodec#encodeRollup encoded}
+     */
+    void pushRollup(byte[] rollup);
+
+    /**
+     * makes the call with its requests tagged, so {@link #cancel} with the same tag can abort them from another thread
+     */
+    default <T> T tagged(Object tag, Function<PeerClient, T> call) {
+        return call.apply(this);
+    }
+
+    /**
+     * aborts the requests in flight for a {@link #tagged} call, clients that can't leave them to time out
+     */
+    default void cancel(Object tag) {}
+
+    /**
+     * by date counts for the keys in a window of {@code days} ending on {@code lastDate}, ready to be summed
+     */
+    default Map<String, DailyCounts> getDailyCounts(String app, String env, String category, Collection<String> keys,
+                                                    LocalDate lastDate, int days) {
+        Map<String, DailyCounts> result = new HashMap<>();
+        getUsagesByDate(app, env, category, keys, days).forEach((key, byDate) -> result.put(key, DailyCounts.of(byDate, lastDate, days)));
+        return result;
+    }
+}
@@ -0,0 +1,271 @@
+package com.rei.trailregister.cluster;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.rei.trailregister.UsageKey;
+
+/**
+ * Binary encoding for reads between cluster members, asked for with an {@code Accept} header of {@link #CONTENT_TYPE}.
+ * Nodes that don't know it answer with json, which is still read. Counts are zigzag varints and dates are varint
+ * deltas between epoch days, so a year of daily counts for a key is a few hundred bytes and reads straight into
+ * {@link DailyCounts} without parsing date strings.
+ *
+ * <pre>
+ * totals:  version, entries, (key, count)*
+ * by date: version, keys, (key, days, (day delta, count)*)*
+ * </pre>
+ * keys are a varint length followed by utf-8 bytes.
+ */
+public final class PeerCodec {
+    public static final String CONTENT_TYPE = "application/x-trail-register-peer";
+
+    private static final int VERSION = 1;
+
+    private PeerCodec() {}
+
+    public static byte[] encodeTotals(Map<String, Long> totals) {
+        Output out = new Output(totals.size() * 16 + 8);
+        out.writeVarint(VERSION);
+        out.writeVarint(totals.size());
+        totals.forEach((key, count) -> {
+            out.writeString(key);
+            out.writeZigzag(count == null ? 0 : count);
+        });
+        return out.toByteArray();
+    }
+
+    public static Map<String, Long> decodeTotals(byte[] bytes) {
+        ByteBuffer in = open(bytes);
+        int entries = readVarint(in);
+        Map<String, Long> totals = new HashMap<>(entries * 4 / 3 + 1);
+        for (int i = 0; i < entries; i++) {
+            totals.put(readString(in), readZigzag(in));
+        }
+        return totals;
+    }
+
+    /**
+     * @param byDate counts keyed by {@code yyyyMMdd} dates for each key
+     */
+    public static byte[] encodeByDate(Map<String, Map<String, Long>> byDate) {
+        Output out = new Output(byDate.size() * 64 + 8);
+        out.writeVarint(VERSION);
+        out.writeVarint(byDate.size());
+        byDate.forEach((key, byDay) -> {
+            out.writeString(key);
+            writeDays(out, byDay);
+        });
+        return out.toByteArray();
+    }
+
+    /**
+     * reads by date counts straight into a window of days ending on {@code lastDate}, days outside it are dropped
+     */
+    public static Map<String, DailyCounts> decodeByDate(byte[] bytes, LocalDate lastDate, int days) {
+        ByteBuffer in = open(bytes);
+        int keys = readVarint(in);
+        Map<String, DailyCounts> result = new HashMap<>(keys * 4 / 3 + 1);
+        for (int i = 0; i < keys; i++) {
+            String key = readString(in);
+            DailyCounts counts = new DailyCounts(lastDate, days);
+            int entries = readVarint(in);
+            long day = 0;
+            for (int j = 0; j < entries; j++) {
+                day += readZigzag(in);
+                counts.add(day, readZigzag(in));
+            }
+            result.put(key, counts);
+        }
+        return result;
+    }
+
+    /**
+     * a node's own totals for the days of each key that changed since its last push, grouped by category so app,
+     * environment and category names are sent once.
+     * <pre>
+     * version, node, full, categories, (app, env, category, keys, (key, days, (day delta, count)*)*)*
+     * </pre>
+     *
+     * @param full whether this is every count the node has rather than only what changed
+     */
+    static byte[] encodeRollup(String node, boolean full, Map<UsageKey, Map<String, Long>> totals) {
+        Map<List<String>, Map<String, Map<String, Long>>> byCategory = new HashMap<>();
+        totals.forEach((key, byDay) -> byCategory.computeIfAbsent(Arrays.asList(key.getApp(), key.getEnv(), key.getCategory()),
+                                                                  c -> new HashMap<>())
+                                                 .put(key.getKey(), byDay));
+        Output out = new Output(totals.size() * 32 + 64);
+        out.writeVarint(VERSION);
+        out.writeString(node);
+        out.writeVarint(full ? 1 : 0);
+        out.writeVarint(byCategory.size());
+        byCategory.forEach((category, keys) -> {
+            category.forEach(out::writeString);
+            out.writeVarint(keys.size());
+            keys.forEach((key, byDay) -> {
+                out.writeString(key);
+                writeDays(out, byDay);
+            });
+        });
+        return out.toByteArray();
+    }
+
+    /**
+     * merges a pushed rollup into the table. Changes from a node the table hasn't heard from yet are refused, the table
+     * needs that node's full rollup first.
+     *
+     * @return the node that sent it
+     */
+    static String decodeRollup(byte[] bytes, RollupTable table) {
+        ByteBuffer in = open(bytes);
+        String node = readString(in);
+        boolean full = readVarint(in) == 1;
+        if (!full && table.lastHeard(node) == 0) {
+            throw new IllegalStateException("need a full rollup from " + node);
+        }
+        int categories = readVarint(in);
+        for (int c = 0; c < categories; c++) {
+            String app = readString(in);
+            String env = readString(in);
+            String category = readString(in);
+            int keys = readVarint(in);
+            for (int k = 0; k < keys; k++) {
+                String key = readString(in);
+                int entries = readVarint(in);
+                long day = 0;
+                for (int j = 0; j < entries; j++) {
+                    day += readZigzag(in);
+                    table.merge(node, app, env, category, key, day, readZigzag(in));
+                }
+            }
+        }
+        return node;
+    }
+
+    private static void writeDays(Output out, Map<String, Long> byDay) {
+        long[] days = new long[byDay.size()];
+        long[] counts = new long[byDay.size()];
+        int n = 0;
+        boolean sorted = true;
+        for (Map.Entry<String, Long> e : byDay.entrySet()) {
+            days[n] = DailyCounts.parseEpochDay(e.getKey());
+            counts[n] = e.getValue() == null ? 0 : e.getValue();
+            sorted &= n == 0 || days[n - 1] <= days[n];
+            n++;
+        }
+        if (!sorted) {
+            sort(days, counts);
+        }
+        out.writeVarint(n);
+        long previous = 0;
+        for (int i = 0; i < n; i++) {
+            out.writeZigzag(days[i] - previous);
+            out.writeZigzag(counts[i]);
+            previous = days[i];
+        }
+    }
+
+    // results usually come back in date order already, this is only for the ones that don't
+    private static void sort(long[] days, long[] counts) {
+        Integer[] order = new Integer[days.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(days[a], days[b]));
+        long[] sortedDays = new long[days.length];
+        long[] sortedCounts = new long[counts.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedDays[i] = days[order[i]];
+            sortedCounts[i] = counts[order[i]];
+        }
+        System.arraycopy(sortedDays, 0, days, 0, days.length);
+        System.arraycopy(sortedCounts, 0, counts, 0, counts.length);
+    }
+
+    private static ByteBuffer open(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        int version = readVarint(in);
+        if (version != VERSION) {
+            throw new IllegalStateException("unsupported peer encoding version " + version);
+        }
+        return in;
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        long value = readVarlong(in);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IllegalStateException("invalid length " + value);
+        }
+        return (int) value;
+    }
+
+    private static long readZigzag(ByteBuffer in) {
+        long value = readVarlong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long readVarlong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("malformed varint");
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = readVarint(in);
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    // a growable array rather than a ByteArrayOutputStream, whose writes are synchronized byte by byte
+    private static class Output {
+        private byte[] buf;
+        private int size;
+
+        Output(int capacity) {
+            buf = new byte[Math.max(16, capacity)];
+        }
+
+        void writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                buf[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buf[size++] = (byte) value;
+        }
+
+        void writeZigzag(long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, size, bytes.length);
+            size += bytes.length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+
+        private void ensure(int more) {
+            if (size + more > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + more));
+            }
+        }
+    }
+}
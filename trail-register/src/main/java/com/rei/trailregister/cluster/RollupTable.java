@@ -0,0 +1,136 @@
+package com.rei.trailregister.cluster;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Usage counts other nodes pushed to this one, a grow only counter per key, day and node. Each node sends its own
+ * totals for the days that changed, merging keeps the larger of what's held and what arrived, so pushes can be
+ * repeated, reordered or lost and resent in full without counting anything twice. Reads add up every node's counts.
+ */
+class RollupTable {
+    private final ConcurrentMap<List<String>, ConcurrentMap<String, KeyCounts>> categories = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> lastHeard = new ConcurrentHashMap<>();
+
+    void merge(String node, String app, String env, String category, String key, long epochDay, long count) {
+        categories.computeIfAbsent(Arrays.asList(app, env, category), c -> new ConcurrentHashMap<>())
+                  .computeIfAbsent(key, k -> new KeyCounts())
+                  .merge(node, (int) epochDay, count);
+    }
+
+    void heardFrom(String node, long millis) {
+        lastHeard.merge(node, millis, Math::max);
+    }
+
+    /**
+     * @return when the node last pushed to this one, 0 if it never has
+     */
+    long lastHeard(String node) {
+        return lastHeard.getOrDefault(node, 0L);
+    }
+
+    /**
+     * adds every node's counts for the keys, or the whole category when keys is null, into a window of days
+     */
+    void addTo(Map<String, DailyCounts> result, String app, String env, String category, Collection<String> keys,
+               LocalDate lastDate, int days) {
+        Map<String, KeyCounts> byKey = categories.get(Arrays.asList(app, env, category));
+        if (byKey == null) {
+            return;
+        }
+        Collection<String> wanted = keys != null ? keys : byKey.keySet();
+        for (String key : wanted) {
+            KeyCounts counts = byKey.get(key);
+            if (counts != null) {
+                counts.addTo(result.computeIfAbsent(key, k -> new DailyCounts(lastDate, days)), lastDate, days);
+            }
+        }
+    }
+
+    /**
+     * @return the keys any node pushed counts for in the category
+     */
+    List<String> getKeys(String app, String env, String category) {
+        Map<String, KeyCounts> byKey = categories.get(Arrays.asList(app, env, category));
+        return byKey == null ? Collections.emptyList() : new ArrayList<>(byKey.keySet());
+    }
+
+    /**
+     * drops days before the given one
+     */
+    void prune(long epochDay) {
+        categories.values().forEach(byKey -> byKey.values().forEach(counts -> counts.prune((int) epochDay)));
+    }
+
+    /**
+     * one key's counts for each node, only the days that have any
+     */
+    private static class KeyCounts {
+        private final Map<String, NodeCounts> nodes = new HashMap<>(4);
+
+        synchronized void merge(String node, int day, long count) {
+            nodes.computeIfAbsent(node, n -> new NodeCounts()).max(day, count);
+        }
+
+        synchronized void addTo(DailyCounts result, LocalDate lastDate, int days) {
+            int from = (int) (lastDate.toEpochDay() - days + 1);
+            nodes.values().forEach(counts -> counts.addTo(result, from));
+        }
+
+        synchronized void prune(int before) {
+            nodes.values().forEach(counts -> counts.prune(before));
+        }
+    }
+
+    /**
+     * sorted days and their counts in parallel arrays, a year of days for a key on one node is a few kilobytes
+     */
+    private static class NodeCounts {
+        private int[] days = new int[4];
+        private long[] counts = new long[4];
+        private int size;
+
+        void max(int day, long count) {
+            int i = Arrays.binarySearch(days, 0, size, day);
+            if (i >= 0) {
+                counts[i] = Math.max(counts[i], count);
+                return;
+            }
+            i = -i - 1;
+            if (size == days.length) {
+                days = Arrays.copyOf(days, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            System.arraycopy(days, i, days, i + 1, size - i);
+            System.arraycopy(counts, i, counts, i + 1, size - i);
+            days[i] = day;
+            counts[i] = count;
+            size++;
+        }
+
+        void addTo(DailyCounts result, int from) {
+            int i = Arrays.binarySearch(days, 0, size, from);
+            for (i = i >= 0 ? i : -i - 1; i < size; i++) {
+                result.add(days[i], counts[i]);
+            }
+        }
+
+        void prune(int before) {
+            int i = Arrays.binarySearch(days, 0, size, before);
+            i = i >= 0 ? i : -i - 1;
+            if (i > 0) {
+                System.arraycopy(days, i, days, 0, size - i);
+                System.arraycopy(counts, i, counts, 0, size - i);
+                size -= i;
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.rei.trailregister.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Process wide counters and latency histograms, written out in the Prometheus text format. Metrics are looked up by
+ * name once, usually into a static field, and are plain {@link LongAdder}s and {@link LatencyHistogram}s after that,
+ * so updating them costs the same as any other counter.
+ */
+public final class Metrics {
+    private static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+
+    private static final ConcurrentMap<String, Family<LongAdder>> counters = new ConcurrentSkipListMap<>();
+    private static final ConcurrentMap<String, Family<LatencyHistogram>> timers = new ConcurrentSkipListMap<>();
+
+    private Metrics() {}
+
+    public static LongAdder counter(String name, String help) {
+        return counter(name, help, null, null);
+    }
+
+    /**
+     * @param label name of the label telling this counter apart from others of the same name
+     */
+    public static LongAdder counter(String name, String help, String label, String value) {
+        return family(counters, name, help, label).get(value, LongAdder::new);
+    }
+
+    public static LatencyHistogram timer(String name, String help) {
+        return timer(name, help, null, null);
+    }
+
+    /**
+     * @param name of the metric in seconds, reported as a summary with the 50th, 99th and 99.9th percentiles
+     */
+    public static LatencyHistogram timer(String name, String help, String label, String value) {
+        return family(timers, name, help, label).get(value, LatencyHistogram::new);
+    }
+
+    public static void writePrometheus(Writer out) throws IOException {
+        for (Family<LongAdder> family : counters.values()) {
+            family.writeHeader(out, "counter");
+            for (Map.Entry<String, LongAdder> e : family.metrics.entrySet()) {
+                out.write(family.name + family.labels(e.getKey(), null) + " " + e.getValue().sum() + "\n");
+            }
+        }
+        for (Family<LatencyHistogram> family : timers.values()) {
+            family.writeHeader(out, "summary");
+            for (Map.Entry<String, LatencyHistogram> e : family.metrics.entrySet()) {
+                LatencyHistogram histogram = e.getValue();
+                for (double quantile : QUANTILES) {
+                    out.write(family.name + family.labels(e.getKey(), quantile) + " "
+                              + histogram.getPercentileMillis(quantile * 100) / 1000 + "\n");
+                }
+                out.write(family.name + "_sum" + family.labels(e.getKey(), null) + " " + histogram.getTotalNanos() / 1e9 + "\n");
+                out.write(family.name + "_count" + family.labels(e.getKey(), null) + " " + histogram.getCount() + "\n");
+            }
+        }
+    }
+
+    private static <T> Family<T> family(ConcurrentMap<String, Family<T>> families, String name, String help, String label) {
+        Family<T> family = families.computeIfAbsent(name, n -> new Family<>(n, help, label));
+        if (label == null ? family.label != null : !label.equals(family.label)) {
+            throw new IllegalArgumentException(name + " is already labelled by " + family.label);
+        }
+        return family;
+    }
+
+    private static class Family<T> {
+        private final String name;
+        private final String help;
+        private final String label;
+        // metrics by label value, the empty string for the one without a label
+        private final ConcurrentMap<String, T> metrics = new ConcurrentSkipListMap<>();
+
+        Family(String name, String help, String label) {
+            this.name = name;
+            this.help = help;
+            this.label = label;
+        }
+
+        T get(String value, Supplier<T> create) {
+            return metrics.computeIfAbsent(value == null ? "" : value, v -> create.get());
+        }
+
+        void writeHeader(Writer out, String type) throws IOException {
+            out.write("# HELP " + name + " " + help + "\n");
+            out.write("# TYPE " + name + " " + type + "\n");
+        }
+
+        String labels(String value, Double quantile) {
+            StringBuilder labels = new StringBuilder();
+            if (label != null) {
+                labels.append(label).append("=\"").append(escape(value)).append('"');
+            }
+            if (quantile != null) {
+                labels.append(labels.length() > 0 ? "," : "").append("quantile=\"").append(quantile).append('"');
+            }
+            return labels.length() == 0 ? "" : "{" + labels + "}";
+        }
+
+        private static String escape(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.rei.trailregister;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableMap;
+
+public class CachingUsageRepositoryTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FileUsageRepository fileRepo;
+    private CachingUsageRepository repo;
+
+    @Before
+    public void setup() {
+        fileRepo = new FileUsageRepository(tmp.getRoot().toPath());
+        repo = new CachingUsageRepository(fileRepo, 100, 1, TimeUnit.HOURS);
+    }
+
+    @Test
+    public void servesRepeatedQueriesFromCache() {
+        UsageKey usageKey = new UsageKey("app", "env", "tests", "cached");
+        repo.recordUsages(usageKey, 3, LocalDate.now());
+
+        assertEquals(3, repo.getUsages(usageKey, 30));
+        assertEquals(3, repo.getUsages(usageKey, 30));
+        assertEquals(Long.valueOf(3), repo.getAllUsages("app", "env", "tests", 30).get("cached"));
+        assertEquals(Long.valueOf(3), repo.getAllUsages("app", "env", "tests", 30).get("cached"));
+        assertEquals(2, repo.getHits());
+        assertEquals(2, repo.getMisses());
+
+        // written around the cache, so only visible once the entry expires
+        fileRepo.recordUsages(usageKey, 1, LocalDate.now());
+        assertEquals(3, repo.getUsages(usageKey, 30));
+    }
+
+    @Test
+    public void localWritesInvalidateCategory() {
+        UsageKey usageKey = new UsageKey("app", "env", "tests", "invalidated");
+        UsageKey other = new UsageKey("app", "env", "other", "untouched");
+        repo.recordUsages(usageKey, 3, LocalDate.now());
+        repo.recordUsages(other, 1, LocalDate.now());
+
+        assertEquals(3, repo.getUsages(usageKey, 30));
+        assertEquals(1, repo.getUsages(other, 30));
+        assertEquals(1, repo.getUsagesByDate(usageKey, 1).size());
+
+        repo.recordUsages(usageKey, 2, LocalDate.now());
+        repo.recordUsages(ImmutableMap.of(new UsageKey("app", "env", "tests", "another"), 4), LocalDate.now());
+
+        assertEquals(5, repo.getUsages(usageKey, 30));
+        assertEquals(Long.valueOf(5), repo.getUsagesByDate(usageKey, 1).values().iterator().next());
+        assertEquals(Long.valueOf(4), repo.getAllUsages("app", "env", "tests", 30).get("another"));
+        assertEquals(1, repo.getUsages(other, 30));
+        assertEquals(1, repo.getHits());
+    }
+
+    @Test
+    public void forgetsIdleCategories() throws InterruptedException {
+        CachingUsageRepository shortLived = new CachingUsageRepository(fileRepo, 100, 50, TimeUnit.MILLISECONDS);
+        UsageKey usageKey = new UsageKey("app", "env", "tests", "idle");
+        for (int c = 0; c < 20; c++) {
+            shortLived.recordUsages(new UsageKey("app", "env", "cat" + c, "k"), 1, LocalDate.now());
+        }
+        shortLived.recordUsages(usageKey, 2, LocalDate.now());
+        assertEquals(2, shortLived.getUsages(usageKey, 1));
+        assertEquals(21, shortLived.getCategoriesTracked());
+
+        Thread.sleep(100);
+        assertEquals(0, shortLived.getCategoriesTracked());
+        // a generation made again doesn't match anything cached under the old one
+        fileRepo.recordUsages(usageKey, 1, LocalDate.now());
+        assertEquals(3, shortLived.getUsages(usageKey, 1));
+    }
+}
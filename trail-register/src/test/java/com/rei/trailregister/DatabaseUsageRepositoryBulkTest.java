@@ -0,0 +1,120 @@
+package com.rei.trailregister;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import org.h2.Driver;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * batch writes, whole category reads and the key index, each test on its own database
+ */
+public class DatabaseUsageRepositoryBulkTest {
+
+    private DatabaseUsageRepository repo = new DatabaseUsageRepository("jdbc:h2:mem:test" + UUID.randomUUID()
+                                                                       + ";DB_CLOSE_DELAY=-1", "sa", "sa", Driver::new);
+
+    @Before
+    public void setup() {
+        repo.getDbi().withHandle(h -> {
+           h.execute("create table usages (app varchar(20), env varchar(20), category varchar(30), \"key\" varchar(100), date int, num int)");
+           return null;
+        });
+    }
+
+    @Test
+    public void testRecordUsagesBatch() {
+        UsageKey existing = new UsageKey("app", "env", "batch", "existing");
+        repo.recordUsages(existing, 3, LocalDate.now());
+
+        Map<UsageKey, Integer> usages = new HashMap<>();
+        usages.put(existing, 2);
+        IntStream.range(0, 50).forEach(i -> usages.put(new UsageKey("app", "env", "batch", "k" + i), i));
+        repo.recordUsages(usages, LocalDate.now());
+        repo.recordUsages(usages, LocalDate.now());
+
+        assertEquals(7, repo.getUsages(existing, 1));
+        assertEquals(98, repo.getUsages(new UsageKey("app", "env", "batch", "k49"), 1));
+        assertEquals(51, repo.getKeys("app", "env", "batch").size());
+
+        Map<String, Long> all = repo.getAllUsages("app", "env", "batch", 1);
+        assertEquals(51, all.size());
+        assertEquals(Long.valueOf(7), all.get("existing"));
+        assertEquals(Long.valueOf(0), all.get("k0"));
+    }
+
+    @Test
+    public void ranksKeysInTheDatabase() {
+        Map<UsageKey, Integer> usages = new HashMap<>();
+        IntStream.range(0, 10).forEach(i -> usages.put(new UsageKey("app", "env", "ranked", "k" + i), i));
+        repo.recordUsages(usages, LocalDate.now());
+        repo.recordUsages(new UsageKey("app", "env", "ranked", "old"), 100, LocalDate.now().minusDays(10));
+
+        assertEquals(Arrays.asList("k9", "k8", "k7"), keys(Ranking.top(3)));
+        assertEquals(Arrays.asList("k0", "old", "k1"), keys(Ranking.bottom(3)));
+        assertEquals(Arrays.asList("k5", "k4", "k3"), keys(Ranking.between(3, 5)));
+        assertEquals(Arrays.asList("k6", "k5"), keys(Ranking.top(2).within(1, 6)));
+        for (Ranking ranking : Arrays.asList(Ranking.top(4), Ranking.bottom(4), Ranking.between(2, 7))) {
+            assertEquals(ranking.select(repo.getAllUsages("app", "env", "ranked", 1)),
+                         repo.getRankedUsages("app", "env", "ranked", 1, ranking));
+        }
+    }
+
+    @Test
+    public void loadsIndexOnceForConcurrentReads() throws Exception {
+        repo.recordUsages(new UsageKey("app", "env", "indexed", "k"), 1, LocalDate.now());
+        AtomicInteger loads = new AtomicInteger();
+        repo.getDbi().setTimingCollector((nanos, ctx) -> {
+            if (ctx.getRawSql().startsWith("select distinct")) {
+                loads.incrementAndGet();
+            }
+        });
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        List<Future<List<String>>> reads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            reads.add(threads.submit(() -> repo.getKeys("app", "env", "indexed")));
+        }
+        for (Future<List<String>> read : reads) {
+            assertEquals(Arrays.asList("k"), read.get());
+        }
+        threads.shutdown();
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void keepsKeysRecordedWhileIndexReloads() {
+        repo.recordUsages(new UsageKey("app", "env", "indexed", "before"), 1, LocalDate.now());
+        assertEquals(Arrays.asList("before"), repo.getKeys("app", "env", "indexed"));
+
+        AtomicBoolean recorded = new AtomicBoolean();
+        repo.getDbi().setTimingCollector((nanos, ctx) -> {
+            // after the reload's query ran, so only the recording itself knows about the key
+            if (ctx.getRawSql().startsWith("select distinct") && recorded.compareAndSet(false, true)) {
+                repo.recordUsages(new UsageKey("app", "env", "indexed", "during"), 1, LocalDate.now());
+            }
+        });
+        repo.reloadIndex();
+        assertTrue(recorded.get());
+        assertEquals(2, repo.getKeys("app", "env", "indexed").size());
+        assertTrue(repo.getKeys("app", "env", "indexed").contains("during"));
+    }
+
+    private List<String> keys(Ranking ranking) {
+        return new ArrayList<>(repo.getRankedUsages("app", "env", "ranked", 1, ranking).keySet());
+    }
+}
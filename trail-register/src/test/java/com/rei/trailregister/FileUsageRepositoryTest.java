@@ -1,15 +1,28 @@
 package com.rei.trailregister;
 
+import static java.time.format.DateTimeFormatter.BASIC_ISO_DATE;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import org.junit.Before;
@@ -61,6 +74,204 @@ public class FileUsageRepositoryTest {
 		
 	}
 
+	@Test
+	public void canReadAllUsagesInCategory() {
+	    for (int i = 0; i < 10; i++) {
+	        UsageKey usageKey = new UsageKey("app", "env", "all", "k" + i);
+	        for (int day = 0; day < 150; day++) {
+	            repo.recordUsages(usageKey, i, LocalDate.now().minusDays(day));
+	        }
+	    }
+	    repo.runCompaction();
+	    repo.recordUsages(new UsageKey("app", "env", "all", "k3"), 2, LocalDate.now());
+	    
+	    Map<String, Long> usages = repo.getAllUsages("app", "env", "all", 30);
+	    assertEquals(10, usages.size());
+	    usages.forEach((key, num) -> assertEquals(repo.getUsages(new UsageKey("app", "env", "all", key), 30), (long) num));
+	    assertEquals(Long.valueOf(92), usages.get("k3"));
+	    assertEquals(0, repo.getAllUsages("app", "env", "none", 30).size());
+	}
+
+	@Test
+	public void ranksKeysInCategory() {
+	    for (int i = 0; i < 10; i++) {
+	        repo.recordUsages(new UsageKey("app", "env", "ranked", "k" + i), i, LocalDate.now());
+	    }
+	    repo.recordUsages(new UsageKey("app", "env", "ranked", "k0"), 5, LocalDate.now().minusDays(10));
+	    
+	    Map<String, Long> top = repo.getRankedUsages("app", "env", "ranked", 1, Ranking.top(3));
+	    assertEquals(Arrays.asList("k9", "k8", "k7"), new ArrayList<>(top.keySet()));
+	    assertEquals(Long.valueOf(9), top.get("k9"));
+	    Map<String, Long> bottom = repo.getRankedUsages("app", "env", "ranked", 1, Ranking.bottom(2));
+	    assertEquals(Arrays.asList("k0", "k1"), new ArrayList<>(bottom.keySet()));
+	    Map<String, Long> between = repo.getRankedUsages("app", "env", "ranked", 30, Ranking.between(4, 5));
+	    assertEquals(Arrays.asList("k0", "k5", "k4"), new ArrayList<>(between.keySet()));
+	}
+	
+	@Test
+	public void finishesInterruptedCompaction() throws IOException {
+	    UsageKey usageKey = new UsageKey("app", "env", "tests", "interrupted");
+	    for (int day = 0; day < 150; day++) {
+	        repo.recordUsages(usageKey, 1, LocalDate.now().minusDays(day));
+	    }
+	    repo.runCompaction();
+	    assertEquals(150, repo.getUsages(usageKey, 150));
+	    
+	    // simulate a crash after the compacted file was swapped in but before the merged date files were removed
+	    Path root = tmp.getRoot().toPath();
+	    Path keyDir = root.resolve("app/env/tests/interrupted");
+	    List<String> merged = IntStream.range(0, 150)
+	                                   .mapToObj(day -> BASIC_ISO_DATE.format(LocalDate.now().minusDays(day)))
+	                                   .collect(Collectors.toList());
+	    for (String date : merged) {
+	        Files.write(keyDir.resolve(date), "1".getBytes());
+	    }
+	    Files.write(keyDir.resolve("_compaction"), merged);
+	    Files.write(keyDir.resolve("_data.tmp"), Arrays.asList("garbage"));
+	    Files.write(root.resolve("_compaction.progress"), Arrays.asList("key app/env/tests/interrupted"));
+	    
+	    // the temp file was never swapped in, so the date files have not been merged yet
+	    repo = new FileUsageRepository(root);
+	    assertEquals(300, repo.getUsages(usageKey, 150));
+	    assertFalse(Files.exists(keyDir.resolve("_data.tmp")));
+	    
+	    Files.write(keyDir.resolve("_compaction"), merged);
+	    repo = new FileUsageRepository(root);
+	    assertEquals(150, repo.getUsages(usageKey, 150));
+	    assertFalse(Files.exists(keyDir.resolve(merged.get(0))));
+	    assertFalse(Files.exists(keyDir.resolve("_compaction")));
+	}
+	
+	@Test
+	public void readOnlyLeavesDataAsItWas() throws IOException {
+	    UsageKey usageKey = new UsageKey("app", "env", "tests", "source");
+	    repo.recordUsages(usageKey, 2, LocalDate.now());
+	    Path root = tmp.getRoot().toPath();
+	    Path keyDir = root.resolve("app/env/tests/source");
+	    Files.write(keyDir.resolve("_data.tmp"), Arrays.asList("garbage"));
+	    Files.write(root.resolve("_compaction.progress"), Arrays.asList("key app/env/tests/source"));
+	    
+	    FileUsageRepository source = new FileUsageRepository(root, true);
+	    assertEquals(2, source.getUsages(usageKey, 1));
+	    assertEquals(Arrays.asList("source"), source.getKeys("app", "env", "tests"));
+	    source.runCompaction();
+	    source.shutdown();
+	    assertTrue(Files.exists(keyDir.resolve("_data.tmp")));
+	    assertTrue(Files.exists(root.resolve("_compaction.progress")));
+	    assertFalse(Files.exists(root.resolve("_index")));
+	}
+	
+	@Test
+	public void upgradesTextCompactedFile() throws IOException {
+	    UsageKey usageKey = new UsageKey("app", "env", "tests", "upgrade");
+	    Path keyDir = tmp.getRoot().toPath().resolve("app/env/tests/upgrade");
+	    Files.createDirectories(keyDir);
+	    Files.write(keyDir.resolve("_data"), Arrays.asList(BASIC_ISO_DATE.format(LocalDate.now().minusDays(200)) + " 7",
+	                                                       BASIC_ISO_DATE.format(LocalDate.now().minusDays(1)) + " 3"));
+	    assertEquals(3, repo.getUsages(usageKey, 2));
+	    assertEquals(10, repo.getUsages(usageKey, 365));
+	    
+	    for (int day = 0; day < 150; day++) {
+	        repo.recordUsages(usageKey, 1, LocalDate.now().minusDays(day));
+	    }
+	    repo.runCompaction();
+	    
+	    assertEquals(CompactedFile.MAGIC, ByteBuffer.wrap(Files.readAllBytes(keyDir.resolve("_data"))).getInt());
+	    assertEquals(5, repo.getUsages(usageKey, 2));
+	    assertEquals(160, repo.getUsages(usageKey, 365));
+	    assertEquals(Long.valueOf(4), repo.getUsagesByDate(usageKey, 2).get(BASIC_ISO_DATE.format(LocalDate.now().minusDays(1))));
+	    assertEquals(Long.valueOf(160), repo.getAllUsages("app", "env", "tests", 365).get("upgrade"));
+	}
+	
+	@Test
+	public void upgradesTextCompactedFileWithFewNewWrites() throws IOException {
+	    UsageKey usageKey = new UsageKey("app", "env", "tests", "quiet");
+	    Path keyDir = tmp.getRoot().toPath().resolve("app/env/tests/quiet");
+	    Files.createDirectories(keyDir);
+	    Files.write(keyDir.resolve("_data"), Arrays.asList(BASIC_ISO_DATE.format(LocalDate.now().minusDays(3)) + " 7"));
+	    repo.recordUsages(usageKey, 2, LocalDate.now());
+	    
+	    repo.runCompaction();
+	    
+	    assertEquals(CompactedFile.MAGIC, ByteBuffer.wrap(Files.readAllBytes(keyDir.resolve("_data"))).getInt());
+	    assertFalse(Files.exists(keyDir.resolve(BASIC_ISO_DATE.format(LocalDate.now()))));
+	    assertEquals(9, repo.getUsages(usageKey, 30));
+	}
+	
+	@Test
+	public void keepsWritesMadeDuringCompaction() throws Exception {
+	    for (int i = 0; i < 5; i++) {
+	        UsageKey usageKey = new UsageKey("app", "env", "busy", "k" + i);
+	        for (int day = 1; day <= 150; day++) {
+	            repo.recordUsages(usageKey, 1, LocalDate.now().minusDays(day));
+	        }
+	    }
+	    
+	    ExecutorService pool = Executors.newFixedThreadPool(4);
+	    Future<?> compaction = pool.submit(repo::runCompaction);
+	    for (int t = 0; t < 3; t++) {
+	        pool.submit(() -> {
+	            for (int j = 0; j < 500; j++) {
+	                repo.recordUsages(new UsageKey("app", "env", "busy", "k" + j % 5), 1, LocalDate.now().minusDays(j % 10));
+	            }
+	        });
+	    }
+	    pool.shutdown();
+	    assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+	    compaction.get();
+	    
+	    long total = repo.getAllUsages("app", "env", "busy", 200).values().stream().mapToLong(Long::longValue).sum();
+	    assertEquals(5 * 150 + 3 * 500, total);
+	    assertEquals(false, repo.getCompactionStatus().get("running"));
+	    assertEquals(5L, repo.getCompactionStatus().get("keysScanned"));
+	}
+
+	@Test
+	public void keyLockSurvivesGarbageCollectionWhileHeld() throws Exception {
+	    UsageKey usageKey = new UsageKey("app", "env", "tests", "locked");
+	    repo.recordUsages(usageKey);
+	    // only the write half is kept, the way compaction holds it
+	    Lock compactionLock = repo.keyLock(tmp.getRoot().toPath().resolve("app/env/tests/locked")).writeLock();
+	    compactionLock.lock();
+	    ExecutorService writer = Executors.newSingleThreadExecutor();
+	    try {
+	        for (int i = 0; i < 5; i++) {
+	            System.gc();
+	        }
+	        Future<?> write = writer.submit(() -> repo.recordUsages(usageKey));
+	        Thread.sleep(200);
+	        assertFalse("write ran while the key was locked for compaction", write.isDone());
+	        compactionLock.unlock();
+	        write.get(5, TimeUnit.SECONDS);
+	    } finally {
+	        writer.shutdownNow();
+	    }
+	    assertEquals(2, repo.getUsages(usageKey, 1));
+	}
+	
+	@Test
+	public void warmStartsFromIndexSnapshot() throws IOException {
+	    repo.recordUsages(new UsageKey("app", "env", "tests", "a"));
+	    repo.recordUsages(new UsageKey("app", "env", "other", "b"));
+	    repo.shutdown();
+	    
+	    Path root = tmp.getRoot().toPath();
+	    assertTrue(Files.exists(root.resolve("_index")));
+	    
+	    // written by another process after the snapshot, found because the category directories changed
+	    Files.createDirectories(root.resolve("app/env/tests/c"));
+	    Files.createDirectories(root.resolve("app/prod/tests/d"));
+	    
+	    repo = new FileUsageRepository(root);
+	    assertEquals(Arrays.asList("a", "c"), repo.getKeys("app", "env", "tests"));
+	    assertEquals(Arrays.asList("b"), repo.getKeys("app", "env", "other"));
+	    assertEquals(Arrays.asList("env", "prod"), repo.getEnvironments("app"));
+	    assertEquals(Arrays.asList("d"), repo.getKeys("app", "prod", "tests"));
+	    
+	    repo.recordUsages(new UsageKey("new", "env", "tests", "e"));
+	    assertEquals(Arrays.asList("app", "new"), repo.getApps());
+	}
+	
 	@Test
 	public void canReadUsagesForNonExistentKey() {
 	    assertEquals(0, repo.getUsages(new UsageKey("app", "env", "tests", "read_write"), 366));
@@ -0,0 +1,102 @@
+package com.rei.trailregister;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ImporterTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void resumesFailedImportFromCheckpoint() throws Exception {
+        FileUsageRepository from = new FileUsageRepository(tmp.newFolder("from").toPath());
+        for (int i = 0; i < 50; i++) {
+            from.recordUsages(new UsageKey("a", "e", "good", "k" + i), 2);
+            from.recordUsages(new UsageKey("a", "e", "bad", "k" + i), 3);
+        }
+
+        boolean[] failing = { true };
+        FileUsageRepository to = new FileUsageRepository(tmp.newFolder("to").toPath()) {
+            @Override
+            public void recordUsages(Map<UsageKey, Integer> usages, LocalDate date) {
+                if (failing[0] && usages.keySet().stream().anyMatch(k -> k.getCategory().equals("bad"))) {
+                    throw new IllegalStateException("disk full");
+                }
+                super.recordUsages(usages, date);
+            }
+        };
+        Path checkpoint = tmp.getRoot().toPath().resolve("checkpoint");
+
+        Importer first = new Importer(from, to, "from", null, null, 30, 2, 10, checkpoint);
+        first.run();
+        assertEquals("failed", first.getProgress().get("state"));
+        assertEquals(50L, first.getProgress().get("keysImported"));
+        assertTrue(Files.exists(checkpoint));
+
+        failing[0] = false;
+        Importer second = new Importer(from, to, "from", null, null, 30, 2, 10, checkpoint);
+        second.run();
+        assertEquals("finished", second.getProgress().get("state"));
+        assertEquals(50L, second.getProgress().get("keysSkipped"));
+        assertEquals(50L, second.getProgress().get("keysImported"));
+        assertFalse(Files.exists(checkpoint));
+
+        // the good category was copied once, not again on resume
+        assertEquals(100, to.getAllUsages("a", "e", "good", 30).values().stream().mapToLong(Long::longValue).sum());
+        assertEquals(150, to.getAllUsages("a", "e", "bad", 30).values().stream().mapToLong(Long::longValue).sum());
+    }
+
+    @Test
+    public void resumesChunkPartWayThroughItsDaysWithoutCountingTwice() throws Exception {
+        LocalDate today = LocalDate.now();
+        LocalDate yesterday = today.minusDays(1);
+        FileUsageRepository from = new FileUsageRepository(tmp.newFolder("from").toPath());
+        for (int i = 0; i < 5; i++) {
+            from.recordUsages(new UsageKey("a", "e", "c", "k" + i), 2, yesterday);
+            from.recordUsages(new UsageKey("a", "e", "c", "k" + i), 3, today);
+        }
+
+        boolean[] failing = { true };
+        FileUsageRepository to = new FileUsageRepository(tmp.newFolder("to").toPath()) {
+            @Override
+            public void recordUsages(Map<UsageKey, Integer> usages, LocalDate date) {
+                if (failing[0] && date.equals(today)) {
+                    throw new IllegalStateException("disk full");
+                }
+                super.recordUsages(usages, date);
+            }
+        };
+        Path checkpoint = tmp.getRoot().toPath().resolve("checkpoint");
+
+        Importer first = new Importer(from, to, "from", null, null, 30, 1, 10, checkpoint);
+        first.run();
+        assertEquals("failed", first.getProgress().get("state"));
+        // a key added inside the range of the chunk already started
+        from.recordUsages(new UsageKey("a", "e", "c", "k1a"), 7, today);
+
+        failing[0] = false;
+        Importer second = new Importer(from, to, "from", null, null, 30, 1, 10, checkpoint);
+        second.run();
+        assertEquals("finished", second.getProgress().get("state"));
+        assertEquals(6L, second.getProgress().get("keysImported"));
+        assertEquals(22L, second.getProgress().get("usagesImported"));
+
+        Map<String, Map<String, Long>> copied = to.getUsagesByDate("a", "e", "c", Collections.singleton("k0"), 30);
+        assertEquals(Long.valueOf(2), copied.get("k0").get(yesterday.format(DateTimeFormatter.BASIC_ISO_DATE)));
+        assertEquals(Long.valueOf(3), copied.get("k0").get(today.format(DateTimeFormatter.BASIC_ISO_DATE)));
+        assertEquals(32, to.getAllUsages("a", "e", "c", 30).values().stream().mapToLong(Long::longValue).sum());
+    }
+}
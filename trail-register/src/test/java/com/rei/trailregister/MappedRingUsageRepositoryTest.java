@@ -0,0 +1,79 @@
+package com.rei.trailregister;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedRingUsageRepositoryTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private MappedRingUsageRepository repo;
+
+    @Before
+    public void setup() {
+        repo = new MappedRingUsageRepository(tmp.getRoot().toPath(), 400, 2);
+    }
+
+    @Test
+    public void canReadAndWriteUsages() {
+        UsageKey usageKey = new UsageKey("app", "env", "tests", "read_write");
+        repo.recordUsages(usageKey, 5, LocalDate.now());
+        repo.recordUsages(usageKey);
+        repo.recordUsages(usageKey, LocalDate.now().minusDays(1));
+        repo.recordUsages(usageKey, 4, LocalDate.now().minusDays(2));
+
+        assertEquals(6, repo.getUsages(usageKey, 1));
+        assertEquals(11, repo.getUsages(usageKey, 3));
+
+        IntStream.range(0, 365).mapToObj(x -> LocalDate.now().minusDays(x)).forEach(date -> {
+            repo.recordUsages(usageKey, 1, date);
+        });
+
+        repo.recordUsages(usageKey);
+        repo.recordUsages(usageKey, 2, LocalDate.now().minusDays(2));
+        assertEquals(379, repo.getUsages(usageKey, 366));
+
+        Map<String, Long> usagesByDate = repo.getUsagesByDate(usageKey, 366);
+        assertEquals(366, usagesByDate.size());
+
+        assertEquals(Arrays.asList("app"), repo.getApps());
+        assertEquals(Arrays.asList("read_write"), repo.getKeys("app", "env", "tests"));
+    }
+
+    @Test
+    public void overwritesDaysOlderThanTheRing() {
+        UsageKey usageKey = new UsageKey("app", "env", "tests", "wrap");
+        repo.recordUsages(usageKey, 3, LocalDate.now().minusDays(400));
+        assertEquals(0, repo.getUsages(usageKey, 500));
+
+        repo.recordUsages(usageKey, 7, LocalDate.now());
+        repo.recordUsages(usageKey, 3, LocalDate.now().minusDays(400));
+        assertEquals(7, repo.getUsages(usageKey, 500));
+    }
+
+    @Test
+    public void survivesEvictionOfMappedFiles() {
+        for (int i = 0; i < 10; i++) {
+            for (int k = 0; k < 5; k++) {
+                repo.recordUsages(new UsageKey("app", "env", "tests", "k" + k));
+            }
+        }
+        assertEquals(10, repo.getUsages(new UsageKey("app", "env", "tests", "k3"), 30));
+        assertEquals(0, repo.getUsages(new UsageKey("app", "env", "tests", "missing"), 30));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void requiresSafeArgs() {
+        repo.recordUsages(new UsageKey("blah", "blah", "blah", "<invalid"));
+    }
+}
@@ -0,0 +1,80 @@
+package com.rei.trailregister;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class RequestLaneTest {
+
+    private ExecutorService callers = Executors.newCachedThreadPool();
+
+    @After
+    public void cleanup() {
+        callers.shutdownNow();
+    }
+
+    @Test
+    public void shedsRequestsPastTheQueue() throws Exception {
+        RequestLane lane = new RequestLane("read", 1, 1, 60_000, null);
+        CountDownLatch started = new CountDownLatch(1);
+        CompletableFuture<String> release = new CompletableFuture<>();
+
+        Future<String> first = callers.submit(() -> lane.call(() -> {
+            started.countDown();
+            return release.get();
+        }));
+        started.await();
+        Future<String> second = callers.submit(() -> lane.call(() -> "second"));
+        while (lane.getStats().get("waiting").equals(0)) {
+            Thread.sleep(5);
+        }
+
+        try {
+            lane.call(() -> "third");
+            fail("expected the third request to be turned away");
+        } catch (RequestLane.OverloadedException e) {
+            assertEquals(1L, lane.getStats().get("rejected"));
+        }
+
+        release.complete("first");
+        assertEquals("first", first.get(5, TimeUnit.SECONDS));
+        assertEquals("second", second.get(5, TimeUnit.SECONDS));
+        assertEquals("third", lane.call(() -> "third"));
+    }
+
+    @Test
+    public void shedsRequestsThatWaitTooLong() throws Exception {
+        RequestLane lane = new RequestLane("ingest", 1, 10, 50, Executors.newSingleThreadExecutor());
+        CountDownLatch started = new CountDownLatch(1);
+        CompletableFuture<String> release = new CompletableFuture<>();
+        callers.submit(() -> lane.call(() -> {
+            started.countDown();
+            return release.get();
+        }));
+        started.await();
+
+        try {
+            lane.call(() -> "late");
+            fail("expected the request to time out waiting");
+        } catch (RequestLane.OverloadedException e) {
+            assertEquals(1L, lane.getStats().get("rejected"));
+        }
+        release.complete("done");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rethrowsWhatTheRequestThrows() throws Exception {
+        new RequestLane("read", 1, 0, 50, Executors.newSingleThreadExecutor()).call(() -> {
+            throw new IllegalArgumentException("bad");
+        });
+    }
+}
@@ -0,0 +1,110 @@
+package com.rei.trailregister;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SegmentLogUsageRepositoryTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path dir;
+    private SegmentLogUsageRepository repo;
+
+    @Before
+    public void setup() {
+        dir = tmp.getRoot().toPath();
+        repo = new SegmentLogUsageRepository(dir, 1024);
+    }
+
+    @Test
+    public void canReadAndWriteUsages() {
+        UsageKey usageKey = new UsageKey("app", "env", "tests", "read_write");
+        repo.recordUsages(usageKey, 5, LocalDate.now());
+        repo.recordUsages(usageKey);
+        repo.recordUsages(usageKey, LocalDate.now().minusDays(1));
+        repo.recordUsages(usageKey, 4, LocalDate.now().minusDays(2));
+
+        assertEquals(6, repo.getUsages(usageKey, 1));
+        assertEquals(11, repo.getUsages(usageKey, 3));
+
+        IntStream.range(0, 365).mapToObj(x -> LocalDate.now().minusDays(x)).forEach(date -> {
+            repo.recordUsages(usageKey, 1, date);
+        });
+
+        repo.runCompaction();
+
+        repo.recordUsages(usageKey);
+        repo.recordUsages(usageKey, 2, LocalDate.now().minusDays(2));
+        assertEquals(379, repo.getUsages(usageKey, 366));
+
+        Map<String, Long> usagesByDate = repo.getUsagesByDate(usageKey, 366);
+        assertEquals(366, usagesByDate.size());
+
+        assertEquals(Arrays.asList("app"), repo.getApps());
+        assertEquals(Arrays.asList("tests"), repo.getCategories("app", "env"));
+        assertEquals(Arrays.asList("read_write"), repo.getKeys("app", "env", "tests"));
+    }
+
+    @Test
+    public void rebuildsIndexAfterRestart() throws IOException {
+        for (int i = 0; i < 500; i++) {
+            repo.recordUsages(new UsageKey("app", "env", "tests", "k" + i % 10), LocalDate.now().minusDays(i % 3));
+        }
+        repo.runCompaction();
+        assertEquals(1, repo.getSealedSegments().size());
+        repo.shutdown();
+
+        repo = new SegmentLogUsageRepository(dir, 1024);
+        assertEquals(10, repo.getKeys("app", "env", "tests").size());
+        assertEquals(50, repo.getUsages(new UsageKey("app", "env", "tests", "k3"), 3));
+    }
+
+    @Test
+    public void ignoresSegmentsReplacedByInterruptedMerge() throws IOException {
+        UsageKey usageKey = new UsageKey("app", "env", "tests", "merge");
+        for (int i = 0; i < 200; i++) {
+            repo.recordUsages(usageKey);
+        }
+        repo.shutdown();
+
+        // simulate a crash after the merged segment was renamed into place but before the old ones were removed
+        Path first = segment(0);
+        Path copy = dir.resolve("copy");
+        Files.copy(first, copy);
+        repo = new SegmentLogUsageRepository(dir, 1024);
+        repo.runCompaction();
+        repo.shutdown();
+        Files.move(copy, first);
+
+        repo = new SegmentLogUsageRepository(dir, 1024);
+        assertEquals(200, repo.getUsages(usageKey, 1));
+        assertTrue(!Files.exists(first));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void requiresNonNullArgs() {
+        repo.recordUsages(new UsageKey(null, "blah", "blah", "blah"));
+    }
+
+    private Path segment(int id) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(f -> f.getFileName().toString().equals(String.format("segment-%010d.log", id)))
+                        .findFirst().get();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.rei.trailregister;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TraceTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @After
+    public void cleanup() {
+        Trace.clear();
+        Trace.setEnabled(false);
+    }
+
+    @Test
+    public void recordsNothingWhileDisabled() {
+        long start = Trace.start();
+        assertEquals(0, start);
+        Trace.end("read", start);
+        Trace.add("db query", 1000);
+        assertEquals("", Trace.describe());
+    }
+
+    @Test
+    public void takesInnerPhasesOutOfOuterOnes() throws InterruptedException {
+        Trace.setEnabled(true);
+        Trace.clear();
+        long outer = Trace.start();
+        Thread.sleep(5);
+        for (int i = 0; i < 2; i++) {
+            long inner = Trace.start();
+            Thread.sleep(20);
+            Trace.end("inner", inner);
+        }
+        Trace.addConcurrent("peer", TimeUnit.MILLISECONDS.toNanos(100));
+        Trace.end("outer", outer);
+
+        String[] phases = Trace.describe().split(", ");
+        assertEquals(3, phases.length);
+        assertTrue(phases[0], phases[0].matches("inner \\d+\\.\\dms x2"));
+        assertTrue(phases[1], phases[1].equals("peer 100.0ms"));
+        double outerMillis = Double.parseDouble(phases[2].replaceAll("outer (.*)ms", "$1"));
+        assertTrue(phases[2], outerMillis >= 5 && outerMillis < 40);
+    }
+
+    @Test
+    public void tracesFileRepositoryPhases() {
+        FileUsageRepository repo = new FileUsageRepository(tmp.getRoot().toPath());
+        repo.recordUsages(new UsageKey("a", "e", "c", "k1"), 2);
+        repo.recordUsages(new UsageKey("a", "e", "c", "k2"), 3);
+
+        Trace.setEnabled(true);
+        Trace.clear();
+        assertEquals(Long.valueOf(3), repo.getAllUsages("a", "e", "c", 30).get("k2"));
+        String phases = Trace.describe();
+        assertTrue(phases, phases.contains("list category"));
+        assertTrue(phases, phases.contains("list key"));
+        assertTrue(phases, phases.contains("lock wait"));
+        assertTrue(phases, phases.contains("read date file"));
+    }
+}
@@ -1,17 +1,27 @@
 package com.rei.trailregister;
 
+import static java.time.format.DateTimeFormatter.BASIC_ISO_DATE;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.After;
 import org.junit.Before;
@@ -23,11 +33,15 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.net.HostAndPort;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import com.rei.trailregister.cluster.ClusterAwareTrailRegisterClient;
 import com.rei.trailregister.cluster.ClusteredFileUsageRepository;
+import com.rei.trailregister.cluster.PeerClient;
+import com.rei.trailregister.cluster.PeerCodec;
 import com.squareup.okhttp.MediaType;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
 
 import spark.Spark;
 
@@ -114,24 +128,175 @@ public class TrailRegisterTest {
 			assertEquals(21, usages);
 		}
 		
+		Map<String, Map<String, Long>> byDate = clusteredRepos.getAllUsagesByDate("test-app", "prod", "things", 1);
+		assertEquals(Long.valueOf(21), byDate.get("x").values().iterator().next());
+		assertEquals(Long.valueOf(21), clusteredRepos.getUsages("test-app", "prod", "things", Arrays.asList("x"), 1).get("x"));
+		
+		// peers that don't ask for the binary encoding still get json
+		Request jsonRequest = new Request.Builder().url(baseUrl + ClusterAwareTrailRegisterClient.READ_PATH + "/test-app/prod/things?days=1")
+		                                           .post(RequestBody.create(JSON, "[\"x\"]")).build();
+		Map<String, Long> jsonTotals = json.fromJson(client.newCall(jsonRequest).execute().body().string(),
+		                                             new TypeToken<Map<String, Long>>(){}.getType());
+		assertEquals(Long.valueOf(20), jsonTotals.get("x"));
+		
+		Request binaryRequest = jsonRequest.newBuilder().header("Accept", PeerCodec.CONTENT_TYPE).build();
+		Response binaryResponse = client.newCall(binaryRequest).execute();
+		assertEquals(PeerCodec.CONTENT_TYPE, binaryResponse.header("Content-Type"));
+		assertEquals(Long.valueOf(20), PeerCodec.decodeTotals(binaryResponse.body().bytes()).get("x"));
+		
 		get("/_stats", new TypeToken<List<Map<String, Object>>>(){}).forEach(System.out::println);;
     }
     
+    @Test
+    public void peerReadsFailWhenThePeerDoesntAnswerThem() throws IOException {
+        assertEquals(201, post("/test-app/prod/things/x", ""));
+        // a path no route matches stands in for a node that predates peer reads
+        PeerClient missingRoute = new ClusterAwareTrailRegisterClient(baseUrl + "/old");
+        try {
+            missingRoute.getUsages("test-app", "prod", "things", Arrays.asList("x"), 1);
+            fail("expected the 404 to fail the read");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("404"));
+        }
+        // and the read didn't land on a write route
+        assertEquals(Long.valueOf(1), get("/test-app/prod/things/x?days=1", new TypeToken<Long>(){}));
+    }
+    
+    @Test
+    public void metricsTest() throws IOException {
+        assertEquals(201, post("/a/e/c", ImmutableMap.of("k", 2)));
+        get("/a/e/c/k", new TypeToken<Long>(){});
+        
+        Response response = client.newCall(new Request.Builder().url(baseUrl + "/metrics").get().build()).execute();
+        assertTrue(response.header("Content-Type").startsWith("text/plain"));
+        String metrics = response.body().string();
+        System.out.println(metrics);
+        assertTrue(metrics.contains("# TYPE trail_register_request_seconds summary\n"));
+        assertTrue(metrics.contains("trail_register_request_seconds{route=\"GET /:app/:env/:cat/:key\",quantile=\"0.999\"} "));
+        assertTrue(metrics.contains("trail_register_request_seconds_count{route=\"POST /:app/:env/:cat\"} "));
+        assertTrue(metrics.contains("# TYPE trail_register_file_writes_total counter\n"));
+        assertTrue(metrics.contains("trail_register_requests_rejected_total{lane=\"read\"} "));
+        
+        Map<String, Object> stat = get("/_stats", new TypeToken<List<Map<String, Object>>>(){}).stream()
+                .filter(s -> "GET /:app/:env/:cat/:key".equals(s.get("req"))).findFirst().get();
+        assertTrue((Double) stat.get("count") >= 1);
+        assertTrue(stat.containsKey("p999Millis"));
+    }
+    
     @Test
     public void importTest() throws IOException, InterruptedException {
         Path toImportDir = tmp.newFolder("other").toPath();
         FileUsageRepository otherRepos = new FileUsageRepository(toImportDir);
         for (int i = 0; i < 100; i++) {
-            otherRepos.recordUsages(new UsageKey("a", "e", "c", "k" + i));
+            otherRepos.recordUsages(new UsageKey("a", "e", "c", "k" + i), i + 1);
         }
+        otherRepos.recordUsages(new UsageKey("a", "e2", "c2", "k"), 3, LocalDate.now().minusDays(1));
         
         String mainDir = URLEncoder.encode(toImportDir.toString(), "UTF-8");
-        System.out.println(post("/_import?dir=" + mainDir, new TypeToken<String>(){}));
-        System.out.println(get("/_import", new TypeToken<String>(){}));
+        assertEquals(202, post("/_import?dir=" + mainDir, ""));
+        
+        Map<String, Object> progress = get("/_import", new TypeToken<Map<String, Object>>(){});
+        for (int i = 0; i < 100 && !"finished".equals(progress.get("state")); i++) {
+            Thread.sleep(50);
+            progress = get("/_import", new TypeToken<Map<String, Object>>(){});
+        }
+        System.out.println(progress);
+        assertEquals("finished", progress.get("state"));
+        assertEquals(101.0, progress.get("keysImported"));
+        assertEquals(5053.0, progress.get("usagesImported"));
+        assertEquals(Long.valueOf(100), get("/a/e/c/k99", new TypeToken<Long>(){}));
+        assertEquals(Long.valueOf(3), get("/a/e2/c2/k", new TypeToken<Long>(){}));
+        assertEquals(400, post("/_import", ""));
+    }
+    
+    @Test
+    public void pagingAndTopTest() throws IOException {
+        Map<String, Integer> usages = new HashMap<>();
+        for (int i = 0; i < 25; i++) {
+            usages.put(String.format("k%02d", i), i + 1);
+        }
+        assertEquals(201, post("/a/e/c", usages));
+        
+        List<String> seen = new ArrayList<>();
+        String cursor = null;
+        do {
+            Request request = new Request.Builder().url(baseUrl + "/a/e/c?limit=10" + (cursor != null ? "&cursor=" + cursor : ""))
+                                                   .get().build();
+            Response response = client.newCall(request).execute();
+            Map<String, Long> page = json.fromJson(response.body().string(), new TypeToken<LinkedHashMap<String, Long>>(){}.getType());
+            assertTrue(page.size() <= 10);
+            seen.addAll(page.keySet());
+            cursor = response.header(TrailRegister.NEXT_CURSOR_HEADER);
+        } while (cursor != null);
+        assertEquals(new ArrayList<>(new TreeMap<>(usages).keySet()), seen);
         
-        Thread.sleep(2000);
+        Map<String, Long> top = get("/a/e/c?top=3", new TypeToken<LinkedHashMap<String, Long>>(){});
+        assertEquals(Arrays.asList("k24", "k23", "k22"), new ArrayList<>(top.keySet()));
+        assertEquals(Long.valueOf(25), top.get("k24"));
         
-        System.out.println(get("/_import", new TypeToken<String>(){}));
+        Map<String, Map<String, Long>> topByDate = get("/a/e/c?top=2&by_date=true&days=1",
+                                                       new TypeToken<LinkedHashMap<String, Map<String, Long>>>(){});
+        assertEquals(Arrays.asList("k24", "k23"), new ArrayList<>(topByDate.keySet()));
+    }
+    
+    @Test
+    public void readsCategoriesLargerThanAChunk() throws IOException {
+        Map<String, Integer> usages = new HashMap<>();
+        for (int i = 0; i < TrailRegister.CHUNK_KEYS * 2 + 5; i++) {
+            usages.put("k" + i, i + 1);
+        }
+        assertEquals(201, post("/a/e/big", usages));
+        
+        Map<String, Long> totals = get("/a/e/big?days=1", new TypeToken<Map<String, Long>>(){});
+        assertEquals(usages.size(), totals.size());
+        usages.forEach((key, num) -> assertEquals(Long.valueOf(num), totals.get(key)));
+        Map<String, Map<String, Long>> byDate = get("/a/e/big?days=1&by_date=true", new TypeToken<Map<String, Map<String, Long>>>(){});
+        assertEquals(usages.size(), byDate.size());
+        
+        Response keys = client.newCall(new Request.Builder().url(baseUrl + "/a/e/big?keys=true&limit=3&cursor=k1").get().build())
+                              .execute();
+        assertEquals("[\"k10\",\"k100\",\"k1000\"]", keys.body().string());
+        assertEquals("k1000", keys.header(TrailRegister.NEXT_CURSOR_HEADER));
+    }
+    
+    @Test
+    public void ingestTest() throws IOException {
+        StringBuilder records = new StringBuilder();
+        for (int i = 0; i < 2500; i++) {
+            records.append("{\"app\":\"a\",\"env\":\"e\",\"category\":\"c\",\"key\":\"k").append(i % 5)
+                   .append("\",\"num\":2}\n");
+        }
+        records.append("{\"app\":\"a\",\"env\":\"e\",\"category\":\"c\",\"key\":\"old\",\"date\":\"")
+               .append(BASIC_ISO_DATE.format(LocalDate.now().minusDays(3))).append("\"}\n");
+        
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+            out.write(records.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        Request request = new Request.Builder().url(baseUrl + "/_ingest").header("Content-Encoding", "gzip")
+                                               .post(RequestBody.create(MediaType.parse("application/x-ndjson"),
+                                                                        gzipped.toByteArray()))
+                                               .build();
+        Response response = client.newCall(request).execute();
+        assertEquals(201, response.code());
+        assertEquals(2501.0, json.fromJson(response.body().string(), Map.class).get("records"));
+        
+        assertEquals(1000L, (long) get("/a/e/c/k0?days=1", new TypeToken<Long>(){}));
+        assertEquals(0L, (long) get("/a/e/c/old?days=1", new TypeToken<Long>(){}));
+        assertEquals(1L, (long) get("/a/e/c/old?days=5", new TypeToken<Long>(){}));
+        
+        assertEquals(400, client.newCall(new Request.Builder().url(baseUrl + "/_ingest")
+                                                 .post(RequestBody.create(JSON, "{\"app\":\"a\"}")).build())
+                                  .execute().code());
+
+        // records before a bad one are written and counted in the answer, so the sender can skip the bad one
+        Response rejected = client.newCall(new Request.Builder().url(baseUrl + "/_ingest")
+                .post(RequestBody.create(JSON, "{\"app\":\"a\",\"env\":\"e\",\"category\":\"c\",\"key\":\"before\"}\n"
+                                               + "{\"app\":\"a\",\"env\":\"e\",\"category\":\"c\",\"key\":\"k\",\"date\":\"2016-03-01\"}\n"))
+                .build()).execute();
+        assertEquals(400, rejected.code());
+        assertEquals("1", rejected.header(TrailRegister.RECORDS_WRITTEN_HEADER));
+        assertEquals(1L, (long) get("/a/e/c/before?days=1", new TypeToken<Long>(){}));
     }
     
     @After
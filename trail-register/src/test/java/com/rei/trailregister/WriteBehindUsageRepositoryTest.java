@@ -0,0 +1,93 @@
+package com.rei.trailregister;
+
+import static java.time.format.DateTimeFormatter.BASIC_ISO_DATE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WriteBehindUsageRepositoryTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FileUsageRepository fileRepo;
+    private WriteBehindUsageRepository repo;
+
+    @Before
+    public void setup() {
+        fileRepo = new FileUsageRepository(tmp.getRoot().toPath());
+        repo = new WriteBehindUsageRepository(fileRepo, 1, TimeUnit.HOURS, 1000);
+    }
+
+    @After
+    public void cleanup() {
+        repo.shutdown();
+    }
+
+    @Test
+    public void readsIncludeUnflushedUsages() {
+        UsageKey usageKey = new UsageKey("app", "env", "tests", "buffered");
+        repo.recordUsages(usageKey, 5, LocalDate.now());
+        repo.recordUsages(usageKey);
+        repo.recordUsages(usageKey, 4, LocalDate.now().minusDays(2));
+
+        assertEquals(0, fileRepo.getUsages(usageKey, 3));
+        assertEquals(6, repo.getUsages(usageKey, 1));
+        assertEquals(10, repo.getUsages(usageKey, 3));
+        assertEquals(Long.valueOf(4), repo.getUsagesByDate(usageKey, 3).get(BASIC_ISO_DATE.format(LocalDate.now().minusDays(2))));
+        assertEquals(Arrays.asList("app"), repo.getApps());
+        assertEquals(Arrays.asList("buffered"), repo.getKeys("app", "env", "tests"));
+
+        repo.flush();
+
+        assertEquals(10, fileRepo.getUsages(usageKey, 3));
+        assertEquals(10, repo.getUsages(usageKey, 3));
+        assertEquals(0, repo.getPendingEntries());
+    }
+
+    @Test
+    public void flushesWhenBufferIsFull() throws InterruptedException {
+        for (int i = 0; i < 1000; i++) {
+            repo.recordUsages(new UsageKey("app", "env", "tests", "k" + i));
+        }
+        for (int i = 0; i < 100 && fileRepo.getKeys("app", "env", "tests").size() < 1000; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(1000, fileRepo.getKeys("app", "env", "tests").size());
+    }
+
+    @Test
+    public void doesNotLoseConcurrentUsages() throws InterruptedException {
+        UsageKey usageKey = new UsageKey("app", "env", "tests", "concurrent");
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 8; i++) {
+            pool.execute(() -> {
+                for (int j = 0; j < 5000; j++) {
+                    repo.recordUsages(usageKey);
+                    if (j % 1000 == 0) {
+                        repo.flush();
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+
+        assertEquals(40000, repo.getUsages(usageKey, 1));
+        repo.shutdown();
+        Map<String, Long> byDate = fileRepo.getUsagesByDate(usageKey, 1);
+        assertEquals(Long.valueOf(40000), byDate.values().iterator().next());
+    }
+}
@@ -1,16 +1,24 @@
 package com.rei.trailregister.client;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
 import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import spark.Spark;
@@ -73,6 +81,159 @@ public class BatchingTrailRegisterClientTest {
         assertEquals(10, usagesByDate.size()); 
 	}
 	
+	@Test
+	public void keepsUsagesRecordedWhileSending() throws Exception {
+	    BatchingTrailRegisterClient client = new BatchingTrailRegisterClient(baseUrl, 5, TimeUnit.MILLISECONDS);
+	    
+	    ExecutorService threads = Executors.newFixedThreadPool(4);
+	    for (int t = 0; t < 4; t++) {
+	        threads.execute(() -> {
+	            UsageCounter counter = client.counter("test-app", "prod", "things", "held");
+	            for (int i = 0; i < 20000; i++) {
+	                client.recordUsage("test-app", "prod", "things", "thing" + i % 4);
+	                counter.increment();
+	            }
+	        });
+	    }
+	    threads.shutdown();
+	    assertTrue(threads.awaitTermination(30, TimeUnit.SECONDS));
+	    
+	    long deadline = System.currentTimeMillis() + 5000;
+	    while (client.getPending() > 0 && System.currentTimeMillis() < deadline) {
+	        Thread.sleep(10);
+	    }
+	    assertEquals(0, client.getPending());
+	    assertEquals(20000, client.getUsages("test-app", "prod", "things", "thing0"));
+	    assertEquals(80000, client.getUsages("test-app", "prod", "things", "held"));
+	}
+	
+	@Test
+	public void dropsNewKeysWhenFull() throws Exception {
+	    BatchingTrailRegisterClient client = new BatchingTrailRegisterClient(baseUrl, 100, TimeUnit.MILLISECONDS, 2,
+	                                                                         OverflowPolicy.DROP, null);
+	    for (int i = 0; i < 3; i++) {
+	        client.recordUsage("test-app", "prod", "things", "thing" + i);
+	    }
+	    assertEquals(1, client.getDropped());
+	    assertEquals(2, client.getPending());
+	    
+	    awaitSent(client, 2);
+	    // idle counters are evicted, making room again
+	    Thread.sleep(300);
+	    client.recordUsage("test-app", "prod", "things", "thing2");
+	    awaitSent(client, 3);
+	    assertEquals(1, client.getUsages("test-app", "prod", "things", "thing2"));
+	}
+	
+	@Test
+	public void spillsAndReplaysWhenFull() throws Exception {
+	    Path spillFile = tmp.getRoot().toPath().resolve("spill.ndjson");
+	    BatchingTrailRegisterClient client = new BatchingTrailRegisterClient(baseUrl, 100, TimeUnit.MILLISECONDS, 1,
+	                                                                         OverflowPolicy.SPILL, spillFile);
+	    client.recordUsage("test-app", "prod", "things", "thing0");
+	    for (int i = 0; i < 5; i++) {
+	        client.recordUsage("test-app", "prod", "things", "thing1");
+	    }
+	    assertEquals(5, client.getSpilled());
+	    
+	    awaitSent(client, 1);
+	    long deadline = System.currentTimeMillis() + 5000;
+	    while (client.getUsages("test-app", "prod", "things", "thing1") < 5 && System.currentTimeMillis() < deadline) {
+	        Thread.sleep(50);
+	    }
+	    assertEquals(5, client.getUsages("test-app", "prod", "things", "thing1"));
+	    assertFalse(Files.exists(spillFile));
+	}
+	
+	@Test
+	public void replaysSpillFileOnceSkippingBadAndCutShortRecords() throws Exception {
+	    Path spillFile = tmp.getRoot().toPath().resolve("spill.ndjson");
+	    StringBuilder spilled = new StringBuilder();
+	    for (int i = 0; i < 1500; i++) {
+	        // past the first chunk, the records before it are written in an earlier request
+	        String date = i == 1200 ? "2016-03-01" : DateTimeFormatter.BASIC_ISO_DATE.format(LocalDate.now());
+	        spilled.append("{\"app\":\"test-app\",\"env\":\"prod\",\"category\":\"things\",\"key\":\"spilled\",")
+	               .append("\"date\":\"").append(date).append("\",\"num\":1}\n");
+	    }
+	    // left by a process that died while spilling
+	    spilled.append("{\"app\":\"test-app\",\"env\":\"prod\",\"cat");
+	    Files.write(spillFile, spilled.toString().getBytes(StandardCharsets.UTF_8));
+
+	    BatchingTrailRegisterClient client = new BatchingTrailRegisterClient(baseUrl, 50, TimeUnit.MILLISECONDS, 1,
+	                                                                         OverflowPolicy.SPILL, spillFile);
+	    try {
+	        long deadline = System.currentTimeMillis() + 5000;
+	        while ((Files.exists(spillFile) || Files.exists(Paths.get(spillFile + ".replay")))
+	               && System.currentTimeMillis() < deadline) {
+	            Thread.sleep(50);
+	        }
+	        Thread.sleep(200);
+	        assertEquals(1499, client.getUsages("test-app", "prod", "things", "spilled"));
+	        assertFalse(Files.exists(Paths.get(spillFile + ".replay.offset")));
+	    } finally {
+	        client.close();
+	    }
+	}
+
+	@Test
+	public void sendsAndSpillsOnClose() throws Exception {
+	    Path spillFile = tmp.getRoot().toPath().resolve("spill.ndjson");
+	    BatchingTrailRegisterClient client = new BatchingTrailRegisterClient(baseUrl, 1, TimeUnit.HOURS, 1,
+	                                                                         OverflowPolicy.SPILL, spillFile);
+	    client.recordUsage("test-app", "prod", "things", "thing0");
+	    client.recordUsage("test-app", "prod", "things", "thing1");
+	    // on disk as soon as it's spilled
+	    assertEquals(1, Files.readAllLines(spillFile).size());
+
+	    client.close();
+	    assertEquals(1, client.getUsages("test-app", "prod", "things", "thing0"));
+	    assertEquals(1, Files.readAllLines(spillFile).size());
+
+	    Spark.stop();
+	    // give the port up before the next client finds the server gone
+	    Thread.sleep(500);
+	    client = new BatchingTrailRegisterClient(baseUrl, 1, TimeUnit.HOURS, 1, OverflowPolicy.SPILL, spillFile);
+	    client.recordUsage("test-app", "prod", "things", "thing2");
+	    client.close();
+	    assertEquals(2, Files.readAllLines(spillFile).size());
+	}
+
+	@Test
+	public void stopsBlockingAndDropsWhenServerIsDown() throws Exception {
+	    BatchingTrailRegisterClient client = new BatchingTrailRegisterClient("http://localhost:1", 100,
+	                                                                         TimeUnit.MILLISECONDS, 1,
+	                                                                         OverflowPolicy.BLOCK, null);
+	    try {
+	        client.recordUsage("test-app", "prod", "things", "thing0");
+	        long start = System.currentTimeMillis();
+	        client.recordUsage("test-app", "prod", "things", "thing1");
+	        assertTrue(System.currentTimeMillis() - start < BatchingTrailRegisterClient.MAX_BLOCK_MILLIS * 3);
+	        assertEquals(1, client.getDropped());
+	    } finally {
+	        client.close();
+	    }
+	}
+
+	@Test
+	public void dropsUsagesThatCantBeSpilled() throws Exception {
+	    Path spillFile = tmp.getRoot().toPath().resolve("missing/spill.ndjson");
+	    BatchingTrailRegisterClient client = new BatchingTrailRegisterClient(baseUrl, 1, TimeUnit.HOURS, 1,
+	                                                                         OverflowPolicy.SPILL, spillFile);
+	    client.recordUsage("test-app", "prod", "things", "thing0");
+	    client.recordUsage("test-app", "prod", "things", "thing1");
+	    assertEquals(1, client.getDropped());
+	    assertEquals(0, client.getSpilled());
+	    client.close();
+	}
+
+	private void awaitSent(BatchingTrailRegisterClient client, long sent) throws InterruptedException {
+	    long deadline = System.currentTimeMillis() + 5000;
+	    while (client.getSent() < sent && System.currentTimeMillis() < deadline) {
+	        Thread.sleep(10);
+	    }
+	    assertEquals(sent, client.getSent());
+	}
+	
     private Integer findRandomOpenPort() throws IOException {
         try (ServerSocket socket = new ServerSocket(0);) {
             return socket.getLocalPort();
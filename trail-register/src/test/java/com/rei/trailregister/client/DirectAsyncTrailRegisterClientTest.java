@@ -0,0 +1,109 @@
+package com.rei.trailregister.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import spark.Spark;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.rei.trailregister.TrailRegister;
+
+public class DirectAsyncTrailRegisterClientTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private String baseUrl;
+    private DirectAsyncTrailRegisterClient client;
+
+    @Before
+    public void setup() throws IOException {
+        int port = findRandomOpenPort();
+        baseUrl = "http://localhost:" + port;
+        Spark.port(port);
+        new TrailRegister(tmp.getRoot().toPath(), Collections.emptyList()).run();
+        Spark.awaitInitialization();
+        client = new DirectAsyncTrailRegisterClient(baseUrl, 16);
+    }
+
+    @After
+    public void cleanup() {
+        client.close();
+        Spark.stop();
+    }
+
+    @Test
+    public void canSendAndReadUsageDataAsync() throws Exception {
+        List<CompletableFuture<Void>> sent = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            CompletableFuture<Void> send = client.recordUsage("test-app", "prod", "things", "thing" + i % 4);
+            // a full client fails fast, wait for something to finish and try again
+            while (send.isCompletedExceptionally()) {
+                CompletableFuture.anyOf(sent.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+                send = client.recordUsage("test-app", "prod", "things", "thing" + i % 4);
+            }
+            sent.add(send);
+        }
+        CompletableFuture.allOf(sent.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+
+        client.recordUsages("test-app", "prod", Collections.singletonMap("others", Collections.singletonMap("other", 7)))
+              .get(10, TimeUnit.SECONDS);
+
+        assertEquals(Long.valueOf(50), client.getUsages("test-app", "prod", "things", "thing0").get());
+        assertEquals(Long.valueOf(7), client.getUsages("test-app", "prod", "others", "other").get());
+        assertEquals(Long.valueOf(50), client.getAllUsages("test-app", "prod", "things", 1).get().get("thing1"));
+        assertEquals(Long.valueOf(50), client.getUsagesByDate("test-app", "prod", "things", "thing2", 1).get()
+                                             .values().iterator().next());
+        assertEquals(Arrays.asList("test-app"), client.getApps().get());
+        assertEquals(4, client.getKeys("test-app", "prod", "things").get().size());
+    }
+
+    @Test
+    public void failsWhenServerIsUnreachable() throws Exception {
+        try (DirectAsyncTrailRegisterClient unreachable = new DirectAsyncTrailRegisterClient("http://localhost:1")) {
+            unreachable.ping().join();
+            fail("should not reach a server");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void failsRequestsMadeAfterClose() throws Exception {
+        DirectAsyncTrailRegisterClient closed = new DirectAsyncTrailRegisterClient(baseUrl, 2);
+        closed.close();
+        // more than it could ever have in flight, none of them are left waiting
+        for (int i = 0; i < 5; i++) {
+            try {
+                closed.ping().get(1, TimeUnit.SECONDS);
+                fail("a closed client should not send");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+        }
+    }
+
+    private Integer findRandomOpenPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0);) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.rei.trailregister.cluster;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClusterAwareTrailRegisterClientTest {
+
+    // takes connections but never answers, like a peer that's hung
+    private ServerSocket hung;
+    private String baseUrl;
+
+    @Before
+    public void setup() throws IOException {
+        hung = new ServerSocket(0);
+        baseUrl = "http://localhost:" + hung.getLocalPort();
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        hung.close();
+    }
+
+    @Test
+    public void readsGiveUpAfterTheirTimeout() {
+        PeerClient client = new ClusterAwareTrailRegisterClient(baseUrl, 200);
+        long start = System.nanoTime();
+        try {
+            client.getUsages("app", "env", "cat", Collections.singletonList("k"), 1);
+            fail("expected the read to time out");
+        } catch (RuntimeException e) {
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+        }
+    }
+
+    @Test
+    public void cancelAbortsTaggedCalls() throws InterruptedException {
+        PeerClient client = new ClusterAwareTrailRegisterClient(baseUrl, 10000);
+        Object tag = new Object();
+        CompletableFuture<Object> read = CompletableFuture.supplyAsync(
+                () -> client.tagged(tag, c -> c.getUsages("app", "env", "cat", Collections.singletonList("k"), 1)));
+        Thread.sleep(200);
+        long start = System.nanoTime();
+        client.cancel(tag);
+        try {
+            read.get(2, TimeUnit.SECONDS);
+            fail("expected the read to be aborted");
+        } catch (ExecutionException e) {
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+        } catch (TimeoutException e) {
+            fail("the read wasn't aborted");
+        }
+    }
+}
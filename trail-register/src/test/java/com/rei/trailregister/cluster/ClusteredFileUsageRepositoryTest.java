@@ -0,0 +1,591 @@
+package com.rei.trailregister.cluster;
+
+import static java.time.format.DateTimeFormatter.BASIC_ISO_DATE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.net.HostAndPort;
+
+import com.rei.trailregister.CachingUsageRepository;
+import com.rei.trailregister.FileUsageRepository;
+import com.rei.trailregister.PartialResults;
+import com.rei.trailregister.Ranking;
+import com.rei.trailregister.UsageKey;
+
+public class ClusteredFileUsageRepositoryTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private UsageKey usageKey = new UsageKey("app", "env", "tests", "k");
+    private Map<HostAndPort, StubPeerClient> peers = new LinkedHashMap<>();
+    private ClusteredFileUsageRepository repo;
+    private List<StubPeerClient> memberClients = new ArrayList<>(); // filled by ownerCluster
+
+    @Before
+    public void setup() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            FileUsageRepository peerRepo = new FileUsageRepository(tmp.newFolder().toPath());
+            peerRepo.recordUsages(usageKey, i + 1, LocalDate.now());
+            peers.put(HostAndPort.fromParts("peer" + i, 4567), new StubPeerClient(peerRepo));
+        }
+        repo = new ClusteredFileUsageRepository(new FileUsageRepository(tmp.newFolder().toPath()), UUID.randomUUID(),
+                                                Collections.<HostAndPort, PeerClient>unmodifiableMap(peers), 300);
+        repo.recordUsages(usageKey, 10, LocalDate.now());
+        PartialResults.clear();
+    }
+
+    @After
+    public void cleanup() {
+        repo.shutdown();
+        PartialResults.clear();
+    }
+
+    @Test
+    public void hungPeerDoesntHoldUpTheOthers() {
+        StubPeerClient hung = peers.values().iterator().next();
+        hung.setDelayMillis(5000);
+        // each read leaves a call to the hung peer behind, more of them than 4 threads for each of the 3 peers
+        for (int i = 0; i < 14; i++) {
+            assertEquals(15, repo.getUsages(usageKey, 1));
+            assertEquals(Collections.singleton("peer0:4567"), PartialResults.getMissing());
+            PartialResults.clear();
+        }
+        assertTrue(hung.getReads() <= ClusteredFileUsageRepository.MAX_PEER_READS);
+    }
+
+    @Test
+    public void pagesKeysAcrossPeers() {
+        repo.recordUsages(new UsageKey("app", "env", "tests", "a"), 1, LocalDate.now());
+        peers.values().iterator().next().recordUsages(new UsageKey("app", "env", "tests", "z"), 1, LocalDate.now());
+
+        assertEquals(Arrays.asList("a", "k", "z"), repo.getKeys("app", "env", "tests"));
+        assertEquals(Arrays.asList("a", "k"), repo.getKeys("app", "env", "tests", null, 2));
+        assertEquals(Arrays.asList("z"), repo.getKeys("app", "env", "tests", "k", 2));
+        assertFalse(PartialResults.isPartial());
+    }
+
+    @Test
+    public void cachedBulkReadsAskEachPeerOnce() {
+        UsageKey other = new UsageKey("app", "env", "tests", "other");
+        repo.recordUsages(other, 1, LocalDate.now());
+        CachingUsageRepository cached = new CachingUsageRepository(repo, 100, 1, TimeUnit.HOURS);
+        List<String> keys = Arrays.asList("k", "other");
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Long.valueOf(16), cached.getUsages("app", "env", "tests", keys, 1).get("k"));
+            assertEquals(1, cached.getUsagesByDate("app", "env", "tests", Arrays.asList("other", "k"), 1).get("other").size());
+            assertEquals(2, cached.getAllUsagesByDate("app", "env", "tests", 1).size());
+        }
+        // one bulk call per read per peer, the repeats served from the cache
+        peers.values().forEach(peer -> assertEquals(3, peer.getReads()));
+    }
+
+    @Test
+    public void readsFromAllPeers() {
+        assertEquals(16, repo.getUsages(usageKey, 1));
+        assertEquals(Long.valueOf(16), repo.getAllUsages("app", "env", "tests", 1).get("k"));
+        assertFalse(PartialResults.isPartial());
+    }
+
+    @Test
+    public void readsWholeCategoryInOneCallPerPeer() {
+        UsageKey other = new UsageKey("app", "env", "tests", "other");
+        repo.recordUsages(other, 2, LocalDate.now().minusDays(1));
+        peers.values().forEach(peer -> peer.recordUsages(other, 1, LocalDate.now()));
+
+        Map<String, Map<String, Long>> byDate = repo.getAllUsagesByDate("app", "env", "tests", 2);
+        assertEquals(2, byDate.size());
+        assertEquals(Long.valueOf(16), byDate.get("k").values().stream().reduce(0L, Long::sum));
+        assertEquals(Long.valueOf(3), byDate.get("other").get(BASIC_ISO_DATE.format(LocalDate.now())));
+        assertEquals(Long.valueOf(2), byDate.get("other").get(BASIC_ISO_DATE.format(LocalDate.now().minusDays(1))));
+
+        Map<String, Long> totals = repo.getUsages("app", "env", "tests", Arrays.asList("k", "other", "missing"), 2);
+        assertEquals(Long.valueOf(16), totals.get("k"));
+        assertEquals(Long.valueOf(5), totals.get("other"));
+        assertEquals(Long.valueOf(0), totals.get("missing"));
+
+        peers.values().forEach(peer -> assertEquals(2, peer.getReads()));
+    }
+
+    @Test
+    public void findsMostUsedKeysAcrossPeers() {
+        // each node has its own favourites, so a node's local top keys aren't the cluster's
+        Random random = new Random(42);
+        List<BiConsumer<UsageKey, Integer>> nodes = new ArrayList<>();
+        peers.values().forEach(peer -> nodes.add((key, num) -> peer.recordUsages(key, num, LocalDate.now())));
+        nodes.add((key, num) -> repo.recordUsages(key, num, LocalDate.now()));
+        for (int k = 0; k < 200; k++) {
+            UsageKey key = new UsageKey("app", "env", "ranked", "k" + k);
+            for (int n = 0; n < nodes.size(); n++) {
+                nodes.get(n).accept(key, 1 + random.nextInt(k % nodes.size() == n ? 500 : 50));
+            }
+        }
+
+        Map<String, Long> all = repo.getAllUsages("app", "env", "ranked", 1);
+        for (int n : new int[] { 1, 5, 20 }) {
+            Map<String, Long> top = repo.getRankedUsages("app", "env", "ranked", 1, Ranking.top(n));
+            assertEquals(Ranking.top(n).select(all), top);
+            assertEquals(new ArrayList<>(Ranking.top(n).select(all).keySet()), new ArrayList<>(top.keySet()));
+        }
+        assertEquals(Ranking.top(5).within(300, Long.MAX_VALUE).select(all),
+                     repo.getRankedUsages("app", "env", "ranked", 1, Ranking.top(5).within(300, Long.MAX_VALUE)));
+        assertEquals(Ranking.bottom(5).select(all), repo.getRankedUsages("app", "env", "ranked", 1, Ranking.bottom(5)));
+        assertFalse(PartialResults.isPartial());
+    }
+
+    @Test
+    public void sumsUsagesByDateAcrossPeersConcurrently() throws Exception {
+        // long enough that no peer is left out, even on a loaded machine
+        repo.shutdown();
+        repo = new ClusteredFileUsageRepository(new FileUsageRepository(tmp.newFolder().toPath()), UUID.randomUUID(),
+                                                Collections.<HostAndPort, PeerClient>unmodifiableMap(peers), 30000);
+        UsageKey byDate = new UsageKey("app", "env", "tests", "by_date");
+        LocalDate today = LocalDate.now();
+        for (int day = 0; day < 365; day++) {
+            repo.recordUsages(byDate, 1, today.minusDays(day));
+        }
+        int n = 1;
+        for (StubPeerClient peer : peers.values()) {
+            for (int day = 0; day < 365; day++) {
+                peer.recordUsages(byDate, n, today.minusDays(day));
+            }
+            n++;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        List<Future<Map<String, Long>>> results = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            results.add(pool.submit(() -> repo.getUsagesByDate(byDate, 365)));
+        }
+        pool.shutdown();
+        for (Future<Map<String, Long>> result : results) {
+            Map<String, Long> usages = result.get(30, TimeUnit.SECONDS);
+            assertEquals(365, usages.size());
+            usages.forEach((date, num) -> assertEquals(date, Long.valueOf(1 + 1 + 2 + 3), num));
+        }
+    }
+
+    @Test
+    public void answersWithoutSlowPeerAtDeadline() {
+        peers.get(HostAndPort.fromParts("peer2", 4567)).setDelayMillis(3000);
+
+        long start = System.currentTimeMillis();
+        assertEquals(13, repo.getUsages(usageKey, 1));
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(Collections.singleton("peer2:4567"), PartialResults.getMissing());
+
+        List<Map<String, Object>> stats = repo.getPeerStats();
+        assertEquals(3, stats.size());
+        assertEquals(1L, stats.get(2).get("timeouts"));
+        assertEquals(0L, stats.get(0).get("timeouts"));
+    }
+
+    @Test
+    public void handsWritesOffToOwnersAndReadsFromOne() throws IOException {
+        List<ClusteredFileUsageRepository> nodes = ownerCluster(3, 2);
+        try {
+            Map<UsageKey, Integer> usages = new HashMap<>();
+            for (int c = 0; c < 30; c++) {
+                usages.put(new UsageKey("app", "env", "cat" + c, "k"), c + 1);
+            }
+            nodes.get(0).recordUsages(usages, LocalDate.now());
+            nodes.get(0).flushHandoffs();
+
+            usages.forEach((key, num) -> {
+                long copies = nodes.stream().filter(node -> node.getDelegate().getUsages(key, 1) == num).count();
+                assertEquals(key.toString(), 2, copies);
+                for (ClusteredFileUsageRepository node : nodes) {
+                    int before = memberClients.stream().mapToInt(StubPeerClient::getReads).sum();
+                    assertEquals(num.longValue(), node.getUsages(key, 1));
+                    assertEquals(Long.valueOf(num), node.getAllUsages("app", "env", key.getCategory(), 1).get("k"));
+                    // at most one owner asked per read, none when the node owns the category itself
+                    assertTrue(memberClients.stream().mapToInt(StubPeerClient::getReads).sum() - before <= 2);
+                }
+            });
+            assertFalse(PartialResults.isPartial());
+        } finally {
+            nodes.forEach(ClusteredFileUsageRepository::shutdown);
+        }
+    }
+
+    @Test
+    public void readsFromReplicaWhenOwnerFails() throws IOException {
+        List<ClusteredFileUsageRepository> nodes = ownerCluster(3, 2);
+        try {
+            UsageKey key = new UsageKey("app", "env", "replicated", "k");
+            nodes.get(0).recordUsages(key, 5, LocalDate.now());
+            nodes.get(0).flushHandoffs();
+
+            int notOwner = 0;
+            List<StubPeerClient> owners = new ArrayList<>();
+            for (int i = 0; i < nodes.size(); i++) {
+                if (nodes.get(i).getDelegate().getUsages(key, 1) == 0) {
+                    notOwner = i;
+                } else {
+                    owners.add(memberClients.get(i));
+                }
+            }
+
+            owners.get(0).setFailing(true);
+            assertEquals(5, nodes.get(notOwner).getUsages(key, 1));
+            assertFalse(PartialResults.isPartial());
+
+            owners.get(1).setFailing(true);
+            assertEquals(0, nodes.get(notOwner).getUsages(key, 1));
+            assertEquals(2, PartialResults.getMissing().size());
+        } finally {
+            nodes.forEach(ClusteredFileUsageRepository::shutdown);
+        }
+    }
+
+    @Test
+    public void retriesFailedHandoffs() throws IOException {
+        List<ClusteredFileUsageRepository> nodes = ownerCluster(2, 1);
+        try {
+            // with one replica each category lives on exactly one of the two nodes
+            UsageKey key = null;
+            for (int c = 0; key == null; c++) {
+                UsageKey candidate = new UsageKey("app", "env", "cat" + c, "k");
+                nodes.get(0).recordUsages(candidate, 1, LocalDate.now());
+                if (nodes.get(0).getDelegate().getUsages(candidate, 1) == 0) {
+                    key = candidate;
+                }
+            }
+            memberClients.get(1).setFailing(true);
+            nodes.get(0).recordUsages(key, 2, LocalDate.now());
+            nodes.get(0).flushHandoffs();
+            assertEquals(0, nodes.get(1).getDelegate().getUsages(key, 1));
+
+            memberClients.get(1).setFailing(false);
+            nodes.get(0).flushHandoffs();
+            assertEquals(3, nodes.get(1).getDelegate().getUsages(key, 1));
+        } finally {
+            nodes.forEach(ClusteredFileUsageRepository::shutdown);
+        }
+    }
+
+    @Test
+    public void listsWhatEveryOwnerKeeps() throws IOException {
+        List<ClusteredFileUsageRepository> nodes = ownerCluster(3, 1);
+        try {
+            Map<UsageKey, Integer> usages = new HashMap<>();
+            List<String> categories = new ArrayList<>();
+            for (int c = 0; c < 10; c++) {
+                usages.put(new UsageKey("app", "env", "cat" + c, "k"), 1);
+                categories.add("cat" + c);
+            }
+            nodes.get(0).recordUsages(usages, LocalDate.now());
+            nodes.get(0).flushHandoffs();
+
+            for (ClusteredFileUsageRepository node : nodes) {
+                assertEquals(Arrays.asList("app"), node.getApps());
+                assertEquals(Arrays.asList("env"), node.getEnvironments("app"));
+                assertEquals(categories, node.getCategories("app", "env"));
+                categories.forEach(category -> assertEquals(Arrays.asList("k"), node.getKeys("app", "env", category)));
+            }
+            assertFalse(PartialResults.isPartial());
+        } finally {
+            nodes.forEach(ClusteredFileUsageRepository::shutdown);
+        }
+    }
+
+    @Test
+    public void dropsHandoffsOverTheLimit() throws IOException {
+        List<ClusteredFileUsageRepository> nodes = ownerCluster(2, 1);
+        try {
+            String category = null;
+            for (int c = 0; category == null; c++) {
+                UsageKey candidate = new UsageKey("app", "env", "cat" + c, "k");
+                nodes.get(0).recordUsages(candidate, 1, LocalDate.now());
+                if (nodes.get(0).getDelegate().getUsages(candidate, 1) == 0) {
+                    category = candidate.getCategory();
+                }
+            }
+            nodes.get(0).flushHandoffs();
+            // the owner goes down, so nothing queued for it is sent
+            memberClients.get(1).failPings(Integer.MAX_VALUE);
+            nodes.get(0).checkAvailability();
+
+            Map<UsageKey, Integer> usages = new HashMap<>();
+            for (int k = 0; k < ClusteredFileUsageRepository.MAX_PENDING_HANDOFFS + 10; k++) {
+                usages.put(new UsageKey("app", "env", category, "k" + k), 1);
+            }
+            nodes.get(0).recordUsages(usages, LocalDate.now());
+            // keys already queued still add up
+            nodes.get(0).recordUsages(new UsageKey("app", "env", category, "k0"), 1, LocalDate.now());
+
+            Map<String, Object> owner = nodes.get(0).getPeerStats().get(1);
+            assertEquals(ClusteredFileUsageRepository.MAX_PENDING_HANDOFFS, owner.get("pendingHandoffs"));
+            assertEquals(10L, owner.get("droppedHandoffs"));
+        } finally {
+            nodes.forEach(ClusteredFileUsageRepository::shutdown);
+        }
+    }
+
+    @Test
+    public void keepsWritesQueuedBeforeNodeFoundItself() throws IOException, InterruptedException {
+        List<ClusteredFileUsageRepository> nodes = cluster(3, (locals, members, ids) -> {
+            // node0 isn't listening yet when it first pings the peers
+            memberClients.get(0).failPings(Integer.MAX_VALUE);
+            List<ClusteredFileUsageRepository> created = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                created.add(new ClusteredFileUsageRepository(locals.get(i), ids.get(i), members, 1000, ClusterMode.OWNER, 2));
+            }
+            return created;
+        });
+        try {
+            Map<UsageKey, Integer> usages = new HashMap<>();
+            for (int c = 0; c < 30; c++) {
+                usages.put(new UsageKey("app", "env", "cat" + c, "k"), c + 1);
+            }
+            nodes.get(0).recordUsages(usages, LocalDate.now());
+            assertFalse(nodes.get(0).getPeerStats().stream().anyMatch(peer -> (Boolean) peer.get("self")));
+
+            memberClients.get(0).failPings(0);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!allCopied(nodes, usages, 2) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertTrue(allCopied(nodes, usages, 2));
+            assertEquals(0, nodes.get(0).getPeerStats().stream().mapToInt(peer -> (Integer) peer.get("pendingHandoffs")).sum());
+        } finally {
+            nodes.forEach(ClusteredFileUsageRepository::shutdown);
+        }
+    }
+
+    @Test
+    public void keepsOwnWritesWhenSelfIsConfigured() throws IOException {
+        List<ClusteredFileUsageRepository> nodes = cluster(2, (locals, members, ids) -> {
+            memberClients.forEach(stub -> stub.failPings(Integer.MAX_VALUE));
+            List<ClusteredFileUsageRepository> created = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                created.add(new ClusteredFileUsageRepository(locals.get(i), ids.get(i), members, 1000, ClusterMode.OWNER, 2,
+                                                             1000, 1000, HostAndPort.fromParts("node" + i, 4567)));
+            }
+            return created;
+        });
+        try {
+            // with two replicas on two nodes every node owns every category
+            nodes.get(0).recordUsages(usageKey, 3, LocalDate.now());
+            assertEquals(3, nodes.get(0).getDelegate().getUsages(usageKey, 1));
+        } finally {
+            nodes.forEach(ClusteredFileUsageRepository::shutdown);
+        }
+    }
+
+    private static boolean allCopied(List<ClusteredFileUsageRepository> nodes, Map<UsageKey, Integer> usages, int copies) {
+        return usages.entrySet().stream().allMatch(e -> nodes.stream()
+                .filter(node -> node.getDelegate().getUsages(e.getKey(), 1) == e.getValue()).count() == copies);
+    }
+
+    @Test
+    public void readsCountsPushedByPeersLocally() throws IOException {
+        List<ClusteredFileUsageRepository> nodes = rollupCluster(3, 60000);
+        try {
+            UsageKey key = new UsageKey("app", "env", "rolled", "k");
+            LocalDate today = LocalDate.now();
+            nodes.get(0).recordUsages(key, 5, today);
+            nodes.get(1).recordUsages(Collections.singletonMap(key, 3), today);
+            nodes.get(2).recordUsages(key, 2, today.minusDays(1));
+            nodes.forEach(ClusteredFileUsageRepository::pushRollups);
+
+            int reads = memberClients.stream().mapToInt(StubPeerClient::getReads).sum();
+            for (ClusteredFileUsageRepository node : nodes) {
+                assertEquals(10, node.getUsages(key, 2));
+                assertEquals(8, node.getUsages(key, 1));
+                Map<String, Long> byDate = node.getUsagesByDate(key, 2);
+                assertEquals(Long.valueOf(8), byDate.get(BASIC_ISO_DATE.format(today)));
+                assertEquals(Long.valueOf(2), byDate.get(BASIC_ISO_DATE.format(today.minusDays(1))));
+                assertEquals(Long.valueOf(10), node.getAllUsages("app", "env", "rolled", 2).get("k"));
+                assertEquals(byDate, node.getAllUsagesByDate("app", "env", "rolled", 2).get("k"));
+            }
+            assertEquals(reads, memberClients.stream().mapToInt(StubPeerClient::getReads).sum());
+            assertFalse(PartialResults.isPartial());
+
+            // pushing again sends totals, not increments, so repeats don't double count
+            nodes.get(0).recordUsages(key, 1, today);
+            nodes.get(0).pushRollups();
+            nodes.get(0).pushRollups();
+            assertEquals(11, nodes.get(1).getUsages(key, 2));
+        } finally {
+            nodes.forEach(ClusteredFileUsageRepository::shutdown);
+        }
+    }
+
+    @Test
+    public void sendsAllCountsToPeerThatMissedPush() throws IOException, InterruptedException {
+        List<ClusteredFileUsageRepository> nodes = rollupCluster(2, 60000);
+        try {
+            UsageKey key = new UsageKey("app", "env", "rolled", "k");
+            nodes.get(0).recordUsages(key, 4, LocalDate.now());
+            memberClients.get(1).setFailing(true);
+            nodes.get(0).pushRollups();
+            assertEquals(0, nodes.get(1).getUsages(key, 1));
+
+            memberClients.get(1).setFailing(false);
+            nodes.get(0).pushRollups();
+            assertEquals(4, nodes.get(1).getUsages(key, 1));
+        } finally {
+            nodes.forEach(ClusteredFileUsageRepository::shutdown);
+        }
+    }
+
+    @Test
+    public void sendsAllCountsInPartsToFewPeersAtATime() throws IOException {
+        List<ClusteredFileUsageRepository> nodes = rollupCluster(4, 60000);
+        try {
+            int[] bodies = { 0 };
+            memberClients.get(1).setRollupReceiver(rollup -> {
+                bodies[0]++;
+                nodes.get(1).receiveRollup(rollup);
+            });
+            Map<UsageKey, Integer> usages = new HashMap<>();
+            for (int i = 0; i <= ClusteredFileUsageRepository.FULL_ROLLUP_KEYS; i++) {
+                usages.put(new UsageKey("app", "env", "big", "k" + i), 1);
+            }
+            usages.put(new UsageKey("app", "env", "small", "k"), 1);
+            nodes.get(0).getDelegate().recordUsages(usages, LocalDate.now());
+
+            nodes.get(0).pushRollups();
+            assertEquals(3, bodies[0]);
+            long receivedAll = nodes.stream().skip(1)
+                    .filter(node -> node.getAllUsages("app", "env", "big", 1).size() == ClusteredFileUsageRepository.FULL_ROLLUP_KEYS + 1)
+                    .count();
+            assertEquals(ClusteredFileUsageRepository.MAX_FULL_ROLLUPS, receivedAll);
+
+            nodes.get(0).pushRollups();
+            for (ClusteredFileUsageRepository node : nodes) {
+                assertEquals(ClusteredFileUsageRepository.FULL_ROLLUP_KEYS + 1, node.getAllUsages("app", "env", "big", 1).size());
+                assertEquals(1, node.getUsages(new UsageKey("app", "env", "small", "k"), 1));
+            }
+        } finally {
+            nodes.forEach(ClusteredFileUsageRepository::shutdown);
+        }
+    }
+
+    @Test
+    public void waitsToPushUntilNodeFoundItself() throws IOException {
+        List<ClusteredFileUsageRepository> nodes = cluster(2, (locals, members, ids) -> {
+            // node0 isn't listening yet when it first pings the peers
+            memberClients.get(0).failPings(Integer.MAX_VALUE);
+            List<ClusteredFileUsageRepository> created = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                created.add(new ClusteredFileUsageRepository(locals.get(i), ids.get(i), members, 1000, ClusterMode.ROLLUP,
+                                                             1, TimeUnit.HOURS.toMillis(1), 60000));
+                memberClients.get(i).setRollupReceiver(created.get(i)::receiveRollup);
+            }
+            return created;
+        });
+        try {
+            UsageKey key = new UsageKey("app", "env", "rolled", "k");
+            // rather than waiting for node1's first check, which may not have run yet
+            nodes.get(1).checkAvailability();
+            nodes.get(0).recordUsages(key, 4, LocalDate.now());
+            nodes.get(0).pushRollups();
+            assertEquals(0, nodes.get(1).getUsages(key, 1));
+            // nothing was pushed under a name the peers would count separately
+            assertEquals(Collections.singleton("node0:4567"), PartialResults.getMissing());
+            PartialResults.clear();
+
+            memberClients.get(0).failPings(0);
+            nodes.get(0).checkAvailability();
+            nodes.get(0).pushRollups();
+            nodes.get(0).pushRollups();
+            assertEquals(4, nodes.get(1).getUsages(key, 1));
+        } finally {
+            nodes.forEach(ClusteredFileUsageRepository::shutdown);
+        }
+    }
+
+    @Test
+    public void reportsPeersThatStoppedPushing() throws IOException, InterruptedException {
+        List<ClusteredFileUsageRepository> nodes = rollupCluster(2, 50);
+        try {
+            nodes.forEach(ClusteredFileUsageRepository::pushRollups);
+            nodes.get(0).getUsages(usageKey, 1);
+            assertFalse(PartialResults.isPartial());
+
+            Thread.sleep(100);
+            nodes.get(0).getUsages(usageKey, 1);
+            assertEquals(Collections.singleton("node1:4567"), PartialResults.getMissing());
+        } finally {
+            nodes.forEach(ClusteredFileUsageRepository::shutdown);
+        }
+    }
+
+    private List<ClusteredFileUsageRepository> rollupCluster(int size, long stalenessMillis) throws IOException {
+        List<ClusteredFileUsageRepository> nodes = cluster(size, (locals, members, ids) -> {
+            List<ClusteredFileUsageRepository> created = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                // pushed by the tests rather than on a timer
+                created.add(new ClusteredFileUsageRepository(locals.get(i), ids.get(i), members, 1000, ClusterMode.ROLLUP,
+                                                             1, TimeUnit.HOURS.toMillis(1), stalenessMillis));
+            }
+            return created;
+        });
+        for (int i = 0; i < size; i++) {
+            memberClients.get(i).setRollupReceiver(nodes.get(i)::receiveRollup);
+        }
+        return nodes;
+    }
+
+    private List<ClusteredFileUsageRepository> ownerCluster(int size, int replicas) throws IOException {
+        return cluster(size, (locals, members, ids) -> {
+            List<ClusteredFileUsageRepository> nodes = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                nodes.add(new ClusteredFileUsageRepository(locals.get(i), ids.get(i), members, 1000, ClusterMode.OWNER,
+                                                           replicas));
+            }
+            return nodes;
+        });
+    }
+
+    /**
+     * nodes that reach each other through stubs, each node's own stub answers pings with its id
+     */
+    private List<ClusteredFileUsageRepository> cluster(int size, NodeFactory factory) throws IOException {
+        Map<HostAndPort, PeerClient> members = new LinkedHashMap<>();
+        List<FileUsageRepository> locals = new ArrayList<>();
+        List<UUID> ids = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            FileUsageRepository local = new FileUsageRepository(tmp.newFolder().toPath());
+            UUID id = UUID.randomUUID();
+            StubPeerClient stub = new StubPeerClient(local, id);
+            locals.add(local);
+            ids.add(id);
+            memberClients.add(stub);
+            members.put(HostAndPort.fromParts("node" + i, 4567), stub);
+        }
+        return factory.create(locals, members, ids);
+    }
+
+    private interface NodeFactory {
+        List<ClusteredFileUsageRepository> create(List<FileUsageRepository> locals, Map<HostAndPort, PeerClient> members,
+                                                  List<UUID> ids);
+    }
+}
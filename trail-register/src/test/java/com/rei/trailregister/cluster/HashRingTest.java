@@ -0,0 +1,48 @@
+package com.rei.trailregister.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+public class HashRingTest {
+
+    @Test
+    public void spreadsTokensAndReplicasOverMembers() {
+        HashRing<String> ring = new HashRing<>(Arrays.asList("a:1", "b:1", "c:1", "d:1"), Function.identity(),
+                                               HashRing.DEFAULT_POINTS);
+        Map<String, Integer> owned = new HashMap<>();
+        for (int i = 0; i < 10000; i++) {
+            List<String> owners = ring.getOwners("app/env/cat" + i, 2);
+            assertEquals(2, owners.size());
+            assertNotEquals(owners.get(0), owners.get(1));
+            owned.merge(owners.get(0), 1, Integer::sum);
+        }
+        owned.values().forEach(count -> assertTrue(owned.toString(), count > 1500 && count < 3500));
+        assertEquals(4, ring.getOwners("app/env/cat", 10).size());
+    }
+
+    @Test
+    public void addingMemberOnlyMovesItsShare() {
+        HashRing<String> before = new HashRing<>(Arrays.asList("a:1", "b:1", "c:1"), Function.identity(),
+                                                 HashRing.DEFAULT_POINTS);
+        HashRing<String> after = new HashRing<>(Arrays.asList("a:1", "b:1", "c:1", "d:1"), Function.identity(),
+                                                HashRing.DEFAULT_POINTS);
+        int moved = 0;
+        for (int i = 0; i < 10000; i++) {
+            String owner = after.getOwners("cat" + i, 1).get(0);
+            if (!owner.equals(before.getOwners("cat" + i, 1).get(0))) {
+                assertEquals("d:1", owner);
+                moved++;
+            }
+        }
+        assertTrue("moved " + moved, moved > 1500 && moved < 3500);
+    }
+}
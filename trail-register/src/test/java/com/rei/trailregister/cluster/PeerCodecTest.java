@@ -0,0 +1,84 @@
+package com.rei.trailregister.cluster;
+
+import static java.time.format.DateTimeFormatter.BASIC_ISO_DATE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.rei.trailregister.UsageKey;
+
+public class PeerCodecTest {
+
+    @Test
+    public void roundTripsTotals() {
+        Map<String, Long> totals = new HashMap<>();
+        totals.put("k", 16L);
+        totals.put("ünïcödé", Long.MAX_VALUE);
+        totals.put("negative", -3L);
+        totals.put("", 0L);
+
+        assertEquals(totals, PeerCodec.decodeTotals(PeerCodec.encodeTotals(totals)));
+    }
+
+    @Test
+    public void roundTripsUsagesByDate() {
+        LocalDate today = LocalDate.now();
+        Map<String, Map<String, Long>> byDate = new HashMap<>();
+        Map<String, Long> year = new HashMap<>();
+        for (int day = 0; day < 365; day += 3) {
+            year.put(BASIC_ISO_DATE.format(today.minusDays(day)), (long) day * 1000);
+        }
+        byDate.put("year", year);
+        Map<String, Long> old = new HashMap<>();
+        old.put(BASIC_ISO_DATE.format(today), 1L);
+        old.put(BASIC_ISO_DATE.format(today.minusDays(400)), 5L);
+        byDate.put("old", old);
+        byDate.put("none", new HashMap<>());
+
+        Map<String, DailyCounts> decoded = PeerCodec.decodeByDate(PeerCodec.encodeByDate(byDate), today, 365);
+        assertEquals(3, decoded.size());
+        assertEquals(year, decoded.get("year").toMap());
+        // outside the window
+        assertEquals(1, decoded.get("old").toMap().size());
+        assertEquals(0, decoded.get("none").toMap().size());
+    }
+
+    @Test
+    public void mergesRollupsKeepingLargestCount() {
+        LocalDate today = LocalDate.now();
+        UsageKey key = new UsageKey("app", "env", "cat", "k");
+        RollupTable table = new RollupTable();
+        Map<String, Long> counts = new HashMap<>();
+        counts.put(BASIC_ISO_DATE.format(today), 5L);
+
+        try {
+            PeerCodec.decodeRollup(PeerCodec.encodeRollup("a:1", false, Collections.singletonMap(key, counts)), table);
+            fail("changes need a full rollup first");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals("a:1", PeerCodec.decodeRollup(PeerCodec.encodeRollup("a:1", true, Collections.singletonMap(key, counts)),
+                                                   table));
+        table.heardFrom("a:1", System.currentTimeMillis());
+
+        Map<String, Long> older = new HashMap<>();
+        older.put(BASIC_ISO_DATE.format(today), 3L);
+        PeerCodec.decodeRollup(PeerCodec.encodeRollup("a:1", false, Collections.singletonMap(key, older)), table);
+        PeerCodec.decodeRollup(PeerCodec.encodeRollup("b:1", true, Collections.singletonMap(key, older)), table);
+
+        Map<String, DailyCounts> result = new HashMap<>();
+        table.addTo(result, "app", "env", "cat", null, today, 1);
+        assertEquals(8, result.get("k").total());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsUnknownVersion() {
+        PeerCodec.decodeTotals(new byte[] { 2, 0 });
+    }
+}
@@ -0,0 +1,186 @@
+package com.rei.trailregister.cluster;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import com.rei.trailregister.Ranking;
+import com.rei.trailregister.UsageKey;
+import com.rei.trailregister.UsageRepository;
+
+/**
+ * answers peer reads from a local repository, optionally after a delay, without going over http.
+ */
+class StubPeerClient implements PeerClient {
+    private final String id;
+    private final UsageRepository repo;
+    private volatile long delayMillis;
+    private volatile boolean failing;
+    private final AtomicInteger pingFailures = new AtomicInteger();
+    private volatile Consumer<byte[]> rollupReceiver = rollup -> { throw new UnsupportedOperationException(); };
+    private final AtomicInteger reads = new AtomicInteger();
+
+    StubPeerClient(UsageRepository repo) {
+        this(repo, UUID.randomUUID());
+    }
+
+    /**
+     * @param id the id of the node this stands for, a node answering its own id to a ping knows it's itself
+     */
+    StubPeerClient(UsageRepository repo, UUID id) {
+        this.repo = repo;
+        this.id = id.toString();
+    }
+
+    void setRollupReceiver(Consumer<byte[]> rollupReceiver) {
+        this.rollupReceiver = rollupReceiver;
+    }
+
+    void setFailing(boolean failing) {
+        this.failing = failing;
+    }
+
+    /**
+     * fails the next pings, like a node that isn't listening yet
+     */
+    void failPings(int times) {
+        pingFailures.set(times);
+    }
+
+    void setDelayMillis(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    int getReads() {
+        return reads.get();
+    }
+
+    void recordUsages(UsageKey key, int num, LocalDate date) {
+        repo.recordUsages(key, num, date);
+    }
+
+    @Override
+    public void recordUsage(String app, String env, String category, String key) {
+        repo.recordUsages(new UsageKey(app, env, category, key));
+    }
+
+    @Override
+    public long getUsages(String app, String env, String category, String key) {
+        return getUsages(app, env, category, key, 30);
+    }
+
+    @Override
+    public Map<String, Long> getUsagesByDate(String app, String env, String category, String key) {
+        return getUsagesByDate(app, env, category, key, 30);
+    }
+
+    @Override
+    public Map<String, Long> getAllUsages(String app, String env, String category) {
+        return getAllUsages(app, env, category, 30);
+    }
+
+    @Override
+    public long getUsages(String app, String env, String category, String key, int days) {
+        delay();
+        return repo.getUsages(new UsageKey(app, env, category, key), days);
+    }
+
+    @Override
+    public Map<String, Long> getUsagesByDate(String app, String env, String category, String key, int days) {
+        delay();
+        return repo.getUsagesByDate(new UsageKey(app, env, category, key), days);
+    }
+
+    @Override
+    public Map<String, Long> getAllUsages(String app, String env, String category, int days) {
+        delay();
+        return repo.getAllUsages(app, env, category, days);
+    }
+
+    @Override
+    public Map<String, Long> getUsages(String app, String env, String category, Collection<String> keys, int days) {
+        delay();
+        return keys.isEmpty() ? repo.getAllUsages(app, env, category, days) : repo.getUsages(app, env, category, keys, days);
+    }
+
+    @Override
+    public Map<String, Map<String, Long>> getUsagesByDate(String app, String env, String category, Collection<String> keys,
+                                                          int days) {
+        delay();
+        return keys.isEmpty() ? repo.getAllUsagesByDate(app, env, category, days)
+                              : repo.getUsagesByDate(app, env, category, keys, days);
+    }
+
+    @Override
+    public Map<String, Long> getRankedUsages(String app, String env, String category, int days, Ranking ranking) {
+        delay();
+        return repo.getRankedUsages(app, env, category, days, ranking);
+    }
+
+    @Override
+    public void recordUsages(Map<UsageKey, Integer> usages, LocalDate date) {
+        if (failing) {
+            throw new IllegalStateException("peer is failing");
+        }
+        repo.recordUsages(usages, date);
+    }
+
+    @Override
+    public void pushRollup(byte[] rollup) {
+        if (failing) {
+            throw new IllegalStateException("peer is failing");
+        }
+        rollupReceiver.accept(rollup);
+    }
+
+    @Override
+    public String ping() {
+        if (pingFailures.getAndDecrement() > 0) {
+            throw new IllegalStateException("not listening yet");
+        }
+        return id;
+    }
+
+    @Override
+    public List<String> getApps() {
+        return repo.getApps();
+    }
+
+    @Override
+    public List<String> getEnvironments(String app) {
+        return repo.getEnvironments(app);
+    }
+
+    @Override
+    public List<String> getCategories(String app, String env) {
+        return repo.getCategories(app, env);
+    }
+
+    @Override
+    public List<String> getKeys(String app, String env, String category) {
+        return repo.getKeys(app, env, category);
+    }
+
+    @Override
+    public List<String> getKeys(String app, String env, String category, String after, int limit) {
+        return repo.getKeys(app, env, category, after, limit);
+    }
+
+    private void delay() {
+        reads.incrementAndGet();
+        if (failing) {
+            throw new IllegalStateException("peer is failing");
+        }
+        if (delayMillis > 0) {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
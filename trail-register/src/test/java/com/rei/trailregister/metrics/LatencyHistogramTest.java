@@ -0,0 +1,33 @@
+package com.rei.trailregister.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValue() {
+        for (long micros = 0; micros < 1_000_000; micros += 7) {
+            int bucket = LatencyHistogram.bucket(micros);
+            assertTrue(micros + " above its bucket", micros < LatencyHistogram.upperBoundMicros(bucket));
+            assertTrue(micros + " below its bucket", bucket == 0 || micros >= LatencyHistogram.upperBoundMicros(bucket - 1));
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinABucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i * 100));
+        }
+        assertEquals(50, histogram.getPercentileMillis(50), 50 * 0.07);
+        assertEquals(99, histogram.getPercentileMillis(99), 99 * 0.07);
+        assertEquals(99.9, histogram.getPercentileMillis(99.9), 99.9 * 0.07);
+        assertEquals(100, histogram.getPercentileMillis(100), 0.001);
+        assertEquals(1000, histogram.getCount());
+    }
+}